@@ -0,0 +1,9 @@
+#! /bin/bash
+# Builds the application with the benchmarks in bench/ and runs them.
+# Example: source ./bench.sh                        helpers only, no database
+#          source ./bench.sh flightDB 5432 user     also the data access paths,
+#                                                   books seats, use a scratch database
+# Settings: JAVA_OPTS="-Dbench.filter=decode -Dbench.measureMillis=5000"
+rm -rf bin/*.class
+javac -cp "lib/postgresql-42.1.4.jar" src/*.java bench/*.java -d bin/
+java $JAVA_OPTS -cp lib/*:bin/ Bench "$@"
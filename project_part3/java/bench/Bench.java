@@ -0,0 +1,292 @@
+/*
+ * Benchmarks
+ * ==========
+ *
+ * Throughput, latency percentiles and allocation per operation of the
+ * AirBooking helpers and data access paths.  Run with bench.sh.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A small harness in the spirit of JMH: every benchmark is warmed up, then
+ * run untimed for throughput and allocated bytes per operation, then run
+ * again with every call timed into a LatencyHistogram for percentiles.
+ * Results are stored in a static field so the JIT can not drop the work.
+ *
+ * Without arguments only the helpers that need no database are measured
+ * (validators, booking references, padding, the histogram itself).  With
+ * <dbname> <port> <user> the data access paths are measured as well:
+ * decoding the Flight table three ways, option 9 with and without the seat
+ * inventory, the validation lookups and BookFlight end to end.  The
+ * BookFlight benchmark inserts real bookings, so point it at a scratch
+ * database loaded from data/*.csv.
+ *
+ * Settings: -Dbench.warmupMillis (default 2000), -Dbench.measureMillis
+ * (default 3000), -Dbench.filter=<part of a benchmark name>.
+ *
+ */
+public class Bench
+{
+	/**
+	 * One operation to measure.
+	 */
+	interface Op
+	{
+		Object run() throws Exception;
+	}
+
+	static final long WARMUP_MILLIS = Long.getLong("bench.warmupMillis", 2000);
+	static final long MEASURE_MILLIS = Long.getLong("bench.measureMillis", 3000);
+	static final String FILTER = System.getProperty("bench.filter", "");
+	// calls between two looks at the clock
+	static final int CHUNK = 64;
+
+	// every result ends up here so the JIT can not drop the work
+	static Object _blackhole;
+
+	public static void main(String[] args) throws Exception
+	{
+		System.out.printf("%-44s %14s %10s  %s%n", "benchmark", "ops/s", "B/op", "latency");
+
+		final AirBooking offline = new AirBooking();
+		run("validate.isNumeric", () -> offline.isNumeric("1234567"));
+		run("validate.isNumeric.regex", () -> Before.isNumeric("1234567"));
+		run("validate.DateIsValid", () -> offline.DateIsValid("2017-10-23"));
+		run("validate.DateIsValid.split", () -> Before.DateIsValid("2017-10-23"));
+		run("validate.DateIsValid.invalid", () -> offline.DateIsValid("2017-02-30"));
+		run("validate.DateIsValid.invalid.split", () -> Before.DateIsValid("2017-02-30"));
+		run("validate.DateIsValid.garbage", () -> offline.DateIsValid("23rd of Oct"));
+		run("validate.DateIsValid.garbage.split", () -> Before.DateIsValid("23rd of Oct"));
+		run("validate.scoreIsValid", () -> offline.scoreIsValid("4"));
+		run("validate.scoreIsValid.regex", () -> Before.scoreIsValid("4"));
+		run("validate.isNumValid", () -> offline.isNumValid("250"));
+		run("validate.isNumValid.regex", () -> Before.isNumValid("250"));
+		final BulkLoader loader = new BulkLoader(offline);
+		run("validate.normalizeDate", () -> loader.normalizeDate("10/23/2017"));
+		run("validate.is_trashport", () -> offline.is_trashport("UKXRHGPOLG"));
+		run("format.padChar", () -> AirBooking.padChar("Madrid", 16));
+
+		final BookRefGenerator refs = new BookRefGenerator(0);
+		run("bookRef.next", () -> refs.next());
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+		run("histogram.record", () -> {
+			histogram.record(ThreadLocalRandom.current().nextLong(1000000));
+			return histogram;
+		});
+
+		// what the instrumentation adds to every statement and operation
+		run("metrics.sql", () -> {
+			Metrics.sql("SELECT 1", System.nanoTime(), 1, 1);
+			return histogram;
+		});
+		run("metrics.operation", () -> {
+			Metrics.begin("bench");
+			Metrics.end(false);
+			return histogram;
+		});
+
+		if(args.length >= 3)
+		{
+			online(args[0], args[1], args[2]);
+		}
+	}
+
+	static void online(String dbname, String port, String user) throws Exception
+	{
+		final AirBooking esql = new AirBooking(dbname, port, user, "");
+		// the same paths without the in-process caches
+		System.setProperty("airbooking.seatCache", "false");
+		System.setProperty("airbooking.refCache", "false");
+		final AirBooking uncached = new AirBooking(dbname, port, user, "");
+		try
+		{
+			final String[] flights = column(esql.executeQueryTyped("SELECT flightnum FROM flight"));
+			final String[] passports = column(esql.executeQueryTyped("SELECT passnum FROM passenger"));
+			if(flights.length == 0 || passports.length == 0)
+			{
+				System.err.println("Load data/*.csv first (run.sh ... load)");
+				return;
+			}
+
+			// result set decoding
+			final String all = "SELECT * FROM flight";
+			run("decode.executeQueryAndReturnResult", () -> esql.executeQueryAndReturnResult(all));
+			run("decode.executeQueryTyped", () -> esql.executeQueryTyped(all));
+			run("decode.executeQueryStreaming", () -> esql.executeQueryStreaming(all, rs -> rs.getInt(6)));
+
+			// option 9
+			run("seats.findAvailableSeats.inventory", () -> esql.findAvailableSeats(pick(flights), date()));
+			run("seats.findAvailableSeats.sql", () -> uncached.findAvailableSeats(pick(flights), date()));
+
+			// the lookups behind the menu's input checks
+			run("lookup.flightNumIsValid", () -> esql.flightNumIsValid(pick(flights)));
+			run("lookup.getPidFromPassNum", () -> esql.getPidFromPassNum(pick(passports)));
+			run("lookup.getPidFromPassNum.uncached", () -> uncached.getPidFromPassNum(pick(passports)));
+			// the two lookups of a review, one after the other and at the same time
+			run("lookup.review.sequential", () -> uncached.getPidFromPassNum(pick(passports))
+				+ uncached.flightNumIsValid(pick(flights)));
+			run("lookup.review.async", () -> {
+				CompletableFuture<String> pid = uncached.getPidFromPassNumAsync(pick(passports));
+				CompletableFuture<Boolean> flight = uncached.flightNumIsValidAsync(pick(flights));
+				return pid.join() + flight.join();
+			});
+
+			// option 2, inserts bookings
+			run("booking.bookFlight", () -> esql.bookFlight(date(), pick(flights), pick(passports)));
+		}
+		finally
+		{
+			uncached.cleanup();
+			esql.cleanup();
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Method to measure one operation and print a result line.
+	 */
+	static void run(String name, Op op) throws Exception
+	{
+		if(!name.contains(FILTER))
+		{
+			return;
+		}
+		loop(op, WARMUP_MILLIS);
+
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long ops = loop(op, MEASURE_MILLIS);
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long end = System.nanoTime() + MEASURE_MILLIS * 1000000;
+		while(System.nanoTime() < end)
+		{
+			for(int i = 0; i < CHUNK; ++i)
+			{
+				long t = System.nanoTime();
+				_blackhole = op.run();
+				latency.record(System.nanoTime() - t);
+			}
+		}
+
+		System.out.printf("%-44s %14.0f %10.1f  p50=%s p99=%s p99.9=%s max=%s%n", name,
+			ops * 1e9 / elapsed, (double) allocated / ops, micros(latency.percentile(50)),
+			micros(latency.percentile(99)), micros(latency.percentile(99.9)), micros(latency.max()));
+	}
+
+	// runs the operation for about the given time, returns how often
+	static long loop(Op op, long millis) throws Exception
+	{
+		long ops = 0;
+		long end = System.nanoTime() + millis * 1000000;
+		while(System.nanoTime() < end)
+		{
+			for(int i = 0; i < CHUNK; ++i)
+			{
+				_blackhole = op.run();
+			}
+			ops += CHUNK;
+		}
+		return ops;
+	}
+
+	/**
+	 * The input checks as they were before InputCheck, to compare against.
+	 */
+	static class Before
+	{
+		static boolean isNumeric(String s)
+		{
+			return s != null && s.matches("[-+]?\\d*\\.?\\d+");
+		}
+
+		static boolean DateIsValid(String date)
+		{
+			try
+			{
+				String[] box = date.split("-");
+				if(box.length != 3)
+				{
+					return false;
+				}
+				int year = Integer.parseInt(box[0]);
+				int month = Integer.parseInt(box[1]);
+				int day = Integer.parseInt(box[2]);
+				if(box[1].length() != 2 || box[2].length() != 2 || box[0].length() != 4 || month > 12 || month < 1)
+				{
+					return false;
+				}
+				int days = month == 2 ? (InputCheck.isLeapYear(year) ? 29 : 28)
+					: month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+				return day >= 1 && day <= days;
+			}
+			catch(Exception e)
+			{
+				return false;
+			}
+		}
+
+		static boolean scoreIsValid(String score)
+		{
+			try
+			{
+				return isNumeric(score) && Integer.parseInt(score) >= 0 && Integer.parseInt(score) <= 5;
+			}
+			catch(Exception e)
+			{
+				return false;
+			}
+		}
+
+		static boolean isNumValid(String num)
+		{
+			try
+			{
+				return isNumeric(num) && Integer.parseInt(num) >= 0;
+			}
+			catch(Exception e)
+			{
+				return false;
+			}
+		}
+	}
+
+	static String micros(long nanos)
+	{
+		return String.format("%.2fus", nanos / 1e3);
+	}
+
+	static String[] column(TypedResult rows)
+	{
+		List<String> values = new ArrayList<String>();
+		for(int i = 0; i < rows.size(); ++i)
+		{
+			values.add(rows.getString(i, 0).trim());
+		}
+		return values.toArray(new String[values.size()]);
+	}
+
+	static String pick(String[] values)
+	{
+		return values[ThreadLocalRandom.current().nextInt(values.length)];
+	}
+
+	// a departure date in the two years after the shipped data
+	static String date()
+	{
+		return LocalDate.of(2018, 1, 1).plusDays(ThreadLocalRandom.current().nextInt(730)).toString();
+	}
+}
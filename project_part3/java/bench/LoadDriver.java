@@ -0,0 +1,487 @@
+/*
+ * Load Driver
+ * ===========
+ *
+ * Generates data sets like data/*.csv at any scale and replays a mixed
+ * workload of the menu operations against a database from many clients.
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * generate <dir> <scale> writes airline, passenger, flights, ratings and
+ * bookings csv files with scale times the rows of the shipped data/ set,
+ * within the domains and keys of create.sql: unique passports, flight numbers
+ * and booking references, seats 100..499, durations 1..23, scores 0..5, no
+ * passenger booked twice on one flight and date and no flight overbooked.
+ *
+ * run <dbname> <port> <user> [<dir>] loads <dir> with BulkLoader when given
+ * (the tables must be empty), then starts -Dloaddriver.clients threads (16)
+ * that each pick one of the nine menu operations by the weights of
+ * -Dloaddriver.mix (op:weight,...) with random valid input, for
+ * -Dloaddriver.seconds (60).  Every -Dloaddriver.reportSeconds (5) the
+ * throughput and latency percentiles of that interval are printed, and at the
+ * end the totals per operation.  Writes are real: run it on a scratch
+ * database.
+ *
+ */
+public class LoadDriver
+{
+	static final String[] OPERATIONS = {
+		null,
+		"1 add passenger",
+		"2 book flight",
+		"3 review flight",
+		"4 upsert route",
+		"5 flights between",
+		"6 popular destinations",
+		"7 top rated routes",
+		"8 flights by duration",
+		"9 available seats"
+	};
+	static final String DEFAULT_MIX = "1:5,2:20,3:5,4:1,5:15,6:10,7:10,8:15,9:19";
+
+	// the shipped data set, scale 1
+	static final int AIRLINES = 53;
+	static final int PASSENGERS = 250;
+	static final int FLIGHTS = 498;
+	static final int RATINGS = 432;
+	static final int BOOKINGS = 2250;
+	static final int CITIES = 51;
+	// departures are spread over this many days from FIRST_DAY
+	static final int DAYS = 30;
+	static final LocalDate FIRST_DAY = LocalDate.of(2018, 1, 1);
+	// passport() is one to one below this
+	static final long PASSPORTS = 17000000000L;
+
+	static final String[] FIRST_NAMES = { "Armand", "Alberto", "Wyatt", "Maria", "Chen", "Aisha", "Olga", "Kenji",
+		"Lucia", "Pavel", "Nora", "Tariq", "Ines", "Jonas", "Priya", "Diego" };
+	static final String[] LAST_NAMES = { "Enderle", "Scarlett", "Ruoff", "Garcia", "Wang", "Okafor", "Petrova",
+		"Sato", "Rossi", "Novak", "Berg", "Haddad", "Silva", "Weber", "Iyer", "Lopez" };
+	static final String[] COUNTRIES = { "Germany", "Netherlands", "Greece", "Spain", "United States", "China",
+		"Japan", "India", "Brazil", "France", "Italy", "Morocco", "Australia", "Canada" };
+	static final String[] PLANES = { "Airbus 380", "Airbus A320", "Airbus A330", "Boeing 737", "Boeing 747",
+		"Boeing 757", "Boeing 787", "Lockheed 1011" };
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length == 3 && args[0].equals("generate"))
+		{
+			generate(new File(args[1]), Double.parseDouble(args[2]));
+		}
+		else if(args.length >= 4 && args[0].equals("run"))
+		{
+			run(args[1], args[2], args[3], args.length > 4 ? new File(args[4]) : null);
+		}
+		else
+		{
+			System.err.println("Usage: java LoadDriver generate <dir> <scale>");
+			System.err.println("       java LoadDriver run <dbname> <port> <user> [<dir to load first>]");
+		}
+	}
+
+	//----------------------------------- data generation -----------------------------------
+
+	/**
+	 * Method to write the five csv files of a data set.
+	 *
+	 * @param dir where the files are written, created if needed
+	 * @param scale row counts relative to the shipped data/ set
+	 */
+	static void generate(File dir, double scale) throws IOException
+	{
+		if(!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("Can not create " + dir);
+		}
+		int airlines = scaled(AIRLINES, scale);
+		int passengers = scaled(PASSENGERS, scale);
+		int flights = scaled(FLIGHTS, scale);
+		long ratings = scaledLong(RATINGS, scale);
+		long bookings = scaledLong(BOOKINGS, scale);
+		int cities = Math.max(2, (int) Math.round(CITIES * Math.sqrt(scale)));
+		Random random = new Random(Double.doubleToLongBits(scale));
+		long start = System.nanoTime();
+
+		try(Writer out = writer(dir, "airline.csv"))
+		{
+			for(int id = 0; id < airlines; ++id)
+			{
+				out.write(id + ",Airline " + id + "," + (1900 + random.nextInt(118)) + "," + pick(random, COUNTRIES)
+					+ "," + city(random.nextInt(cities)) + "\n");
+			}
+		}
+
+		try(Writer out = writer(dir, "passenger.csv"))
+		{
+			for(int pid = 0; pid < passengers; ++pid)
+			{
+				String name = pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES);
+				LocalDate born = LocalDate.of(1930, 1, 1).plusDays(random.nextInt(365 * 75));
+				out.write(pid + "," + passport(pid) + "," + name + "," + born + "," + pick(random, COUNTRIES) + "\n");
+			}
+		}
+
+		// seats per flight, to keep the bookings within them
+		int[] seats = new int[flights];
+		try(Writer out = writer(dir, "flights.csv"))
+		{
+			for(int f = 0; f < flights; ++f)
+			{
+				int origin = random.nextInt(cities);
+				int destination = (origin + 1 + random.nextInt(cities - 1)) % cities;
+				seats[f] = 100 + random.nextInt(400);
+				out.write(random.nextInt(airlines) + "," + flightNum(f) + "," + city(origin) + "," + city(destination)
+					+ "," + pick(random, PLANES) + "," + seats[f] + "," + (1 + random.nextInt(23)) + "\n");
+			}
+		}
+
+		try(Writer out = writer(dir, "ratings.csv"))
+		{
+			for(long rid = 0; rid < ratings; ++rid)
+			{
+				out.write(rid + "," + random.nextInt(passengers) + "," + flightNum(random.nextInt(flights)) + ","
+					+ random.nextInt(6) + "," + (random.nextBoolean() ? "" : "generated review " + rid) + "\n");
+			}
+		}
+
+		// booking i goes on flight i % flights, day (i / flights) % DAYS; the
+		// j-th booking of one flight and day takes the j-th passenger after a
+		// per flight and day offset, so passengers never repeat on it
+		long slots = (long) flights * DAYS;
+		if((bookings + slots - 1) / slots > Math.min(100, passengers))
+		{
+			throw new IllegalArgumentException("Too many bookings per flight and day at this scale");
+		}
+		BookRefGenerator refs = new BookRefGenerator(BookRefGenerator.MAX_NODE);
+		try(Writer out = writer(dir, "bookings.csv"))
+		{
+			for(long i = 0; i < bookings; ++i)
+			{
+				int f = (int) (i % flights);
+				int day = (int) ((i / flights) % DAYS);
+				long j = i / slots;
+				int pid = (int) ((mix(f * (long) DAYS + day) + j) % passengers);
+				out.write(refs.next() + "," + FIRST_DAY.plusDays(day) + "," + flightNum(f) + "," + pid + "\n");
+			}
+		}
+
+		System.out.printf("%d airlines, %d passengers, %d flights, %d ratings, %d bookings in %.1f s to %s%n",
+			airlines, passengers, flights, ratings, bookings, (System.nanoTime() - start) / 1e9, dir);
+	}
+
+	static int scaled(int rows, double scale)
+	{
+		long n = scaledLong(rows, scale);
+		if(n > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Scale too large");
+		}
+		return (int) n;
+	}
+
+	static long scaledLong(int rows, double scale)
+	{
+		return Math.max(1, Math.round(rows * scale));
+	}
+
+	// 10 capital letters, different for every pid below PASSPORTS
+	static String passport(long pid)
+	{
+		long v = pid * 7919 + 104729;
+		char[] c = new char[10];
+		for(int i = 9; i >= 0; --i)
+		{
+			c[i] = (char) ('A' + v % 26);
+			v /= 26;
+		}
+		return new String(c);
+	}
+
+	static String flightNum(int f)
+	{
+		return "SF" + Integer.toString(f, 36).toUpperCase();
+	}
+
+	static String city(int c)
+	{
+		return "City " + c;
+	}
+
+	static long mix(long x)
+	{
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		return x & Long.MAX_VALUE;
+	}
+
+	static String pick(Random random, String[] values)
+	{
+		return values[random.nextInt(values.length)];
+	}
+
+	static Writer writer(File dir, String name) throws IOException
+	{
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, name)),
+			StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	//-------------------------------------- workload ---------------------------------------
+
+	/**
+	 * Method to replay the workload and print interval and total statistics.
+	 */
+	static void run(String dbname, String port, String user, File load) throws Exception
+	{
+		final int clients = Integer.getInteger("loaddriver.clients", 16);
+		final long seconds = Long.getLong("loaddriver.seconds", 60);
+		final long reportSeconds = Long.getLong("loaddriver.reportSeconds", 5);
+		final int[] weights = weights(System.getProperty("loaddriver.mix", DEFAULT_MIX));
+
+		final AirBooking esql = new AirBooking(dbname, port, user, "");
+		try
+		{
+			if(load != null)
+			{
+				new BulkLoader(esql).loadAll(load);
+			}
+			final TypedResult flights = esql.executeQueryTyped(
+				"SELECT airid, flightnum, origin, destination, plane, seats, duration FROM flight");
+			final TypedResult passengers = esql.executeQueryTyped("SELECT pid, passnum FROM passenger");
+			if(flights.size() == 0 || passengers.size() == 0)
+			{
+				System.err.println("No data, generate a data set and pass its directory to load it");
+				return;
+			}
+
+			final LatencyHistogram[] perOperation = new LatencyHistogram[OPERATIONS.length];
+			for(int op = 1; op < OPERATIONS.length; ++op)
+			{
+				perOperation[op] = new LatencyHistogram();
+			}
+			final LatencyHistogram interval = new LatencyHistogram();
+			final AtomicLongArray errors = new AtomicLongArray(OPERATIONS.length);
+			final long end = System.nanoTime() + seconds * 1000000000L;
+
+			Thread[] threads = new Thread[clients];
+			for(int t = 0; t < clients; ++t)
+			{
+				threads[t] = new Thread(() -> {
+					Client client = new Client(esql, flights, passengers);
+					while(System.nanoTime() < end)
+					{
+						int op = choose(weights);
+						long begin = System.nanoTime();
+						boolean failed = true;
+						Metrics.begin(AirBooking.OPERATIONS[op]);
+						try
+						{
+							client.run(op);
+							failed = false;
+						}
+						catch(Exception e)
+						{
+							if(errors.getAndIncrement(op) == 0)
+							{
+								System.err.println(OPERATIONS[op] + ": " + e.getMessage());
+							}
+						}
+						finally
+						{
+							Metrics.end(failed);
+						}
+						long nanos = System.nanoTime() - begin;
+						perOperation[op].record(nanos);
+						interval.record(nanos);
+					}
+				}, "client-" + t);
+				threads[t].start();
+			}
+
+			System.out.printf("%d clients for %d s, mix %s%n", clients, seconds, System.getProperty("loaddriver.mix", DEFAULT_MIX));
+			System.out.printf("%8s %10s %10s %10s %10s %10s%n", "time", "ops/s", "p50", "p99", "p99.9", "max");
+			long started = System.nanoTime();
+			long last = started;
+			while(System.nanoTime() < end)
+			{
+				Thread.sleep(Math.max(1, Math.min(reportSeconds * 1000, (end - System.nanoTime()) / 1000000)));
+				long now = System.nanoTime();
+				LatencyHistogram taken = interval.takeInterval();
+				System.out.printf("%7ds %10.0f %10s %10s %10s %10s%n", (now - started) / 1000000000L,
+					taken.count() * 1e9 / (now - last), ms(taken.percentile(50)), ms(taken.percentile(99)),
+					ms(taken.percentile(99.9)), ms(taken.max()));
+				last = now;
+			}
+			for(Thread t : threads)
+			{
+				t.join();
+			}
+
+			double elapsed = (System.nanoTime() - started) / 1e9;
+			System.out.printf("%n%-24s %10s %10s %10s %10s %10s %8s%n", "operation", "ops/s", "p50", "p99", "p99.9",
+				"max", "errors");
+			for(int op = 1; op < OPERATIONS.length; ++op)
+			{
+				LatencyHistogram h = perOperation[op];
+				if(h.count() == 0)
+				{
+					continue;
+				}
+				System.out.printf("%-24s %10.0f %10s %10s %10s %10s %8d%n", OPERATIONS[op], h.count() / elapsed,
+					ms(h.percentile(50)), ms(h.percentile(99)), ms(h.percentile(99.9)), ms(h.max()), errors.get(op));
+			}
+			// round trips and statements behind each operation
+			System.out.print(Metrics.report());
+		}
+		finally
+		{
+			esql.cleanup();
+			System.out.println();
+		}
+	}
+
+	/**
+	 * The inputs of one client thread.
+	 */
+	static class Client
+	{
+		// listings are formatted as for a terminal, then dropped
+		static final PrintStream NOWHERE = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		});
+
+		final AirBooking esql;
+		final TypedResult flights;
+		final TypedResult passengers;
+		final RouteUpserter routes;
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		Client(AirBooking esql, TypedResult flights, TypedResult passengers)
+		{
+			this.esql = esql;
+			this.flights = flights;
+			this.passengers = passengers;
+			this.routes = new RouteUpserter(esql);
+		}
+
+		void run(int op) throws Exception
+		{
+			int f = this.random.nextInt(this.flights.size());
+			int p = this.random.nextInt(this.passengers.size());
+			String flightnum = this.flights.getString(f, 1).trim();
+			String origin = this.flights.getString(f, 2).trim();
+			String destination = this.flights.getString(f, 3).trim();
+			switch(op)
+			{
+				case 1:
+					this.esql.addPassenger(pick(this.random, FIRST_NAMES) + " " + pick(this.random, LAST_NAMES),
+						LocalDate.of(1950, 1, 1).plusDays(this.random.nextInt(365 * 50)).toString(),
+						pick(this.random, COUNTRIES), passport(this.random.nextLong(this.passengers.size(), PASSPORTS)));
+					break;
+				case 2:
+					this.esql.bookFlight(date(), flightnum, this.passengers.getString(p, 1).trim());
+					break;
+				case 3:
+					this.esql.takeCustomerReview(Integer.toString(this.passengers.getInt(p, 0)), flightnum,
+						Integer.toString(this.random.nextInt(6)), "load test");
+					break;
+				case 4:
+					// writes the flight back unchanged
+					this.routes.upsert(Collections.singletonList(new RouteUpserter.Route(this.flights.getInt(f, 0),
+						flightnum, origin, destination, this.flights.getString(f, 4).trim(), this.flights.getInt(f, 5),
+						this.flights.getInt(f, 6))));
+					break;
+				case 5:
+					this.esql.listFlightsBetween(NOWHERE, origin, destination);
+					break;
+				case 6:
+					this.esql.listMostPopularDestinations(NOWHERE, 10);
+					break;
+				case 7:
+					this.esql.listHighestRatedRoutes(NOWHERE, 10);
+					break;
+				case 8:
+					this.esql.listFlightsInOrderOfDuration(NOWHERE, origin, destination, 5);
+					break;
+				case 9:
+					this.esql.findAvailableSeats(flightnum, date());
+					break;
+			}
+		}
+
+		String date()
+		{
+			return FIRST_DAY.plusDays(this.random.nextInt(DAYS)).toString();
+		}
+
+		static String pick(ThreadLocalRandom random, String[] values)
+		{
+			return values[random.nextInt(values.length)];
+		}
+	}
+
+	// cumulative weights by operation, from "op:weight,..."
+	static int[] weights(String mix)
+	{
+		int[] weights = new int[OPERATIONS.length];
+		for(String part : mix.split(","))
+		{
+			String[] kv = part.trim().split(":");
+			int op = Integer.parseInt(kv[0].trim());
+			if(op < 1 || op >= OPERATIONS.length)
+			{
+				throw new IllegalArgumentException("No operation " + op + " in the mix");
+			}
+			weights[op] = Integer.parseInt(kv[1].trim());
+		}
+		for(int op = 1; op < weights.length; ++op)
+		{
+			weights[op] += weights[op - 1];
+		}
+		if(weights[weights.length - 1] <= 0)
+		{
+			throw new IllegalArgumentException("The mix has no weight");
+		}
+		return weights;
+	}
+
+	static int choose(int[] cumulative)
+	{
+		int r = ThreadLocalRandom.current().nextInt(cumulative[cumulative.length - 1]);
+		int op = 1;
+		while(cumulative[op] <= r)
+		{
+			++op;
+		}
+		return op;
+	}
+
+	static String ms(long nanos)
+	{
+		return String.format("%.2fms", nanos / 1e6);
+	}
+}
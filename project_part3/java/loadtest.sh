@@ -0,0 +1,10 @@
+#! /bin/bash
+# Builds the application with bench/ and runs the load driver.
+# Example: source ./loadtest.sh generate /tmp/data10 10    ten times data/
+#          source ./loadtest.sh run flightDB 5432 user /tmp/data10
+#                                                   loads the empty tables, then
+#                                                   replays the mix, writes: use a scratch database
+# Settings: JAVA_OPTS="-Dloaddriver.clients=32 -Dloaddriver.mix=2:50,9:50 -Dairbooking.pool.maxSize=32"
+rm -rf bin/*.class
+javac -cp "lib/postgresql-42.1.4.jar" src/*.java bench/*.java -d bin/
+java $JAVA_OPTS -cp lib/*:bin/ LoadDriver "$@"
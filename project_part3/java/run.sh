@@ -4,4 +4,5 @@ PORT=$2
 USER=$3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ AirBooking $DBNAME $PORT $USER
+# Service: source ./run.sh flightDB 5432 user serve 8080
+java $JAVA_OPTS -cp lib/*:bin/ AirBooking $DBNAME $PORT $USER "${@:4}"
@@ -10,20 +10,32 @@
  *
  */
 
-import java.sql.DriverManager;
+import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.sql.Date;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.Scanner; // read in string inputs for queries
-import java.util.Random; // generate random nums
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,49 +44,298 @@ import java.util.Random; // generate random nums
  */
 public class AirBooking
 {
-	// reference to physical database connection
-	private Connection _connection = null;
+	// rows fetched per round trip by executeQueryStreaming
+	static final int FETCH_SIZE = Integer.getInteger("airbooking.fetchSize", 1000);
+	// the menu operations by number, as they are named in the Metrics; 10 is EXIT
+	static final String[] OPERATIONS = { null, "AddPassenger", "BookFlight", "TakeCustomerReview",
+		"InsertOrUpdateRoute", "ListFlightsBetween", "ListMostPopularDestinations", "ListHighestRatedRoutes",
+		"ListFlightsByDuration", "FindAvailableSeats", null, "FindConnectingFlights" };
+	// pool of physical database connections, each with its prepared statements
+	private ConnectionPool _pool = null;
+	private boolean _closed = false;
+	// runs the work of withConnectionAsync, created on first use
+	private ExecutorService _async = null;
+	// key generators for new passengers and ratings
+	private final IdAllocator _passengerIds = new IdAllocator(this, "passenger_pid_seq");
+	private final IdAllocator _ratingIds = new IdAllocator(this, "ratings_rid_seq");
+	private final BookRefGenerator _bookRefs = new BookRefGenerator();
+	private final GroupBooking _groups = new GroupBooking(this);
+	// write-behind bookings, null unless -Dairbooking.writeBehind=true
+	private volatile BookingLedger _ledger = null;
+	// seats left per flight and date, null when -Dairbooking.seatCache=false
+	private final SeatInventory _seats =
+		Boolean.parseBoolean(System.getProperty("airbooking.seatCache", "true")) ? new SeatInventory(this) : null;
+	// flights per destination, ranked, null when -Dairbooking.destinationIndex=false
+	private final DestinationIndex _destinations =
+		Boolean.parseBoolean(System.getProperty("airbooking.destinationIndex", "true")) ? new DestinationIndex(this) : null;
+	// score totals per flight, ranked, null when -Dairbooking.ratingIndex=false
+	private final RouteRatings _ratings =
+		Boolean.parseBoolean(System.getProperty("airbooking.ratingIndex", "true")) ? new RouteRatings(this) : null;
+	// flights per (origin, destination) by duration, null when -Dairbooking.routeIndex=false
+	private final RouteIndex _routes =
+		Boolean.parseBoolean(System.getProperty("airbooking.routeIndex", "true")) ? new RouteIndex(this) : null;
+	// connecting flights over the route graph
+	private final ItinerarySearch _itineraries = new ItinerarySearch(this, this._seats);
+	// flights and passengers already looked up by the validation helpers
+	private final ReferenceCache _refs = new ReferenceCache(this);
+	// keeps passengers, bookings and reviews while the database is down, null when -Dairbooking.offline=false
+	private final OfflineCapture _capture = Boolean.parseBoolean(System.getProperty("airbooking.offline", "true"))
+		? new OfflineCapture(this, this._refs, this._ratings) : null;
+	// call the functions of sql/procedures.sql, one round trip per operation, with -Dairbooking.procedures=true
+	private final boolean _procedures = Boolean.getBoolean("airbooking.procedures");
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	static Scanner str_get = new Scanner(System.in); // create a scanner to get stuff for queries
 	
+	/**
+	 * Creates an instance without a database, for the helpers that do not need
+	 * one (see bench/Bench.java).
+	 */
+	AirBooking()
+	{
+	}
+	
 	public AirBooking(String dbname, String dbport, String user, String passwd) throws SQLException 
 	{
 		System.out.print("Connecting to database...");
 		try
 		{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			// batched INSERTs are sent as multi-row statements (see RouteUpserter)
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?reWriteBatchedInserts=true";
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// creates the pool and opens the first physical connection
+			this._pool = new ConnectionPool(url, user, passwd);
+			Metrics.register("pool", this._pool);
+			Metrics.register("lookup cache", this._refs);
+			this._pool.release(this._pool.borrow());
 	        System.out.println("Done");
 		}
 		catch(Exception e)
 		{
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
+			if(this._pool == null || this._capture == null)
+			{
+				System.exit(-1);
+			}
+			// the menu keeps taking passengers, bookings and reviews (see OfflineCapture)
+			this._capture.goOffline();
+		}
+		if(this._capture != null)
+		{
+			Metrics.register("offline", this._capture);
+		}
+		if(!isOffline())
+		{
+			reconnected();
+			if(this._capture != null)
+			{
+				// whatever an earlier run kept while it was offline
+				this._capture.recover();
+			}
+		}
+	}
+	
+	/**
+	 * Method to tell whether the database is unreachable and new passengers,
+	 * bookings and reviews are kept locally.
+	 */
+	public boolean isOffline()
+	{
+		return this._capture != null && this._capture.isOffline();
+	}
+	
+	/**
+	 * Method to set up what needs the database, once it can be reached.
+	 */
+	synchronized void reconnected() throws SQLException
+	{
+		// continue above the references this node handed out in earlier runs
+		TypedResult last = executeQueryTyped(LAST_BOOK_REF_SQL, this._bookRefs.lowest(), this._bookRefs.highest());
+		if(last.size() > 0 && !last.isNull(0, 0))
+		{
+			this._bookRefs.issued(last.getString(0, 0));
+		}
+		if(this._ledger == null && Boolean.getBoolean("airbooking.writeBehind"))
+		{
+			this._ledger = new BookingLedger(this);
+			Metrics.register("ledger", this._ledger);
+		}
+	}
+	
+	/**
+	 * Method to tell whether the validation helpers leave their lookups to
+	 * the write itself: while offline, and when the server side functions
+	 * check the passport and flight in the same round trip.
+	 */
+	public boolean checksOnWrite()
+	{
+		return this._procedures || isOffline();
+	}
+	
+	// true when the operations call the functions of sql/procedures.sql
+	boolean usesProcedures()
+	{
+		return this._procedures;
+	}
+	
+	// true when the failure was a lost connection and the operation can be kept offline
+	private boolean lostConnection(Throwable e)
+	{
+		return this._capture != null && this._capture.lostConnection(e);
+	}
+	
+	/**
+	 * Work that runs against one borrowed connection.
+	 */
+	public interface ConnectionWork<T>
+	{
+		T run(PooledConnection conn) throws SQLException;
+	}
+	
+	/**
+	 * Method to run some work on a connection borrowed from the pool.  The
+	 * connection is given back afterwards, or discarded if it broke.
+	 * 
+	 * @param work the statements to run on the connection
+	 * @return whatever the work returns
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withConnection(ConnectionWork<T> work) throws SQLException
+	{
+		PooledConnection conn = this._pool.borrow();
+		try
+		{
+			return work.run(conn);
+		}
+		catch(SQLException e)
+		{
+			conn.failed(e);
+			throw e;
+		}
+		finally
+		{
+			this._pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Method to run some work on a pooled connection in the background, so
+	 * that independent statements wait for the database at the same time
+	 * instead of one after the other.  The work runs on one of as many
+	 * threads as the pool has connections.  Its statements are timed per
+	 * statement, but not counted against the caller's operation.
+	 * 
+	 * @param work the statements to run on the connection
+	 * @return what the work returns; a failure completes it with a
+	 *         CompletionException around the SQLException, see await()
+	 */
+	public <T> CompletableFuture<T> withConnectionAsync(final ConnectionWork<T> work)
+	{
+		return CompletableFuture.supplyAsync(() -> {
+			try
+			{
+				return withConnection(work);
+			}
+			catch(SQLException e)
+			{
+				throw new CompletionException(e);
+			}
+		}, async());
+	}
+	
+	/**
+	 * Same as executeQueryTyped(), in the background.
+	 */
+	public CompletableFuture<TypedResult> executeQueryTypedAsync(final String query, final Object... params)
+	{
+		return withConnectionAsync(conn -> executeQueryTyped(conn, query, params));
+	}
+	
+	/**
+	 * Method to run independent queries in one round trip, in the background
+	 * (see Pipeline).
+	 * 
+	 * @return one result per query, in the order they were added
+	 */
+	public CompletableFuture<List<TypedResult>> executePipelined(final Pipeline pipeline)
+	{
+		return withConnectionAsync(pipeline::run);
+	}
+	
+	/**
+	 * Method to wait for a future of the methods above.
+	 * 
+	 * @return its result
+	 * @throws java.sql.SQLException the failure of the work
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws SQLException
+	{
+		try
+		{
+			return future.join();
+		}
+		catch(CompletionException e)
+		{
+			if(e.getCause() instanceof SQLException)
+			{
+				throw (SQLException) e.getCause();
+			}
+			throw e;
 		}
 	}
 	
+	private synchronized ExecutorService async()
+	{
+		if(this._async == null)
+		{
+			final AtomicInteger threads = new AtomicInteger();
+			this._async = Executors.newFixedThreadPool(this._pool.getMaxSize(), new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "airbooking-async-" + threads.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return this._async;
+	}
+	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, '?' marks a bound parameter
+	 * @param params the values bound to the '?' placeholders in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate(String sql) throws SQLException 
+	public int executeUpdate(final String sql, final Object... params) throws SQLException 
+	{ 
+		return withConnection(conn -> executeUpdate(conn, sql, params));
+	}// end executeUpdate
+	
+	public static int executeUpdate(PooledConnection conn, String sql, Object... params) throws SQLException 
 	{ 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		// fetches the prepared statement for this sql from the cache
+		PreparedStatement stmt = conn.statements.prepare(sql);
+		bind(stmt, params);
 
 		// issues the update instruction
-		stmt.executeUpdate(sql);
-
-		// close the instruction
-	    stmt.close();
+		long start = System.nanoTime();
+		int rows = -1;
+		try
+		{
+			rows = stmt.executeUpdate();
+			return rows;
+		}
+		finally
+		{
+			Metrics.sql(sql, start, rows, 1);
+		}
 	}// end executeUpdate
 
 	/**
@@ -82,66 +343,262 @@ public class AirBooking
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, '?' marks a bound parameter
+	 * @param params the values bound to the '?' placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult(String query) throws SQLException 
+	public int executeQueryAndPrintResult(String query, Object... params) throws SQLException 
 	{
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  
-		 *  The metadata contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData();
-		int numCol = rsmd.getColumnCount();
-		int rowCount = 0;
-		
-		// iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while(rs.next())
-		{
-			if(outputHeader)
+		return executeQueryAndPrintResult(System.out, query, params);
+	}
+	
+	/**
+	 * Same as above, but outputs the results to the given stream.
+	 * 
+	 * @param out where the header and rows are printed
+	 * @param query the input query string, '?' marks a bound parameter
+	 * @param params the values bound to the '?' placeholders in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult(final PrintStream out, final String query, final Object... params) throws SQLException 
+	{
+		return withConnection(conn -> executeQueryAndPrintResult(conn, out, query, params));
+	}
+	
+	public static int executeQueryAndPrintResult(PooledConnection conn, final PrintStream out, String query, Object... params) throws SQLException 
+	{
+		// iterates through the result set and output them to the stream.
+		final boolean[] outputHeader = { true };
+		RowHandler printer = rs -> {
+			/*
+			 *  obtains the metadata object for the returned result set.  
+			 *  The metadata contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			if(outputHeader[0])
 			{
 				for(int i = 1; i <= numCol; i++)
 				{
-					System.out.print(rsmd.getColumnName(i) + "\t");
+					out.print(rsmd.getColumnName(i) + "\t");
 			    }
-			    System.out.println();
-			    outputHeader = false;
+			    out.println();
+			    outputHeader[0] = false;
 			}
 			for(int i=1; i<=numCol; ++i)
 			{
-				System.out.print(rs.getString(i) + "\t");
+				out.print(rs.getString(i) + "\t");
 			}
-			System.out.println();
-			++rowCount;
-		}// end while
-		stmt.close();
+			out.println();
+		};
+		// the report functions of sql/procedures.sql return a few rows, they are
+		// read at once so the call stays one round trip, without a cursor
+		long rowCount = query.startsWith("{") ? forEachRow(conn, 0, query, printer, params)
+			: executeQueryStreaming(conn, query, printer, params);
+		return (int) rowCount;
+	}
+	
+	/**
+	 * Callback that is handed the rows of a streamed query one at a time.
+	 */
+	public interface RowHandler
+	{
+		/**
+		 * @param rs the result set positioned on the current row, only valid
+		 *           during the call
+		 */
+		void row(ResultSet rs) throws SQLException;
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+	 * every row to a callback as it arrives.  The rows are fetched through a
+	 * cursor, airbooking.fetchSize (default 1000) at a time, so memory stays
+	 * flat however large the result is.
+	 * 
+	 * @param query the input query string, '?' marks a bound parameter
+	 * @param handler called once for every row
+	 * @param params the values bound to the '?' placeholders in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryStreaming(final String query, final RowHandler handler, final Object... params) throws SQLException 
+	{
+		return withConnection(conn -> executeQueryStreaming(conn, query, handler, params));
+	}
+	
+	public static long executeQueryStreaming(final PooledConnection conn, final String query, final RowHandler handler, final Object... params) throws SQLException 
+	{
+		// PgJDBC only fetches through a cursor inside a transaction
+		return inTransaction(conn, c -> forEachRow(c, FETCH_SIZE, query, handler, params));
+	}
+	
+	/**
+	 * Method to run some work on a connection as one transaction.  It is
+	 * committed when the work returns and rolled back when it throws.  A
+	 * connection that is already inside a transaction is left to its owner.
+	 *
+	 * @param conn a borrowed connection
+	 * @param work what to run in the transaction
+	 * @return what the work returned
+	 * @throws java.sql.SQLException when the work or the commit failed
+	 */
+	public static <T> T inTransaction(PooledConnection conn, ConnectionWork<T> work) throws SQLException
+	{
+		Connection c = conn.connection;
+		boolean autoCommit = c.getAutoCommit();
+		if(autoCommit)
+		{
+			c.setAutoCommit(false);
+		}
+		try
+		{
+			T result = work.run(conn);
+			if(autoCommit)
+			{
+				long start = System.nanoTime();
+				c.commit();
+				Metrics.sql("COMMIT", start, 0, 1);
+			}
+			return result;
+		}
+		catch(SQLException | RuntimeException e)
+		{
+			if(autoCommit)
+			{
+				try
+				{
+					long start = System.nanoTime();
+					c.rollback();
+					Metrics.sql("ROLLBACK", start, 0, 1);
+				}
+				catch(SQLException ignored)
+				{
+					conn.discard();
+				}
+			}
+			throw e;
+		}
+		finally
+		{
+			if(autoCommit)
+			{
+				try
+				{
+					c.setAutoCommit(true);
+				}
+				catch(SQLException e)
+				{
+					// never hand out a connection stuck in a transaction
+					conn.discard();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Method to run a query and hand every row to a callback, in whatever
+	 * transaction state the connection is in.
+	 * 
+	 * @param fetchSize rows per round trip, 0 reads the whole result at once
+	 * @return the number of rows returned
+	 */
+	static long forEachRow(PooledConnection conn, int fetchSize, String query, RowHandler handler, Object... params) throws SQLException
+	{
+		// fetches the prepared statement for this query from the cache, a
+		// "{call f(?)}" runs a set returning function
+		PreparedStatement stmt = query.startsWith("{") ? conn.statements.prepareCall(query)
+			: conn.statements.prepare(query);
+		bind(stmt, params);
+		stmt.setFetchSize(fetchSize);
+		
+		// issues the query instruction
+		long start = System.nanoTime();
+		long rowCount = 0;
+		boolean done = false;
+		try
+		{
+			ResultSet rs = stmt.executeQuery();
+			try
+			{
+				while(rs.next())
+				{
+					handler.row(rs);
+					++rowCount;
+				}
+			}
+			finally
+			{
+				rs.close();
+			}
+			done = true;
+		}
+		finally
+		{
+			Metrics.sql(query, start, done ? rowCount : -1, Metrics.fetches(rowCount, fetchSize));
+		}
 		return rowCount;
 	}
 	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results decoded
+	 * into typed columns: integers as int, count(*) as long, AVG() as double.
+	 * Meant for small results, it is one round trip; decode large scans by
+	 * passing a TypedResult to executeQueryStreaming instead.
+	 * 
+	 * @param query the input query string, '?' marks a bound parameter
+	 * @param params the values bound to the '?' placeholders in order
+	 * @return the query result in typed columns
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public TypedResult executeQueryTyped(final String query, final Object... params) throws SQLException 
+	{
+		return withConnection(conn -> executeQueryTyped(conn, query, params));
+	}
+	
+	public static TypedResult executeQueryTyped(PooledConnection conn, String query, Object... params) throws SQLException 
+	{
+		TypedResult result = new TypedResult();
+		forEachRow(conn, 0, query, result, params);
+		return result;
+	}
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, '?' marks a bound parameter
+	 * @param params the values bound to the '?' placeholders in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException 
+	public List<List<String>> executeQueryAndReturnResult(final String query, final Object... params) throws SQLException 
+	{ 
+		return withConnection(conn -> executeQueryAndReturnResult(conn, query, params));
+	}// end executeQueryAndReturnResult
+	
+	public static List<List<String>> executeQueryAndReturnResult(PooledConnection conn, String query, Object... params) throws SQLException 
 	{ 
-		// creates a statement object 
-		Statement stmt = this._connection.createStatement(); 
+		// fetches the prepared statement for this query from the cache
+		PreparedStatement stmt = conn.statements.prepare(query);
+		bind(stmt, params);
 		
 		// issues the query instruction 
-		ResultSet rs = stmt.executeQuery(query); 
+		long start = System.nanoTime();
+		ResultSet rs;
+		try
+		{
+			rs = stmt.executeQuery();
+		}
+		catch(SQLException e)
+		{
+			Metrics.sql(query, start, -1, 1);
+			throw e;
+		}
 	 
 		/*
 		 * obtains the metadata object for the returned result set.  
@@ -149,10 +606,8 @@ public class AirBooking
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData(); 
 		int numCol = rsmd.getColumnCount(); 
-		int rowCount = 0; 
 	 
 		// iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
 		while(rs.next())
 		{
@@ -163,7 +618,8 @@ public class AirBooking
 			} 
 			result.add(record); 
 		}// end while 
-		stmt.close(); 
+		rs.close(); 
+		Metrics.sql(query, start, result.size(), 1);
 		return result; 
 	}// end executeQueryAndReturnResult
 	
@@ -171,17 +627,34 @@ public class AirBooking
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, '?' marks a bound parameter
+	 * @param params the values bound to the '?' placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery(String query) throws SQLException 
+	public int executeQuery(final String query, final Object... params) throws SQLException 
 	{
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+		return withConnection(conn -> executeQuery(conn, query, params));
+	}
+	
+	public static int executeQuery(PooledConnection conn, String query, Object... params) throws SQLException 
+	{
+		// fetches the prepared statement for this query from the cache
+		PreparedStatement stmt = conn.statements.prepare(query);
+		bind(stmt, params);
 
 		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
+		long start = System.nanoTime();
+		ResultSet rs;
+		try
+		{
+			rs = stmt.executeQuery();
+		}
+		catch(SQLException e)
+		{
+			Metrics.sql(query, start, -1, 1);
+			throw e;
+		}
 
 		int rowCount = 0;
 
@@ -190,48 +663,171 @@ public class AirBooking
 		{
 			rowCount++;
 		}// end while
-		stmt.close();
+		rs.close();
+		Metrics.sql(query, start, rowCount, 1);
 		return rowCount;
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  currval is per
+	 * session, so it only sees a nextval issued on the same pooled
+	 * connection; use the overload taking a connection for that.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int getCurrSeqVal(String sequence) throws SQLException 
+	public int getCurrSeqVal(final String sequence) throws SQLException 
+	{
+		return withConnection(conn -> getCurrSeqVal(conn, sequence));
+	}
+	
+	public static int getCurrSeqVal(PooledConnection conn, String sequence) throws SQLException 
+	{
+		PreparedStatement stmt = conn.statements.prepare("Select currval(?::regclass)");
+		stmt.setString(1, sequence);
+		
+		long start = System.nanoTime();
+		int rows = -1;
+		ResultSet rs = stmt.executeQuery();
+		try
+		{
+			if(rs.next()) 
+			{
+				rows = 1;
+				return rs.getInt(1);
+			}
+			rows = 0;
+			return -1;
+		}
+		finally
+		{
+			rs.close();
+			Metrics.sql("Select currval(?::regclass)", start, rows, 1);
+		}
+	}
+	
+	/**
+	 * Method to advance a sequence and return its new value.  Unlike
+	 * currval this works on any pooled connection.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return the next value of the sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long getNextSeqVal(final String sequence) throws SQLException 
+	{
+		return withConnection(conn -> getNextSeqVal(conn, sequence));
+	}
+	
+	public static long getNextSeqVal(PooledConnection conn, String sequence) throws SQLException 
 	{
-		Statement stmt = this._connection.createStatement();
+		PreparedStatement stmt = conn.statements.prepare("Select nextval(?::regclass)");
+		stmt.setString(1, sequence);
 		
-		ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-		if(rs.next()) 
+		long start = System.nanoTime();
+		ResultSet rs = stmt.executeQuery();
+		try
+		{
+			rs.next();
+			return rs.getLong(1);
+		}
+		finally
+		{
+			rs.close();
+			Metrics.sql("Select nextval(?::regclass)", start, 1, 1);
+		}
+	}
+	
+	/**
+	 * Method to bind positional parameters to a prepared statement.  Dates
+	 * must be passed as java.sql.Date so they bind as DATE and not text.
+	 * 
+	 * @param stmt the prepared statement
+	 * @param params the values for the '?' placeholders in order
+	 * @throws java.sql.SQLException when a value can not be bound
+	 */
+	static void bind(PreparedStatement stmt, Object[] params) throws SQLException
+	{
+		for(int i = 0; i < params.length; ++i)
 		{
-			return rs.getInt(1);
+			stmt.setObject(i + 1, params[i]);
 		}
-		return -1;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to call a server side function that returns one integer (see
+	 * sql/procedures.sql) through a CallableStatement, in one round trip.
+	 * 
+	 * @param call the call in JDBC escape syntax, e.g. "{? = call f(?, ?)}"
+	 * @param params the values bound to the arguments in order
+	 * @return what the function returned, null for NULL
+	 * @throws java.sql.SQLException when the call failed
 	 */
-	public void cleanup()
+	public Integer callFunction(final String call, final Object... params) throws SQLException
+	{
+		return withConnection(conn -> callFunction(conn, call, params));
+	}
+	
+	public static Integer callFunction(PooledConnection conn, String call, Object... params) throws SQLException
 	{
+		CallableStatement stmt = conn.statements.prepareCall(call);
+		stmt.registerOutParameter(1, Types.INTEGER);
+		// the first '?' is the result, the arguments follow it
+		for(int i = 0; i < params.length; ++i)
+		{
+			stmt.setObject(i + 2, params[i]);
+		}
+		
+		long start = System.nanoTime();
+		boolean done = false;
 		try
 		{
-			if(this._connection != null)
-			{
-				this._connection.close();
-				str_get.close(); // close the scanner that we made for queries
-			}// end if
+			stmt.execute();
+			done = true;
 		}
-		catch(SQLException e)
+		finally
+		{
+			Metrics.sql(call, start, done ? 1 : -1, 1);
+		}
+		int value = stmt.getInt(1);
+		return stmt.wasNull() ? null : value;
+	}
+	
+	/**
+	 * Method to close the connection pool if it is open.
+	 */
+	public synchronized void cleanup()
+	{
+		if(this._pool != null && !this._closed)
 		{
-	         // ignored.
-		}// end try
+			this._closed = true;
+			if(this._ledger != null)
+			{
+				// writes what is still queued
+				this._ledger.close();
+				System.out.print("(" + this._ledger + ") ");
+			}
+			if(this._capture != null)
+			{
+				// what is still kept is applied on the next start
+				this._capture.close();
+				System.out.print("(" + this._capture + ") ");
+			}
+			if(this._async != null)
+			{
+				this._async.shutdown();
+			}
+			this._pool.close();
+			System.out.print("(" + this._pool + ") (" + this._refs + ") ");
+			if(Metrics.DUMP_SECONDS > 0)
+			{
+				System.err.print(Metrics.report());
+			}
+			str_get.close(); // close the scanner that we made for queries
+		}// end if
 	}// end cleanup
 
 	/**
@@ -242,12 +838,12 @@ public class AirBooking
 	 
 	public static void main(String[] args) 
 	{
-		if(args.length != 3) 
+		if(args.length < 3) 
 		{
 			System.err.println(
 				"Usage: " + "java [-classpath <classpath>] " + 
 				AirBooking.class.getName() +
-		        " <dbname> <port> <user>");
+		        " <dbname> <port> <user> [serve [<http port>] | load [<data dir>] | routes <schedule.csv>...]");
 			return;
 		}//end if
 		
@@ -272,6 +868,12 @@ public class AirBooking
 			
 			esql = new AirBooking(dbname, dbport, user, "");
 			
+			if(args.length > 3)
+			{
+				runMode(esql, args);
+				return;
+			}
+			
 			boolean keepon = true;
 			while(keepon)
 			{
@@ -287,19 +889,34 @@ public class AirBooking
 				System.out.println("8. List Flights to Destination in order of Duration");
 				System.out.println("9. Find Number of Available Seats on a given Flight");
 				System.out.println("10. < EXIT");
+				System.out.println("11. Find Connecting Flights");
 				
-				switch(readChoice())
+				int choice = readChoice();
+				// counts the lookups of the input checks too, the time includes typing
+				boolean failed = true;
+				Metrics.begin(choice > 0 && choice < OPERATIONS.length && OPERATIONS[choice] != null
+					? OPERATIONS[choice] : "Menu");
+				try
+				{
+					switch(choice)
+					{
+						case 1:  AddPassenger(esql); break;
+						case 2:  BookFlight(esql); break;
+						case 3:  TakeCustomerReview(esql); break;
+						case 4:  InsertOrUpdateRouteForAirline(esql); break;
+						case 5:  ListAvailableFlightsBetweenOriginAndDestination(esql); break;
+						case 6:  ListMostPopularDestinations(esql); break;
+						case 7:  ListHighestRatedRoutes(esql); break;
+						case 8:  ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
+						case 9:  FindNumberOfAvailableSeatsForFlight(esql); break;
+						case 10: keepon = false; break;
+						case 11: FindConnectingFlights(esql); break;
+					}
+					failed = false;
+				}
+				finally
 				{
-					case 1:  AddPassenger(esql); break;
-					case 2:  BookFlight(esql); break;
-					case 3:  TakeCustomerReview(esql); break;
-					case 4:  InsertOrUpdateRouteForAirline(esql); break;
-					case 5:  ListAvailableFlightsBetweenOriginAndDestination(esql); break;
-					case 6:  ListMostPopularDestinations(esql); break;
-					case 7:  ListHighestRatedRoutes(esql); break;
-					case 8:  ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
-					case 9:  FindNumberOfAvailableSeatsForFlight(esql); break;
-					case 10: keepon = false; break;
+					Metrics.end(failed);
 				}
 			}
 		}
@@ -325,6 +942,48 @@ public class AirBooking
 		}
 	}
 
+	/**
+	 * Method to run one of the non-interactive modes named after the
+	 * connection arguments instead of the menu.
+	 * 
+	 * @param esql the connected AirBooking
+	 * @param args the command line arguments, args[3] is the mode
+	 */
+	public static void runMode(final AirBooking esql, String[] args) throws Exception
+	{
+		String mode = args[3];
+		if(mode.equals("serve"))
+		{
+			int httpPort = args.length > 4 ? Integer.parseInt(args[4]) : 8080;
+			final BookingServer server = new BookingServer(esql, httpPort);
+			server.start();
+			System.out.println("Serving on http://" + server.getAddress().getHostString() + ":" + httpPort + "/ (Ctrl-C to stop)");
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.stop();
+				esql.cleanup();
+			}));
+			server.awaitTermination();
+		}
+		else if(mode.equals("load"))
+		{
+			File dir = new File(args.length > 4 ? args[4] : "../data");
+			long rows = new BulkLoader(esql).loadAll(dir);
+			System.out.println(rows + " rows loaded from " + dir);
+		}
+		else if(mode.equals("routes") && args.length > 4)
+		{
+			RouteUpserter upserter = new RouteUpserter(esql);
+			for(int i = 4; i < args.length; ++i)
+			{
+				upserter.upsertFile(new File(args[i]));
+			}
+		}
+		else
+		{
+			System.err.println("Unknown mode: " + mode);
+		}
+	}
+	
 	public static int readChoice() 
 	{
 		int input;
@@ -346,33 +1005,25 @@ public class AirBooking
 	}// end readChoice
 	
 	//-----------START of our own helper functions--------------
+	// the checks below scan the text without regex or exceptions (see InputCheck)
+	// while offline the lookups pass, the write ahead log is checked when it is applied
 	public boolean isNumeric(String s) {
-		return s != null && s.matches("[-+]?\\d*\\.?\\d+");  
-	}  // function from: https://stackoverflow.com/questions/14206768/how-to-check-if-a-string-is-numeric
+		return InputCheck.isNumber(s);
+	}
 	
 	public boolean isLeapYear(int year) {
-	  if (year % 4 != 0) {
-		return false;
-	  } else if (year % 400 == 0) {
-		return true;
-	  } else if (year % 100 == 0) {
-		return false;
-	  } else {
-		return true;
-	  }
-	}//function from: https://stackoverflow.com/questions/1021324/java-code-for-calculating-leap-year/1021373#1021373
+		return InputCheck.isLeapYear(year);
+	}
 	
 	public boolean pidIsValid(String pid){
-		if(!isNumeric(pid)){
+		int p = InputCheck.parseInt(pid, 0, Integer.MAX_VALUE);
+		if(p == InputCheck.INVALID){
 			System.out.println("Invalid pid");
 			return false;
 		}
-		String trashql = "SELECT pid FROM passenger WHERE pid = " + pid;
 		try
 		{
-			List<List<String>> returnval;
-			returnval = executeQueryAndReturnResult(trashql);
-			if(returnval.size() == 0)
+			if(!checksOnWrite() && this._refs.passNumOf(p) == null)
 			{
 				System.out.println("Invalid pid");
 				return false;
@@ -380,7 +1031,10 @@ public class AirBooking
 		}
 		catch(Exception e)
 		{
-			System.err.println(e.getMessage());
+			if(!lostConnection(e))
+			{
+				System.err.println(e.getMessage());
+			}
 		}
 		
 		return true;
@@ -388,278 +1042,631 @@ public class AirBooking
 
 	public boolean DateIsValid(String date)
 	{
+		return InputCheck.epochDay(date) != InputCheck.INVALID;
+	}
+	
+	public boolean scoreIsValid(String score){
+		return InputCheck.parseInt(score, 0, 5) != InputCheck.INVALID;
+	}
+	
+	public boolean flightNumIsValid(String flightNum){
 		try
 		{
-			String[] box = date.split("-");
-			if( box == null || box.length != 3 ){return false;}
-			int x1 = Integer.parseInt(box[0]); // year
-			int x2 = Integer.parseInt(box[1]); // month
-			int x3 = Integer.parseInt(box[2]); // day
-			
-			if(box[1].length() != 2 || box[2].length() != 2 || box[0].length() != 4){return false;}
-			
-			if(x2 >12 || x2 < 1){return false;}
-			
-			if(x2 == 1 || x2 == 3 || x2 == 5 || x2 == 7 || x2 == 8 || x2 == 10 || x2 == 12)
+			if(!checksOnWrite() && this._refs.flight(flightNum) == null)
 			{
-				if(x3 >31 || x3 < 1){return false;}
+				return false;
 			}
-			else if(x2 == 9 || x2 == 4 || x2 == 6 || x2 == 11){
-				if(x3 > 30 || x3 < 1)
-				{
-					return false;
-				}
+		}
+		catch(Exception e)
+		{
+			return lostConnection(e);
+		}
+		return true;
+	}
+	
+	public boolean isPassNumUnique(String passnum)
+	{
+		if(passnum.length() != 10){return false;}
+		
+		try
+		{
+			if(!checksOnWrite() && this._refs.pidOf(passnum) != null)
+			{
+				return false;
+			}
+			else
+			{
+				return true;
+			}
+		}
+		catch(Exception e)
+		{
+			return lostConnection(e);
+		}
+	}
+	
+	// next free pid, from the passenger_pid_seq sequence in blocks
+	public String getPid() throws SQLException
+	{	
+		return Integer.toString(this._passengerIds.nextId());
+	}
+	
+	// next free rid, from the ratings_rid_seq sequence in blocks
+	public String getRid() throws SQLException
+	{
+		return Integer.toString(this._ratingIds.nextId());
+	}
+	
+	// new booking reference, made locally without a lookup (see BookRefGenerator)
+	public String getBookRef()
+	{
+		return this._bookRefs.next();
+	}
+	
+	// a reference found in a local log, so getBookRef() does not hand it out again
+	void bookRefIssued(String bookref)
+	{
+		this._bookRefs.issued(bookref);
+	}
+	
+	public boolean doesPassNumExist(String passNum)
+	{
+		if(passNum.length() != 10){return false;}
+		
+		try
+		{
+			if(checksOnWrite() || this._refs.pidOf(passNum) != null)
+			{
+				return true;
+			}
+			else
+			{
+				return false;
 			}
-			else{
-				if(isLeapYear(x1)){					
-					if(x3 > 29 || x3 < 1)
-					{
-						return false;
-					} 
-				}
-				else{				
-					if(x3 > 28 || x3 < 1)
-					{
-						return false;
-					} 
-				}
-					
-				}
 		}
 		catch(Exception e)
 		{
+			if(lostConnection(e))
+			{
+				return true;
+			}
+			System.err.println(e.getMessage());
 			return false;
 		}
+	}
+	
+	public String getPidFromPassNum(String passport_number)
+	{
+		String pid = "-1";
+		try
+		{
+			Integer found = checksOnWrite() ? null : this._refs.pidOf(passport_number);
+			if(found != null)
+			{
+				pid = found.toString();
+			}
+		}
+		catch(Exception e)
+		{
+			if(!lostConnection(e))
+			{
+				System.err.println(e.getMessage());
+			}
+		}
+		return pid;
+	}
+	
+	/**
+	 * Same as getPidFromPassNum(), without waiting for the lookup, so that it
+	 * can run next to others.
+	 */
+	public CompletableFuture<String> getPidFromPassNumAsync(String passport_number)
+	{
+		if(checksOnWrite())
+		{
+			return CompletableFuture.completedFuture("-1");
+		}
+		return this._refs.pidOfAsync(passport_number).handle((found, e) -> {
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			if(cause != null && !lostConnection(cause))
+			{
+				System.err.println(cause.getMessage());
+			}
+			return found == null ? "-1" : found.toString();
+		});
+	}
+	
+	/**
+	 * Same as flightNumIsValid(), without waiting for the lookup.
+	 */
+	public CompletableFuture<Boolean> flightNumIsValidAsync(String flightNum)
+	{
+		if(checksOnWrite())
+		{
+			return CompletableFuture.completedFuture(true);
+		}
+		return this._refs.flightAsync(flightNum).handle((row, e) ->
+			e != null ? lostConnection(e instanceof CompletionException ? e.getCause() : e) : row != null);
+	}
+	
+	public boolean is_trashport(String pass)
+	{
+		for(int c = 0; c < pass.length(); c++) 
+		{
+			if(!Character.isLetter(pass.charAt(c)) || Character.isLowerCase(pass.charAt(c)) ) 
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+	
+	public boolean isValidBooking(String date, String flightnum, String pid)
+	{
+		String trashql = "SELECT * FROM booking WHERE departure = ? AND flightNum = ? AND pid = ?";
+		try
+		{
+			List<List<String>> r2 = executeQueryAndReturnResult(trashql, Date.valueOf(date), flightnum, Integer.parseInt(pid));
+			if(r2.size() > 0) // it exists
+			{
+				return false;
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println(e.getMessage());
+		}
 		return true;
 	}
 	
-	public boolean scoreIsValid(String score){
-		if(!isNumeric(score)){
-			return false;
+	/**
+	 * Method to pad a value with blanks the way a CHAR(width) column returns it.
+	 */
+	static String padChar(String value, int width)
+	{
+		if(value.length() >= width)
+		{
+			return value;
+		}
+		StringBuilder sb = new StringBuilder(width).append(value);
+		while(sb.length() < width)
+		{
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+	
+	public boolean isNumValid(String num){
+		return InputCheck.parseInt(num, 0, Integer.MAX_VALUE) != InputCheck.INVALID;
+	}
+	
+//-----------START of the operations shared by the menu and the service--------------
+	
+	// the id of a passenger or review kept offline, given out when it is applied
+	static final String PENDING = "pending";
+	
+	static final String ADD_PASSENGER_SQL =
+		"insert into passenger (pID,passNum,fullName,bdate,country) values (?, ?, ?, ?, ?)";
+	
+	static final String BOOK_FLIGHT_SQL = "SELECT book_flight(?, ?, ?, ?)";
+	
+	// the highest reference in a range of one node
+	static final String LAST_BOOK_REF_SQL =
+		"SELECT max(bookRef) FROM booking WHERE bookRef BETWEEN ?::char(10) AND ?::char(10)";
+	
+	static final String REVIEW_SQL =
+		"INSERT INTO ratings(rid, pid, flightnum, score, comment) VALUES(?, ?, ?, ?, ?)";
+	
+	static final String FLIGHTS_BETWEEN_SQL = "select " +
+		"f.flightNum, f.origin, f.destination, f.plane, f.duration " +
+		"from flight f where "+
+		"f.origin = ? and " +
+		"f.destination = ?";
+	
+	static final String POPULAR_DESTINATIONS_SQL = "SELECT f.destination, COUNT(f.destination)AS num_of " +
+		" FROM flight f " +
+		" GROUP BY f.destination " +
+		" ORDER BY num_of DESC, f.destination COLLATE \"C\" " +
+		" LIMIT ?";
+	
+	static final String HIGHEST_RATED_SQL =
+		"SELECT a.name, r.flightnum, f.origin, f.destination, f.plane, AVG(r.score) AS avg_score " + 
+		"FROM airline a, flight f, ratings r " +
+		"WHERE a.airid = f.airid AND f.flightnum = r.flightnum " +
+		"GROUP BY a.name, f.flightnum, r.flightnum " +
+		"ORDER BY avg_score DESC, r.flightnum COLLATE \"C\" "+
+		"LIMIT ?";
+	
+	static final String FLIGHTS_BY_DURATION_SQL =
+		"SELECT a.name, f.flightnum, f.origin, f.destination, f.plane, f.duration " +
+		"FROM airline a, flight f " +
+		"WHERE a.airid = f.airid AND f.origin = ? AND f.destination = ? " +
+		"ORDER BY f.duration, f.flightnum COLLATE \"C\" " +
+		"LIMIT ?";
+	
+	static final String FLIGHT_SEATS_SQL = "select seats from flight where flightnum = ?";
+	
+	static final String BOOKED_SEATS_SQL = "select count(*) " +
+		"from booking b " +
+		"where b.flightnum = ? and " +
+		"b.departure = ?";
+	
+	// the same operations as functions on the server, see sql/procedures.sql
+	static final String ADD_PASSENGER_CALL = "{? = call add_passenger(?, ?, ?, ?, ?)}";
+	
+	static final String BOOK_FLIGHT_CALL = "{? = call book_flight(?, ?, ?, ?)}";
+	
+	static final String REVIEW_CALL = "{? = call review_flight(?, ?, ?, ?, ?, ?)}";
+	
+	static final String FLIGHTS_BETWEEN_CALL = "{call flights_between(?, ?)}";
+	
+	static final String POPULAR_DESTINATIONS_CALL = "{call popular_destinations(?)}";
+	
+	static final String HIGHEST_RATED_CALL = "{call highest_rated_routes(?)}";
+	
+	static final String FLIGHTS_BY_DURATION_CALL = "{call flights_by_duration(?, ?, ?)}";
+	
+	static final String AVAILABLE_SEATS_CALL = "{? = call available_seats(?, ?)}";
+	
+	/**
+	 * Method to insert a passenger whose fields have already been checked.
+	 * While offline it is kept in the write ahead log instead.  With
+	 * -Dairbooking.procedures=true the add_passenger function checks the
+	 * passport, so the caller may skip isPassNumUnique.
+	 * 
+	 * @return the pid given to the new passenger, PENDING when kept offline
+	 * @throws java.sql.SQLException when the insert failed (e.g. duplicate passport)
+	 * @throws IllegalArgumentException when add_passenger found the passport taken
+	 */
+	public String addPassenger(String name, String dob, String country, String passNum) throws SQLException
+	{
+		if(this._capture != null && this._capture.addPassenger(name, dob, country, passNum))
+		{
+			return PENDING;
+		}
+		try
+		{
+			// this should be done by system automatically
+			int pid = this._passengerIds.nextId();
+			if(!this._procedures)
+			{
+				executeUpdate(ADD_PASSENGER_SQL, pid, passNum, name, Date.valueOf(dob), country);
+			}
+			else if(callFunction(ADD_PASSENGER_CALL, pid, passNum, name, Date.valueOf(dob), country) != 0)
+			{
+				throw new IllegalArgumentException("Invalid Passport number");
+			}
+			this._refs.passengerAdded(pid, passNum);
+			return Integer.toString(pid);
+		}
+		catch(SQLException e)
+		{
+			if(lostConnection(e) && this._capture.addPassenger(name, dob, country, passNum))
+			{
+				return PENDING;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Method to book a flight for the passenger with the given passport.
+	 * Resolving the passport, the uniqueness and seat checks and the insert
+	 * all happen atomically in the book_flight function (sql/procedures.sql),
+	 * so a booking is one round trip and a flight can not be overbooked.
+	 * With -Dairbooking.writeBehind=true it is taken by the BookingLedger
+	 * instead and written to the database in the background.  While offline
+	 * it is kept in the write ahead log, booked with the reference it will
+	 * get, and checked when it is applied.
+	 * 
+	 * @return the outcome, with the booking reference when it was booked
+	 * @throws java.sql.SQLException when the call failed
+	 */
+	public BookingResult bookFlight(String date, String flightnum, String passNum) throws SQLException
+	{
+		String kept = this._capture == null ? null : this._capture.book(date, flightnum, passNum);
+		if(kept != null)
+		{
+			return new BookingResult(BookingResult.Outcome.BOOKED, kept);
 		}
-		
 		try
 		{
-			int score2 = Integer.parseInt(score);
-			if(score2 < 0 || score2 > 5)
-			{
-				return false;
-			}
-			return true;
+			return book(date, flightnum, passNum);
 		}
-		catch(Exception e)
+		catch(SQLException e)
 		{
-			return false;
+			if(lostConnection(e) && (kept = this._capture.book(date, flightnum, passNum)) != null)
+			{
+				return new BookingResult(BookingResult.Outcome.BOOKED, kept);
+			}
+			throw e;
 		}
 	}
 	
-	public boolean flightNumIsValid(String flightNum){
-		String trashql = "SELECT * FROM flight f WHERE f.flightNum = '" + flightNum + "';";
-		try
+	private BookingResult book(String date, String flightnum, String passNum) throws SQLException
+	{
+		BookingLedger ledger = this._ledger;
+		if(ledger != null)
 		{
-			List<List<String>> returnval;
-			returnval = executeQueryAndReturnResult(trashql);
-			if(returnval.size() == 0)
+			Integer pid = this._refs.pidOf(passNum);
+			BookingResult result = pid == null ? new BookingResult(BookingResult.Outcome.NO_SUCH_PASSENGER, null)
+				: ledger.book(date, flightnum, pid);
+			if(result.isBooked() && this._seats != null)
 			{
-				return false;
+				this._seats.booked(flightnum, date);
 			}
+			return result;
 		}
-		catch(Exception e)
+		for(int attempt = 1; ; ++attempt)
 		{
-			return false;
+			String bookref = getBookRef();
+			int code = this._procedures ? callFunction(BOOK_FLIGHT_CALL, bookref, Date.valueOf(date), flightnum, passNum)
+				: executeQueryTyped(BOOK_FLIGHT_SQL, bookref, Date.valueOf(date), flightnum, passNum).getInt(0, 0);
+			BookingResult.Outcome outcome = BookingResult.Outcome.fromCode(code);
+			// only a reference clashing with one from another node or the old generator is retried
+			if(outcome != BookingResult.Outcome.REFERENCE_TAKEN || attempt >= 3)
+			{
+				if(outcome == BookingResult.Outcome.BOOKED && this._seats != null)
+				{
+					this._seats.booked(flightnum, date);
+				}
+				return new BookingResult(outcome, bookref);
+			}
 		}
-		return true;
 	}
 	
-	public boolean isPassNumUnique(String passnum)
+	/**
+	 * Method to book a group of passengers at once (see GroupBooking).
+	 * 
+	 * @param entries passport, flight and date of every booking
+	 * @param allOrNothing whether one failing entry cancels the group
+	 * @return one result per entry, in the same order
+	 * @throws java.sql.SQLException when the bookings could not be written, none are then
+	 */
+	public List<BookingResult> bookGroup(List<GroupBooking.Entry> entries, boolean allOrNothing) throws SQLException
 	{
-		if(passnum.length() != 10){return false;}
-		
-		String trashql = "SELECT * FROM passenger p WHERE p.passnum = '" + passnum + "';";
-		try
+		List<BookingResult> results;
+		if(this._ledger != null)
 		{
-			List<List<String>> returnval;
-			returnval = executeQueryAndReturnResult(trashql);
-			if(returnval.size() != 0)
+			// the ledger must see every booking, so groups go through it as well
+			final Set<String> passports = new HashSet<String>();
+			for(GroupBooking.Entry e : entries)
 			{
-				return false;
+				passports.add(e.passNum);
 			}
-			else
+			// every passport in one query
+			Map<String, Integer> found = withConnection(c -> GroupBooking.pids(c, passports));
+			for(Map.Entry<String, Integer> p : found.entrySet())
 			{
-				return true;
+				this._refs.passengerAdded(p.getValue(), p.getKey());
 			}
+			List<String> bookrefs = new ArrayList<String>();
+			List<String> dates = new ArrayList<String>();
+			List<String> flightnums = new ArrayList<String>();
+			int[] pids = new int[entries.size()];
+			for(int i = 0; i < pids.length; ++i)
+			{
+				GroupBooking.Entry e = entries.get(i);
+				Integer pid = found.get(e.passNum);
+				pids[i] = pid == null ? -1 : pid;
+				bookrefs.add(e.bookRef);
+				dates.add(e.date);
+				flightnums.add(e.flightNum);
+			}
+			results = this._ledger.bookAll(bookrefs, dates, flightnums, pids, allOrNothing);
 		}
-		catch(Exception e)
-		{
-			return false;
-		}
-	}
-	
-	public String getPid(String table)
-	{	
-		String trashql = "select max(pid) from " + table +";";
-		String pid = "";
-		try
+		else
 		{
-			List<List<String>> r2 = executeQueryAndReturnResult(trashql);
-			pid = r2.get(0).get(0);
+			results = this._groups.book(entries, allOrNothing);
 		}
-		catch(Exception e)
+		if(this._seats != null)
 		{
-			System.err.println(e.getMessage());
+			for(int i = 0; i < results.size(); ++i)
+			{
+				if(results.get(i).isBooked())
+				{
+					this._seats.booked(entries.get(i).flightNum, entries.get(i).date);
+				}
+			}
 		}
-		return Integer.toString(Integer.parseInt(pid) + 1);
+		return results;
 	}
 	
-	public String getRid()
+	/**
+	 * Method to store a review of a flight by an existing passenger.
+	 * 
+	 * @return the rid of the new rating
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public String takeCustomerReview(String pid, String flightnum, String score, String comment) throws SQLException
 	{
-		String trashql = "select max(rid) from ratings;";
-		String pid = "";
-		try
-		{
-			List<List<String>> r2 = executeQueryAndReturnResult(trashql);
-			pid = r2.get(0).get(0);
-		}
-		catch(Exception e)
-		{
-			System.err.println(e.getMessage());
-		}
-		return Integer.toString(Integer.parseInt(pid) + 1);
+		return takeCustomerReview(pid, null, flightnum, score, comment);
 	}
 	
-	public String getBookRef()
+	/**
+	 * Same as above, for the menu and the service, which know the passport.
+	 * While offline the review is kept in the write ahead log, and the
+	 * passenger is looked up by passport when it is applied.  With
+	 * -Dairbooking.procedures=true the review_flight function looks it up and
+	 * checks the flight in the same round trip.
+	 * 
+	 * @param pid the reviewer, "-1" when the lookup was skipped
+	 * @return the rid of the new rating, PENDING when kept offline
+	 * @throws java.sql.SQLException when the insert failed
+	 * @throws IllegalArgumentException when review_flight found no such passenger or flight
+	 */
+	public String takeCustomerReview(String pid, String passNum, String flightnum, String score, String comment)
+		throws SQLException
 	{
-		String bookref = "";
-		String randBookRef = "";
-		
-		do
+		if(this._capture != null && this._capture.review(pid, passNum, flightnum, score, comment))
 		{
-			randBookRef = "";
-			Random rand = new Random();
-			
-			for(int i = 0; i < 10; i ++)
+			return PENDING;
+		}
+		try
+		{
+			// this should be done by system automatically
+			int rid = this._ratingIds.nextId();
+			if(!this._procedures)
+			{
+				executeUpdate(REVIEW_SQL, rid, Integer.parseInt(pid), flightnum, Integer.parseInt(score), comment);
+			}
+			else
 			{
-				int n = rand.nextInt(25) + 65;
-				char a = (char) n;
-				if(n % 2 == 0)
+				Integer reviewer = pid.equals("-1") ? null : Integer.valueOf(pid);
+				int code = callFunction(REVIEW_CALL, rid, reviewer, passNum, flightnum, Integer.parseInt(score), comment);
+				if(code == 1)
+				{
+					throw new IllegalArgumentException("Invalid passport number");
+				}
+				if(code == 2)
 				{
-					n = rand.nextInt(9) + 48;
-					a = (char) n;
+					throw new IllegalArgumentException("Invalid flight number");
 				}
-				randBookRef += a;
 			}
-			//System.out.println(randBookRef);
-			
-			String trashql = "SELECT bookref FROM booking WHERE bookref = '" + randBookRef + "';";
-			try
+			if(this._ratings != null)
 			{
-				List<List<String>> r2 = executeQueryAndReturnResult(trashql);
-				bookref = r2.get(0).get(0);
+				this._ratings.rated(flightnum, Integer.parseInt(score));
 			}
-			catch(Exception e)
+			return Integer.toString(rid);
+		}
+		catch(SQLException e)
+		{
+			if(lostConnection(e) && this._capture.review(pid, passNum, flightnum, score, comment))
 			{
-				//System.out.println(randBookRef);
-				return randBookRef;
+				return PENDING;
 			}
-			//System.out.println("Randomly generated one exists!");
-		}while(bookref.length() != 0);
-			
-		
-		return randBookRef;
+			throw e;
+		}
 	}
 	
-	public boolean doesPassNumExist(String passNum)
+	/**
+	 * Method to bring the in-memory indexes up to date after a route was
+	 * written by RouteUpserter.
+	 *
+	 * @param airline the name of the airline flying the route
+	 * @param old the route before the update, null if it was inserted
+	 * @param route the route as written
+	 */
+	void routeChanged(String airline, RouteUpserter.Route old, RouteUpserter.Route route)
 	{
-		if(passNum.length() != 10){return false;}
-		
-		String trashql = "SELECT * FROM passenger p WHERE p.passnum = '" + passNum + "';";
-		try
+		if(this._seats != null)
+		{
+			this._seats.flightChanged(route.flightNum, route.seats);
+		}
+		if(this._ledger != null)
+		{
+			this._ledger.flightChanged(route.flightNum, route.seats);
+		}
+		if(this._destinations != null)
 		{
-			List<List<String>> returnval;
-			returnval = executeQueryAndReturnResult(trashql);
-			if(returnval.size() != 0)
+			if(old == null)
 			{
-				return true;
+				this._destinations.flightAdded(route.destination);
 			}
 			else
 			{
-				return false;
+				this._destinations.flightMoved(old.destination, route.destination);
 			}
 		}
-		catch(Exception e)
+		if(this._ratings != null)
 		{
-			System.err.println(e.getMessage());
-			return false;
+			this._ratings.flightChanged(airline, route.flightNum, route.origin, route.destination, route.plane);
 		}
+		if(this._routes != null)
+		{
+			this._routes.routeChanged(airline, old, route);
+		}
+		this._refs.flightChanged(route.flightNum);
+		this._itineraries.invalidate();
 	}
 	
-	public String getPidFromPassNum(String passport_number)
+	public int listFlightsBetween(PrintStream out, String origin, String destination) throws SQLException
 	{
-		String trashql = "SELECT pid FROM passenger WHERE passNum = '" + passport_number + "';";
-		String pid = "-1";
-		try
-		{
-			List<List<String>> r2 = executeQueryAndReturnResult(trashql);
-			pid = r2.get(0).get(0);
-		}
-		catch(Exception e)
+		if(this._routes != null)
 		{
-			System.err.println(e.getMessage());
+			return this._routes.printBetween(out, origin, destination);
 		}
-		return pid;
+		return executeQueryAndPrintResult(out, this._procedures ? FLIGHTS_BETWEEN_CALL : FLIGHTS_BETWEEN_SQL, origin, destination);
 	}
 	
-	public boolean is_trashport(String pass)
+	public int listMostPopularDestinations(PrintStream out, int k) throws SQLException
 	{
-		for(int c = 0; c < pass.length(); c++) 
+		if(this._destinations != null)
 		{
-			if(!Character.isLetter(pass.charAt(c)) || Character.isLowerCase(pass.charAt(c)) ) 
-			{
-				return false;
-			}
+			return this._destinations.print(out, k);
 		}
-
-		return true;
+		return executeQueryAndPrintResult(out, this._procedures ? POPULAR_DESTINATIONS_CALL : POPULAR_DESTINATIONS_SQL, k);
 	}
 	
-	public boolean isValidBooking(String date, String flightnum, String pid)
+	public int listHighestRatedRoutes(PrintStream out, int k) throws SQLException
 	{
-		String trashql = "SELECT * FROM booking WHERE departure = '" + date
-							+ "' AND flightNum = '" + flightnum
-							+ "' AND pid = " + pid + ";";
-		try
+		if(this._ratings != null)
 		{
-			List<List<String>> r2 = executeQueryAndReturnResult(trashql);
-			if(r2.size() > 0) // it exists
-			{
-				return false;
-			}
+			return this._ratings.print(out, k);
 		}
-		catch(Exception e)
+		return executeQueryAndPrintResult(out, this._procedures ? HIGHEST_RATED_CALL : HIGHEST_RATED_SQL, k);
+	}
+	
+	/**
+	 * Method to print the k shortest itineraries of up to maxLegs flights that
+	 * all have a seat left on the date (see ItinerarySearch).
+	 *
+	 * @return the number of itineraries printed
+	 * @throws java.sql.SQLException when the flights or bookings could not be read
+	 */
+	public int listItineraries(PrintStream out, String origin, String destination, String date, int k, int maxLegs) throws SQLException
+	{
+		return this._itineraries.print(out, origin, destination, date, k, maxLegs);
+	}
+	
+	public int listFlightsInOrderOfDuration(PrintStream out, String origin, String destination, int k) throws SQLException
+	{
+		if(this._routes != null)
 		{
-			System.err.println(e.getMessage());
+			return this._routes.printShortest(out, origin, destination, k);
 		}
-		return true;
+		return executeQueryAndPrintResult(out, this._procedures ? FLIGHTS_BY_DURATION_CALL : FLIGHTS_BY_DURATION_SQL,
+			origin, destination, k);
 	}
 	
-	public boolean isNumValid(String num){
-		if(!isNumeric(num)){
-			return false;
+	/**
+	 * Method to count the seats left on a flight for a departure date.  Served
+	 * from the seat inventory unless it is turned off.
+	 * 
+	 * @return the number of available seats, or null if there is no such flight
+	 * @throws java.sql.SQLException when a query failed
+	 */
+	public Integer findAvailableSeats(String flightnum, String date) throws SQLException
+	{
+		if(this._ledger != null)
+		{
+			return this._ledger.available(flightnum, date);
 		}
-		
-		try
+		if(this._seats != null)
 		{
-			int score2 = Integer.parseInt(num);
-			if(score2 < 0)
-			{
-				return false;
-			}
-			return true;
+			return this._seats.available(flightnum, date);
 		}
-		catch(Exception e)
-		{ // failed to parse integer from string
-			return false;
+		if(this._procedures)
+		{
+			return callFunction(AVAILABLE_SEATS_CALL, flightnum, Date.valueOf(date));
+		}
+		
+		// get seat number and booked number, in one round trip
+		final Pipeline seats = new Pipeline()
+			.add(FLIGHT_SEATS_SQL, flightnum)
+			.add(BOOKED_SEATS_SQL, flightnum, Date.valueOf(date));
+		List<TypedResult> r = withConnection(seats::run);
+		TypedResult r1 = r.get(0);
+		TypedResult r2 = r.get(1);
+		
+		if(r1.size() == 0 || r2.size() == 0)
+		{
+			return null;
 		}
+		int num1 = r1.getInt(0, 0);
+		long num2 = r2.getLong(0, 0);
+		return (int) (num1 - num2);
 	}
 	
 //------------------------------------------------------------------------------
@@ -725,36 +1732,37 @@ public class AirBooking
 			
 			System.out.println("Enter Passport number");
 			p_pass = str_get.nextLine();
-			while(!esql.isPassNumUnique(p_pass) || !esql.is_trashport(p_pass) || p_pass.length() != 10)
+			while(p_id.length() == 0)
 			{
-				if(p_pass.length() != 10 )
-				{ 
-					System.out.println("Your Passport number was not the right length.");
-					System.out.println("Enter Passport number");
-					p_pass = str_get.nextLine();
+				while(!esql.isPassNumUnique(p_pass) || !esql.is_trashport(p_pass) || p_pass.length() != 10)
+				{
+					if(p_pass.length() != 10 )
+					{ 
+						System.out.println("Your Passport number was not the right length.");
+						System.out.println("Enter Passport number");
+						p_pass = str_get.nextLine();
+					}
+					else
+					{
+						System.out.println("Invalid Passport number");
+						System.out.println("Enter Passport number");
+						p_pass = str_get.nextLine();
+					}
 				}
-				else
+				
+				try
+				{
+					p_id = esql.addPassenger(p_name, p_dob, p_country, p_pass);
+				}
+				catch(IllegalArgumentException e)
 				{
-					System.out.println("Invalid Passport number");
+					// with -Dairbooking.procedures the passport is only checked by the insert
+					System.out.println(e.getMessage());
 					System.out.println("Enter Passport number");
 					p_pass = str_get.nextLine();
 				}
 			}
-			
-			// this should be done by system automatically
-			p_id = esql.getPid("passenger");
 			//System.out.println(p_id);
-			
-			String trashql = "insert into passenger (pID,passNum,fullName,bdate,country)" +
-			"values (" + 
-			"'" + p_id + "'" + "," +
-			"'" + p_pass + "'" + "," +
-			"'" + p_name + "'" + "," + 
-			"'" + p_dob  + "'" + "," + 
-			"'" + p_country + "'" +
-			");";
-			
-			esql.executeUpdate(trashql);
 		}
 		catch(Exception e)
 		{
@@ -771,71 +1779,77 @@ public class AirBooking
 		// flightNum CHAR(8) NOT NULL,
 		// pID INTEGER NOT NULL,
 
-		String bookref = "";
 		String date = "";		
 		String flightnum = "";
 		String passport_number = "";
-		String pid = "";
-		boolean validEntry = false;
+		boolean askDate = true;
+		boolean askFlight = true;
+		boolean askPassport = true;
+		BookingResult result = null;
 		
 		try
 		{		
-			bookref = esql.getBookRef();
-						
 			do
 			{
-				// NEED TO CHECK
-				System.out.println("Enter a departure date (format: YYYY-MM-DD)");
-				date = str_get.nextLine();
-				while(!esql.DateIsValid(date)){
-					System.out.println("Invalid date, please try again.");
+				if(askDate)
+				{
 					System.out.println("Enter a departure date (format: YYYY-MM-DD)");
-					date = str_get.nextLine();				
+					date = str_get.nextLine();
+					while(!esql.DateIsValid(date)){
+						System.out.println("Invalid date, please try again.");
+						System.out.println("Enter a departure date (format: YYYY-MM-DD)");
+						date = str_get.nextLine();				
+					}
 				}
 				
-				System.out.println("Enter a flight number");
-				flightnum = str_get.nextLine();
-				while(flightnum.length() > 8 || flightnum.length() == 0)
-				{ 
-					System.out.println("Your flight number was invalid length.");
-					flightnum = str_get.nextLine();
-				}
-				while(!esql.flightNumIsValid(flightnum)){
-					System.out.println("Invalid flight number, please try again.");
+				if(askFlight)
+				{
 					System.out.println("Enter a flight number");
 					flightnum = str_get.nextLine();
 					while(flightnum.length() > 8 || flightnum.length() == 0)
 					{ 
 						System.out.println("Your flight number was invalid length.");
 						flightnum = str_get.nextLine();
-					}			
+					}
 				}
 				
-				// this should be done by system automatically
 				// THIS SHOULD BE A PASSPORT THEN FIND THE ASSOCIATED PID
-				System.out.println("Enter a passport number");
-				passport_number = str_get.nextLine();
-				while(!esql.doesPassNumExist(passport_number))
+				if(askPassport)
 				{
-					System.out.println("Invalid passport number, please try again");
 					System.out.println("Enter a passport number");
 					passport_number = str_get.nextLine();
 				}
-				pid = esql.getPidFromPassNum(passport_number);
-				//System.out.println(pid);
-				if(!(validEntry = esql.isValidBooking(date, flightnum, pid))){
-					System.out.println("The combination of the date, flightnum and passport entires is not unique.");
-					System.out.println("Please try again.");
+				
+				// the passport, flight, duplicate and seat checks all happen in this one call
+				result = esql.bookFlight(date, flightnum, passport_number);
+				askDate = askFlight = askPassport = false;
+				switch(result.outcome)
+				{
+					case NO_SUCH_FLIGHT:
+						System.out.println("Invalid flight number, please try again.");
+						askFlight = true;
+						break;
+					case NO_SUCH_PASSENGER:
+						System.out.println("Invalid passport number, please try again");
+						askPassport = true;
+						break;
+					case ALREADY_BOOKED:
+						System.out.println(result.outcome.message);
+						System.out.println("Please try again.");
+						askDate = askFlight = askPassport = true;
+						break;
+					case FLIGHT_FULL:
+						System.out.println(result.outcome.message);
+						System.out.println("Please try again.");
+						askDate = askFlight = true;
+						break;
+					case REFERENCE_TAKEN:
+						System.out.println(result.outcome.message);
+						return;
+					default:
+						break;
 				}
-			}while(!validEntry);
-			
-			String trashql = "INSERT INTO booking(bookref, departure, flightnum, pid)" +
-							 "VALUES('" + bookref + "', '"
-								       + date + "', '"
-								       + flightnum + "', "
-								       + pid + ")";
-			
-			esql.executeUpdate(trashql);
+			}while(!result.isBooked());
 		}
 		catch(Exception e)
 		{
@@ -862,10 +1876,6 @@ public class AirBooking
 		
 		try
 		{
-
-			// this should be done by system automatically
-			rid = esql.getRid();
-
 			// THIS SHOULD BE A PASSPORT THEN FIND THE ASSOCIATED PID
 			System.out.println("Enter a passport number");
 			passport_number = str_get.nextLine();
@@ -907,14 +1917,7 @@ public class AirBooking
 			System.out.println("Enter a comment (hit <Enter> with no text to skip)");
 			comment = str_get.nextLine();
 		
-			String trashql = "INSERT INTO ratings(rid, pid, flightnum, score, comment) " + 
-							 "VALUES( " + rid + ", "
-										+ pid + ", '"
-										+ flightnum + "', '"
-										+ score + "', '"
-										+ comment + "');";
-			
-			esql.executeUpdate(trashql);
+			rid = esql.takeCustomerReview(pid, passport_number, flightnum, score, comment);
 		
 		}
 		catch(Exception e)
@@ -935,13 +1938,54 @@ public class AirBooking
 		// seats _SEATS NOT NULL,
 		// duration _HOURS NOT NULL,
 		
+		// a schedule file, or one route typed in
+		String schedule = "";
+		String[] f = new String[7];
+		String[] prompts = {
+			"Enter Airline ID",
+			"Enter Flight Number",
+			"Enter Origin",
+			"Enter Destination",
+			"Enter Plane",
+			"Enter number of Seats (1-499)",
+			"Enter Duration in hours (1-23)"
+		};
+		
 		try
 		{
-			// stuff
+			RouteUpserter upserter = new RouteUpserter(esql);
+			
+			System.out.println("Enter a schedule file (csv: airId,flightNum,origin,destination,plane,seats,duration)");
+			System.out.println("or leave empty to enter one route");
+			schedule = str_get.nextLine().trim();
+			if(schedule.length() != 0)
+			{
+				upserter.upsertFile(new File(schedule));
+				return;
+			}
+			
+			RouteUpserter.Route route = null;
+			while(route == null)
+			{
+				for(int i = 0; i < f.length; ++i)
+				{
+					System.out.println(prompts[i]);
+					f[i] = str_get.nextLine();
+				}
+				try
+				{
+					route = RouteUpserter.Route.parse(f);
+					upserter.check(route);
+				}
+				catch(IllegalArgumentException e)
+				{
+					System.out.println(e.getMessage() + ". Try Again.");
+					route = null;
+				}
+			}
 			
-			String trashql = "";
-						
-			esql.executeQuery(trashql);
+			RouteUpserter.Counts counts = upserter.upsert(Collections.singletonList(route));
+			System.out.println(counts.inserted == 1 ? "Route added" : "Route updated");
 		}
 		catch(Exception e)
 		{
@@ -962,13 +2006,7 @@ public class AirBooking
 			String destination = str_get.nextLine();
 			destination = destination.trim();
 			
-			String trashql = "select " +
-			"f.flightNum, f.origin, f.destination, f.plane, f.duration " +
-			"from flight f where "+
-			"f.origin = " + "'" + origin +  "'" + "and " +
-			"f.destination = " + "'" + destination +  "'";
-			
-			esql.executeQueryAndPrintResult(trashql);
+			esql.listFlightsBetween(System.out, origin, destination);
 		}
 		catch(Exception e)
 		{
@@ -993,13 +2031,7 @@ public class AirBooking
 				dest_num = str_get.nextLine();
 			}	
 			
-			String trashql = "SELECT f.destination, COUNT(f.destination)AS num_of " +
-			" FROM flight f " +
-			" GROUP BY f.destination " +
-			" ORDER BY num_of DESC " +
-			" LIMIT " + dest_num ;
-			
-			esql.executeQueryAndPrintResult(trashql);
+			esql.listMostPopularDestinations(System.out, Integer.parseInt(dest_num));
 		}
 		catch(Exception e)
 		{
@@ -1024,14 +2056,7 @@ public class AirBooking
 				k = str_get.nextLine();
 			}	
 
-			String trashql = "SELECT a.name, r.flightnum, f.origin, f.destination, f.plane, AVG(r.score) AS avg_score " + 
-							 "FROM airline a, flight f, ratings r " +
-							 "WHERE a.airid = f.airid AND f.flightnum = r.flightnum " +
-							 "GROUP BY a.name, f.flightnum, r.flightnum " +
-							 "ORDER BY avg_score DESC "+
-							 "LIMIT " + k + ";";
-			
-			esql.executeQueryAndPrintResult(trashql);
+			esql.listHighestRatedRoutes(System.out, Integer.parseInt(k));
 		}
 		catch(Exception e)
 		{
@@ -1064,13 +2089,62 @@ public class AirBooking
 				numRecords = str_get.nextLine();
 			}			
 			
-			String trashql = "SELECT a.name, f.flightnum, f.origin, f.destination, f.plane, f.duration " +
-							 "FROM airline a, flight f " +
-							 "WHERE a.airid = f.airid AND f.origin = '" + origin + "' AND f.destination = '" + destination + "' " +
-							 "ORDER BY f.duration " +
-							 "LIMIT " + numRecords  + ";";
-										
-			esql.executeQueryAndPrintResult(trashql);
+			esql.listFlightsInOrderOfDuration(System.out, origin, destination, Integer.parseInt(numRecords));
+		}
+		catch(Exception e)
+		{
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	// 11.) Find Connecting Flights
+	public static void FindConnectingFlights(AirBooking esql)
+	{
+		String date = "";
+		String numRecords = "";
+		String legs = "";
+		
+		try
+		{
+			System.out.println("Enter a flight origin");
+			String origin = str_get.nextLine();
+			origin = origin.trim();
+			
+			System.out.println("Enter a flight destination");
+			String destination = str_get.nextLine();
+			destination = destination.trim();
+			
+			System.out.println("Enter a departure date (format: YYYY-MM-DD)");
+			date = str_get.nextLine();
+			while(!esql.DateIsValid(date)){
+				System.out.println("Invalid date, please try again.");
+				System.out.println("Enter a departure date (format: YYYY-MM-DD)");
+				date = str_get.nextLine();
+			}
+			
+			System.out.println("Enter the number of desired itineraries");
+			numRecords = str_get.nextLine();
+			while(!esql.isNumValid(numRecords))
+			{
+				System.out.println("not valid number");
+				System.out.println("Enter the number of desired itineraries");
+				numRecords = str_get.nextLine();
+			}
+			
+			System.out.println("Enter the most flights per itinerary (1-" + ItinerarySearch.MAX_LEGS + ")");
+			legs = str_get.nextLine();
+			while(!esql.isNumValid(legs) || Integer.parseInt(legs) < 1 || Integer.parseInt(legs) > ItinerarySearch.MAX_LEGS)
+			{
+				System.out.println("not valid number");
+				System.out.println("Enter the most flights per itinerary (1-" + ItinerarySearch.MAX_LEGS + ")");
+				legs = str_get.nextLine();
+			}
+			
+			int found = esql.listItineraries(System.out, origin, destination, date, Integer.parseInt(numRecords), Integer.parseInt(legs));
+			if(found == 0)
+			{
+				System.out.println("No itineraries with free seats found");
+			}
 		}
 		catch(Exception e)
 		{
@@ -1114,28 +2188,9 @@ public class AirBooking
 				date = str_get.nextLine();				
 			}	
 
-			String trashql1 = "select seats from flight where flightnum = '" + flightnum + "';";
-
-			// get seat number			
-			List<List<String>> r1 = esql.executeQueryAndReturnResult(trashql1);
-			
-			String trashql2 = "select count(*) " +
-			"from booking b, flight f " +
-			"where f.flightnum = " + "'" + flightnum + "'" + " and " +
-			"b.flightnum = " + "'" + flightnum + "'" + " and " +
-			"b.departure = '" + date + "';";
-			
-			// get booked number
-			List<List<String>> r2 = esql.executeQueryAndReturnResult(trashql2);
-			
-			int num1 = 0;
-			int num2 = 0;
-						
-			if(!r1.isEmpty() && !r2.isEmpty())
-			{
-				num1 = Integer.parseInt(r1.get(0).get(0));
-				num2 = Integer.parseInt(r2.get(0).get(0));
-				int res = num1 - num2;
+			Integer res = esql.findAvailableSeats(flightnum, date);
+			if(res != null)
+			{
 				System.out.print("Number of available seats: ");
 				System.out.println(res);
 			}
@@ -0,0 +1,205 @@
+/*
+ * Booking Reference Generator
+ * ===========================
+ *
+ * Makes Booking.bookRef values (CHAR(10)) locally, without asking the
+ * database whether a reference is already taken.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reference is 10 upper case base 36 characters: a 2 character node prefix
+ * followed by an 8 character counter.  The counter is monotonic within the
+ * process and never falls behind the number of milliseconds since 2017-01-01.
+ * It moves one per reference and the clock one per millisecond, so at more
+ * than 1000 references a second it runs ahead of the clock, and the clock
+ * alone does not keep a restarted process above what it handed out before.
+ * A restart therefore also continues above the highest reference of its node
+ * found in the Booking table and the local logs (see issued()).
+ *
+ * Nothing in a reference is random except the node when none is given.
+ * Processes sharing a database need different nodes (-Dairbooking.node=
+ * 0..1295); with random ones two of 10 processes share a node about 3% of
+ * the time, and their references then clash on the primary key, where the
+ * callers retry with a new one.
+ *
+ * The 8 counter characters last until the year 2106.
+ *
+ */
+public class BookRefGenerator
+{
+	public static final int LENGTH = 10;
+	public static final int NODE_CHARS = 2;
+	public static final int MAX_NODE = 36 * 36 - 1;
+
+	// counter zero is 2017-01-01T00:00:00Z
+	private static final long EPOCH = 1483228800000L;
+	// how far ahead of the clock a counter issued() takes may be, a year
+	private static final long MAX_AHEAD = 365L * 24 * 60 * 60 * 1000;
+	private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+	private final char[] _node = new char[NODE_CHARS];
+	private final AtomicLong _counter = new AtomicLong();
+
+	public BookRefGenerator()
+	{
+		this(Integer.getInteger("airbooking.node", ThreadLocalRandom.current().nextInt(MAX_NODE + 1)));
+	}
+
+	public BookRefGenerator(int node)
+	{
+		if(node < 0 || node > MAX_NODE)
+		{
+			throw new IllegalArgumentException("node must be in 0.." + MAX_NODE);
+		}
+		this._node[0] = DIGITS[node / 36];
+		this._node[1] = DIGITS[node % 36];
+	}
+
+	/**
+	 * Method to make the next booking reference.  Safe to call from any
+	 * number of threads.
+	 *
+	 * @return a reference no other call on this node returns
+	 */
+	public String next()
+	{
+		long now = System.currentTimeMillis() - EPOCH;
+		long prev, value;
+		do
+		{
+			prev = this._counter.get();
+			value = Math.max(prev + 1, now);
+		}while(!this._counter.compareAndSet(prev, value));
+		return format(value);
+	}
+
+	/**
+	 * Method to continue above a reference this node handed out before, e.g.
+	 * in an earlier run.  References of other nodes are ignored, and so are
+	 * counters more than a year ahead of the clock, which next() did not make
+	 * (e.g. references of the old random generator).
+	 *
+	 * @param ref a reference found in the database or a log
+	 */
+	public void issued(String ref)
+	{
+		if(ref == null || ref.length() != LENGTH || ref.charAt(0) != this._node[0] || ref.charAt(1) != this._node[1])
+		{
+			return;
+		}
+		for(int i = NODE_CHARS; i < LENGTH; ++i)
+		{
+			char c = ref.charAt(i);
+			if((c < '0' || c > '9') && (c < 'A' || c > 'Z'))
+			{
+				return;
+			}
+		}
+		long value = counterOf(ref);
+		if(value <= System.currentTimeMillis() - EPOCH + MAX_AHEAD)
+		{
+			this._counter.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * Method to get the lowest reference of this node.
+	 */
+	public String lowest()
+	{
+		return format(0);
+	}
+
+	/**
+	 * Method to get the highest reference of this node issued() takes.
+	 */
+	public String highest()
+	{
+		return format(System.currentTimeMillis() - EPOCH + MAX_AHEAD);
+	}
+
+	private String format(long value)
+	{
+		char[] ref = new char[LENGTH];
+		ref[0] = this._node[0];
+		ref[1] = this._node[1];
+		for(int i = LENGTH - 1; i >= NODE_CHARS; --i)
+		{
+			ref[i] = DIGITS[(int) (value % 36)];
+			value /= 36;
+		}
+		return new String(ref);
+	}
+
+	/**
+	 * Method to get the counter part back out of a reference.
+	 *
+	 * @param ref a reference made by next()
+	 * @return the counter value encoded in it
+	 */
+	public static long counterOf(String ref)
+	{
+		long value = 0;
+		for(int i = NODE_CHARS; i < LENGTH; ++i)
+		{
+			char c = ref.charAt(i);
+			value = value * 36 + (c <= '9' ? c - '0' : c - 'A' + 10);
+		}
+		return value;
+	}
+
+	/**
+	 * Generates references from several threads, reports the rate and checks
+	 * that none of them repeat.
+	 *
+	 * @param args [refs per thread] [threads]
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		final int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		final BookRefGenerator gen = new BookRefGenerator(0);
+		final long[][] counters = new long[threads][perThread];
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; ++t)
+		{
+			final long[] mine = counters[t];
+			workers[t] = new Thread(() -> {
+				for(int i = 0; i < perThread; ++i)
+				{
+					mine[i] = counterOf(gen.next());
+				}
+			});
+			workers[t].start();
+		}
+		for(Thread w : workers)
+		{
+			w.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long[] all = new long[threads * perThread];
+		for(int t = 0; t < threads; ++t)
+		{
+			System.arraycopy(counters[t], 0, all, t * perThread, perThread);
+		}
+		Arrays.sort(all);
+		int duplicates = 0;
+		for(int i = 1; i < all.length; ++i)
+		{
+			if(all[i] == all[i - 1])
+			{
+				++duplicates;
+			}
+		}
+		System.out.printf("%d refs on %d threads in %.3f s: %.0f refs/s, %d duplicates%n",
+			all.length, threads, seconds, all.length / seconds, duplicates);
+	}
+}
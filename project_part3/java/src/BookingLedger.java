@@ -0,0 +1,621 @@
+/*
+ * Booking Ledger
+ * ==============
+ *
+ * Write-behind mode of BookFlight: bookings are accepted in memory, made
+ * durable in a local journal and written to the Booking table in batches.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Every (flightNum, departure) booked through this process gets a Trip: the
+ * seats of the flight, a counter of the seats taken and the set of pids on
+ * it, loaded from the database in one query on first use.  A booking is a
+ * set insert (UNIQUE(departure, flightNum, pID)) and a compare-and-set on the
+ * counter, without locks.  It is then appended to the journal, a
+ * WriteAheadLog, and forced to disk, with one fsync for all bookings that
+ * arrive meanwhile (group commit), and only then acknowledged.  The bookings
+ * of one group are a single record, one line each, so a group costs one
+ * fsync however large it is.  A flusher thread inserts the queued bookings
+ * in batches of -Dairbooking.writeBehind.batchSize (500), at least every
+ * -Dairbooking.writeBehind.flushMillis (20).  Once everything appended has
+ * been written the journal is checkpointed; after a crash the constructor
+ * writes whatever it holds after the checkpoint before taking new bookings.
+ *
+ * The ledger assumes it is the only writer of bookings for the flights it
+ * has loaded.  A booking that another process made meanwhile conflicts when
+ * it is flushed; it is then reported and its seat given back.  A booking
+ * whose reference is taken, while the passenger is not booked on that flight
+ * and date, is written under a new reference, which is reported.
+ *
+ */
+public class BookingLedger
+{
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final long DEFAULT_FLUSH_MILLIS = 20;
+	// the journal record type of a booking
+	static final byte BOOKING = 'B';
+
+	// the seats of a flight and who is booked on it for one date, no row if there is no such flight
+	static final String TRIP_SQL =
+		"SELECT f.seats, b.pID FROM flight f LEFT JOIN booking b ON b.flightNum = f.flightNum AND b.departure = ? " +
+		"WHERE f.flightNum = ?";
+	// the bookings already there for the same passengers, flights and dates
+	static final String EXISTING_SQL =
+		"SELECT b.flightNum, b.departure, b.pID, b.bookRef FROM booking b " +
+		"JOIN unnest(?::char(8)[], ?::date[], ?::int[]) AS t(flightNum, departure, pID) " +
+		"ON b.flightNum = t.flightNum AND b.departure = t.departure AND b.pID = t.pID";
+
+	/**
+	 * The seats of one flight on one date.
+	 */
+	static final class Trip
+	{
+		volatile int capacity;
+		final AtomicInteger taken;
+		final Set<Integer> pids = ConcurrentHashMap.newKeySet();
+
+		Trip(int capacity, List<Integer> pids)
+		{
+			this.capacity = capacity;
+			this.pids.addAll(pids);
+			this.taken = new AtomicInteger(this.pids.size());
+		}
+
+		BookingResult.Outcome reserve(int pid)
+		{
+			if(!this.pids.add(pid))
+			{
+				return BookingResult.Outcome.ALREADY_BOOKED;
+			}
+			for(;;)
+			{
+				int taken = this.taken.get();
+				if(taken >= this.capacity)
+				{
+					this.pids.remove(pid);
+					return BookingResult.Outcome.FLIGHT_FULL;
+				}
+				if(this.taken.compareAndSet(taken, taken + 1))
+				{
+					return BookingResult.Outcome.BOOKED;
+				}
+			}
+		}
+
+		void release(int pid)
+		{
+			if(this.pids.remove(pid))
+			{
+				this.taken.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * An accepted booking, as journaled and flushed.
+	 */
+	static final class Booking
+	{
+		final String bookRef;
+		final String date;
+		final String flightNum;
+		final int pid;
+
+		Booking(String bookRef, String date, String flightNum, int pid)
+		{
+			this.bookRef = bookRef;
+			this.date = date;
+			this.flightNum = flightNum;
+			this.pid = pid;
+		}
+
+		String toLine()
+		{
+			return this.bookRef + "," + this.date + "," + this.flightNum + "," + this.pid;
+		}
+
+		// the seat, what UNIQUE(departure, flightNum, pID) is on
+		String seat()
+		{
+			return seat(this.flightNum, Date.valueOf(this.date), this.pid);
+		}
+
+		static String seat(String flightNum, Date date, int pid)
+		{
+			return flightNum.trim() + "|" + date + "|" + pid;
+		}
+
+		// null for a line that is not a booking
+		static Booking parse(String line)
+		{
+			String[] f = line.split(",");
+			if(f.length != 4 || f[0].length() != 10 || InputCheck.epochDay(f[1]) == InputCheck.INVALID)
+			{
+				return null;
+			}
+			int pid = InputCheck.parseInt(f[3], 0, Integer.MAX_VALUE);
+			return pid == InputCheck.INVALID ? null : new Booking(f[0], f[1], f[2], pid);
+		}
+	}
+
+	private final AirBooking _esql;
+	private final WriteAheadLog _journal;
+	private final int _batchSize;
+	private final long _flushNanos;
+	// flightNum|departure -> trip
+	private final ConcurrentHashMap<String, Trip> _trips = new ConcurrentHashMap<String, Trip>();
+	private final ConcurrentLinkedQueue<Booking> _queue = new ConcurrentLinkedQueue<Booking>();
+	private final Thread _flusher;
+	private volatile boolean _running = true;
+
+	// counters
+	private final AtomicLong _accepted = new AtomicLong();
+	private final AtomicLong _flushed = new AtomicLong();
+	private final AtomicLong _lost = new AtomicLong();
+	private final AtomicLong _batches = new AtomicLong();
+	// flushed since the journal was opened, only touched by the flusher
+	private long _flushedSinceOpen = 0;
+
+	public BookingLedger(AirBooking esql) throws SQLException
+	{
+		this(esql, new File(System.getProperty("airbooking.writeBehind.journal", "bookings.wal")),
+			Boolean.parseBoolean(System.getProperty("airbooking.writeBehind.fsync", "true")),
+			Integer.getInteger("airbooking.writeBehind.batchSize", DEFAULT_BATCH_SIZE),
+			Long.getLong("airbooking.writeBehind.flushMillis", DEFAULT_FLUSH_MILLIS));
+	}
+
+	public BookingLedger(AirBooking esql, File journal, boolean fsync, int batchSize, long flushMillis)
+		throws SQLException
+	{
+		this._esql = esql;
+		this._batchSize = Math.max(1, batchSize);
+		this._flushNanos = Math.max(1, flushMillis) * 1000000;
+		try
+		{
+			this._journal = new WriteAheadLog(journal,
+				Integer.getInteger("airbooking.wal.segmentSize", WriteAheadLog.DEFAULT_SEGMENT_SIZE), fsync);
+			// bookings acknowledged before a crash go in before anything else
+			List<Booking> left = new ArrayList<Booking>();
+			for(WriteAheadLog.Record record : this._journal.replay())
+			{
+				if(record.type != BOOKING)
+				{
+					continue;
+				}
+				for(String line : new String(record.payload, StandardCharsets.UTF_8).split("\n"))
+				{
+					Booking b = Booking.parse(line);
+					if(b != null)
+					{
+						esql.bookRefIssued(b.bookRef);
+						left.add(b);
+					}
+				}
+			}
+			for(int i = 0; i < left.size(); i += this._batchSize)
+			{
+				write(left.subList(i, Math.min(left.size(), i + this._batchSize)), true);
+			}
+			this._journal.checkpoint(this._journal.end());
+			if(!left.isEmpty())
+			{
+				System.out.println("Recovered " + left.size() + " journaled bookings from " + journal);
+			}
+		}
+		catch(IOException e)
+		{
+			throw new SQLException("Can not use the booking journal " + journal + ": " + e.getMessage(), e);
+		}
+
+		this._flusher = new Thread(this::flushLoop, "booking-ledger-flusher");
+		this._flusher.setDaemon(true);
+		this._flusher.start();
+	}
+
+	/**
+	 * Method to book one seat.
+	 *
+	 * @param date the departure date as YYYY-MM-DD
+	 * @param flightnum the flight number
+	 * @param pid the passenger, known to exist
+	 * @return the outcome, BOOKED once the booking is in the journal
+	 * @throws java.sql.SQLException when the flight could not be loaded or the journal not written
+	 */
+	public BookingResult book(String date, String flightnum, int pid) throws SQLException
+	{
+		List<BookingResult> results = bookAll(Collections.<String>singletonList(null), Collections.singletonList(date),
+			Collections.singletonList(flightnum), new int[] { pid }, false);
+		return results.get(0);
+	}
+
+	/**
+	 * Method to book several seats, reserving them all before any is
+	 * journaled, so an all or nothing group can give them back.
+	 *
+	 * @param bookrefs reference of every booking, e.g. one given out offline,
+	 * or null for a new one
+	 * @param dates departure date of every booking
+	 * @param flightnums flight of every booking
+	 * @param pids passenger of every booking, negative for one that does not exist
+	 * @param allOrNothing whether one failure cancels all
+	 * @return one result per booking
+	 */
+	public List<BookingResult> bookAll(List<String> bookrefs, List<String> dates, List<String> flightnums, int[] pids,
+		boolean allOrNothing) throws SQLException
+	{
+		int n = pids.length;
+		Trip[] trips = new Trip[n];
+		BookingResult.Outcome[] outcomes = new BookingResult.Outcome[n];
+		boolean failed = false;
+		for(int i = 0; i < n; ++i)
+		{
+			trips[i] = trip(flightnums.get(i), dates.get(i));
+			outcomes[i] = pids[i] < 0 ? BookingResult.Outcome.NO_SUCH_PASSENGER
+				: trips[i] == null ? BookingResult.Outcome.NO_SUCH_FLIGHT
+				: trips[i].reserve(pids[i]);
+			failed |= outcomes[i] != BookingResult.Outcome.BOOKED;
+		}
+
+		List<BookingResult> results = new ArrayList<BookingResult>(n);
+		if(failed && allOrNothing)
+		{
+			for(int i = 0; i < n; ++i)
+			{
+				if(outcomes[i] == BookingResult.Outcome.BOOKED)
+				{
+					trips[i].release(pids[i]);
+					outcomes[i] = BookingResult.Outcome.GROUP_FAILED;
+				}
+				results.add(new BookingResult(outcomes[i], null));
+			}
+			return results;
+		}
+
+		List<Booking> accepted = new ArrayList<Booking>(n);
+		StringBuilder lines = new StringBuilder();
+		for(int i = 0; i < n; ++i)
+		{
+			String bookref = null;
+			if(outcomes[i] == BookingResult.Outcome.BOOKED)
+			{
+				bookref = bookrefs.get(i) != null ? bookrefs.get(i) : this._esql.getBookRef();
+				Booking booking = new Booking(bookref, dates.get(i), flightnums.get(i).trim(), pids[i]);
+				accepted.add(booking);
+				lines.append(lines.length() == 0 ? "" : "\n").append(booking.toLine());
+			}
+			results.add(new BookingResult(outcomes[i], bookref));
+		}
+		if(accepted.isEmpty())
+		{
+			return results;
+		}
+		try
+		{
+			// the whole group in one record, forced once
+			this._journal.append(BOOKING, lines.toString().getBytes(StandardCharsets.UTF_8), accepted.size());
+		}
+		catch(IOException | IllegalArgumentException e)
+		{
+			// not acknowledged, and the journal took the record back, so not kept
+			for(int i = 0; i < n; ++i)
+			{
+				if(outcomes[i] == BookingResult.Outcome.BOOKED)
+				{
+					trips[i].release(pids[i]);
+				}
+			}
+			throw new SQLException("Booking journal write failed: " + e.getMessage(), e);
+		}
+		this._queue.addAll(accepted);
+		this._accepted.addAndGet(accepted.size());
+		if(this._queue.size() >= this._batchSize)
+		{
+			LockSupport.unpark(this._flusher);
+		}
+		return results;
+	}
+
+	/**
+	 * Method to get the seats left on a flight for a date, bookings not yet
+	 * written included.
+	 *
+	 * @return the seats left, or null if there is no such flight
+	 */
+	public Integer available(String flightnum, String date) throws SQLException
+	{
+		Trip trip = trip(flightnum, date);
+		return trip == null ? null : trip.capacity - trip.taken.get();
+	}
+
+	/**
+	 * Method to change the seats of a flight on every date that is loaded.
+	 */
+	public void flightChanged(String flightnum, int seats)
+	{
+		String prefix = flightnum.trim() + "|";
+		for(Map.Entry<String, Trip> e : this._trips.entrySet())
+		{
+			if(e.getKey().startsWith(prefix))
+			{
+				e.getValue().capacity = seats;
+			}
+		}
+	}
+
+	/**
+	 * Method to write everything queued and stop the flusher.
+	 */
+	public void close()
+	{
+		this._running = false;
+		LockSupport.unpark(this._flusher);
+		try
+		{
+			this._flusher.join();
+			this._journal.close();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(IOException e)
+		{
+			// ignored, the journal is replayed on the next start.
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ledger accepted: " + this._accepted.get() + ", written: " + this._flushed.get() + " in "
+			+ this._batches.get() + " batches, queued: " + this._queue.size() + ", conflicts: " + this._lost.get()
+			+ ", journal: " + this._journal;
+	}
+
+	// the trip of a flight and date, loaded on first use, null if there is no such flight
+	private Trip trip(String flightnum, String date) throws SQLException
+	{
+		flightnum = flightnum.trim();
+		String key = flightnum + "|" + date;
+		Trip trip = this._trips.get(key);
+		if(trip != null)
+		{
+			return trip;
+		}
+		TypedResult rows = this._esql.executeQueryTyped(TRIP_SQL, Date.valueOf(date), flightnum);
+		if(rows.size() == 0)
+		{
+			return null;
+		}
+		List<Integer> pids = new ArrayList<Integer>();
+		for(int i = 0; i < rows.size(); ++i)
+		{
+			if(!rows.isNull(i, 1))
+			{
+				pids.add(rows.getInt(i, 1));
+			}
+		}
+		// whoever loaded it first wins, both saw the same table
+		Trip loaded = new Trip(rows.getInt(0, 0), pids);
+		trip = this._trips.putIfAbsent(key, loaded);
+		return trip == null ? loaded : trip;
+	}
+
+	private void flushLoop()
+	{
+		List<Booking> batch = new ArrayList<Booking>(this._batchSize);
+		long backoff = this._flushNanos;
+		while(this._running || !this._queue.isEmpty() || !batch.isEmpty())
+		{
+			Booking b;
+			while(batch.size() < this._batchSize && (b = this._queue.poll()) != null)
+			{
+				batch.add(b);
+			}
+			if(batch.isEmpty())
+			{
+				LockSupport.parkNanos(this._flushNanos);
+				continue;
+			}
+			try
+			{
+				write(batch, false);
+				this._flushedSinceOpen += batch.size();
+				batch.clear();
+				backoff = this._flushNanos;
+				if(this._queue.isEmpty())
+				{
+					this._journal.checkpointIfApplied(this._flushedSinceOpen);
+				}
+			}
+			catch(SQLException | IOException e)
+			{
+				// the batch is kept and tried again, the journal still has it
+				System.err.println("Booking ledger: " + e.getMessage());
+				if(!this._running)
+				{
+					return;
+				}
+				LockSupport.parkNanos(backoff);
+				backoff = Math.min(backoff * 2, 5000000000L);
+			}
+		}
+	}
+
+	/**
+	 * Method to insert a batch.  A booking the insert skips is looked up by
+	 * passenger, flight and date: if that row has its reference it was
+	 * written before, e.g. before a crash; if it has another one the
+	 * passenger was booked elsewhere, which is reported and the seat given
+	 * back; if there is no such row only the reference was taken, and the
+	 * booking is inserted again under a new one, replacing it in the batch.
+	 *
+	 * @throws java.sql.SQLException when a statement failed or no free reference was found
+	 */
+	private void write(List<Booking> batch, boolean replay) throws SQLException
+	{
+		List<Integer> pending = new ArrayList<Integer>(batch.size());
+		for(int i = 0; i < batch.size(); ++i)
+		{
+			pending.add(i);
+		}
+		// index -> the reference it was accepted with, for the bookings given a new one
+		Map<Integer, String> renamed = new HashMap<Integer, String>();
+		long written = 0;
+		for(int attempt = 1; ; ++attempt)
+		{
+			List<Integer> skipped = insert(batch, pending);
+			written += pending.size() - skipped.size();
+			if(skipped.isEmpty())
+			{
+				break;
+			}
+			Map<String, String> existing = existing(batch, skipped);
+			pending = new ArrayList<Integer>();
+			for(int i : skipped)
+			{
+				Booking b = batch.get(i);
+				String bookref = existing.get(b.seat());
+				if(bookref == null)
+				{
+					pending.add(i);
+				}
+				else if(bookref.equals(b.bookRef))
+				{
+					++written;
+				}
+				else
+				{
+					this._lost.incrementAndGet();
+					System.err.println("Booking ledger: " + b.bookRef + " (" + b.flightNum + " " + b.date + " pid "
+						+ b.pid + ") clashes with booking " + bookref + " made elsewhere, not kept");
+					Trip trip = this._trips.get(b.flightNum + "|" + b.date);
+					if(trip != null)
+					{
+						trip.release(b.pid);
+					}
+				}
+			}
+			if(pending.isEmpty())
+			{
+				break;
+			}
+			if(attempt >= GroupBooking.MAX_ATTEMPTS)
+			{
+				this._flushed.addAndGet(written);
+				throw new SQLException("No free booking reference for " + pending.size() + " bookings after "
+					+ attempt + " attempts");
+			}
+			for(int i : pending)
+			{
+				Booking b = batch.get(i);
+				renamed.putIfAbsent(i, b.bookRef);
+				batch.set(i, new Booking(this._esql.getBookRef(), b.date, b.flightNum, b.pid));
+			}
+		}
+		this._flushed.addAndGet(written);
+		this._batches.incrementAndGet();
+		for(Map.Entry<Integer, String> e : renamed.entrySet())
+		{
+			Booking b = batch.get(e.getKey());
+			System.err.println("Booking ledger: " + e.getValue() + " (" + b.flightNum + " " + b.date + " pid " + b.pid
+				+ ") is taken by another booking, written as " + b.bookRef);
+		}
+	}
+
+	// inserts some bookings of a batch, returns the indexes of the ones that were skipped
+	private List<Integer> insert(List<Booking> batch, List<Integer> indexes) throws SQLException
+	{
+		int m = indexes.size();
+		final String[] bookRefs = new String[m];
+		final String[] dates = new String[m];
+		final String[] flightNums = new String[m];
+		final Integer[] pids = new Integer[m];
+		final Map<String, Integer> byRef = new HashMap<String, Integer>();
+		for(int j = 0; j < m; ++j)
+		{
+			Booking b = batch.get(indexes.get(j));
+			bookRefs[j] = b.bookRef;
+			dates[j] = b.date;
+			flightNums[j] = b.flightNum;
+			pids[j] = b.pid;
+			byRef.put(b.bookRef, indexes.get(j));
+		}
+		this._esql.withConnection(c -> {
+			PreparedStatement stmt = c.statements.prepare(GroupBooking.INSERT_SQL);
+			stmt.setArray(1, c.connection.createArrayOf("text", bookRefs));
+			stmt.setArray(2, c.connection.createArrayOf("text", dates));
+			stmt.setArray(3, c.connection.createArrayOf("text", flightNums));
+			stmt.setArray(4, c.connection.createArrayOf("int4", pids));
+			long start = System.nanoTime();
+			long rows = 0;
+			try(ResultSet rs = stmt.executeQuery())
+			{
+				while(rs.next())
+				{
+					byRef.remove(rs.getString(1).trim());
+					++rows;
+				}
+			}
+			Metrics.sql(GroupBooking.INSERT_SQL, start, rows, 1);
+			return rows;
+		});
+		return new ArrayList<Integer>(byRef.values());
+	}
+
+	// seat -> bookRef of the rows already there for some bookings of a batch
+	private Map<String, String> existing(List<Booking> batch, List<Integer> indexes) throws SQLException
+	{
+		int m = indexes.size();
+		final String[] flightNums = new String[m];
+		final String[] dates = new String[m];
+		final Integer[] pids = new Integer[m];
+		for(int j = 0; j < m; ++j)
+		{
+			Booking b = batch.get(indexes.get(j));
+			flightNums[j] = b.flightNum;
+			dates[j] = b.date;
+			pids[j] = b.pid;
+		}
+		final Map<String, String> existing = new HashMap<String, String>();
+		this._esql.withConnection(c -> {
+			PreparedStatement stmt = c.statements.prepare(EXISTING_SQL);
+			stmt.setArray(1, c.connection.createArrayOf("text", flightNums));
+			stmt.setArray(2, c.connection.createArrayOf("text", dates));
+			stmt.setArray(3, c.connection.createArrayOf("int4", pids));
+			long start = System.nanoTime();
+			long rows = 0;
+			try(ResultSet rs = stmt.executeQuery())
+			{
+				while(rs.next())
+				{
+					existing.put(Booking.seat(rs.getString(1), rs.getDate(2), rs.getInt(3)), rs.getString(4).trim());
+					++rows;
+				}
+			}
+			Metrics.sql(EXISTING_SQL, start, rows, 1);
+			return rows;
+		});
+		return existing;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Booking Result
+ * ==============
+ *
+ * What happened to one BookFlight request.
+ *
+ */
+
+/**
+ * The outcome of a booking attempt and, when it succeeded, the booking
+ * reference.  The outcome codes are the values returned by the book_flight
+ * function in sql/procedures.sql.
+ *
+ */
+public class BookingResult
+{
+	public enum Outcome
+	{
+		BOOKED("Booked"),
+		NO_SUCH_PASSENGER("Invalid passport number"),
+		NO_SUCH_FLIGHT("Invalid flight number"),
+		ALREADY_BOOKED("The combination of the date, flightnum and passport entires is not unique."),
+		FLIGHT_FULL("There are no seats left on this flight for that date."),
+		REFERENCE_TAKEN("The booking reference is already in use."),
+		// not a book_flight code, see GroupBooking
+		GROUP_FAILED("Not booked, another booking of the group failed.");
+
+		public final String message;
+
+		Outcome(String message)
+		{
+			this.message = message;
+		}
+
+		/**
+		 * Method to map a book_flight return code to its outcome.
+		 *
+		 * @param code the value returned by book_flight
+		 * @return the matching outcome
+		 */
+		public static Outcome fromCode(int code)
+		{
+			Outcome[] all = values();
+			if(code < 0 || code >= all.length)
+			{
+				throw new IllegalArgumentException("Unknown booking outcome: " + code);
+			}
+			return all[code];
+		}
+	}
+
+	public final Outcome outcome;
+	// set only when outcome is BOOKED
+	public final String bookRef;
+
+	public BookingResult(Outcome outcome, String bookRef)
+	{
+		this.outcome = outcome;
+		this.bookRef = outcome == Outcome.BOOKED ? bookRef : null;
+	}
+
+	public boolean isBooked()
+	{
+		return this.outcome == Outcome.BOOKED;
+	}
+
+	@Override
+	public String toString()
+	{
+		return isBooked() ? this.outcome.message + " " + this.bookRef : this.outcome.message;
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * Booking Service
+ * ===============
+ *
+ * Headless mode of AirBooking.  Serves the menu operations over HTTP on
+ * the loopback interface instead of reading choices from standard in.
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class maps one URL path to each menu operation.  Parameters are read
+ * from the query string or from a form encoded POST body, results are sent
+ * back as tab separated text in the same layout the menu prints.  Listings
+ * are streamed from the database to the client, see ResponseStream.
+ *
+ *   POST /passenger              name, dob, country, passport
+ *   POST /booking                date, flight, passport
+ *   POST /bookings               date, flight, passports (comma separated), mode (all or partial)
+ *   POST /review                 passport, flight, score, comment
+ *   POST /route                  airid, flight, origin, destination, plane, seats, duration
+ *   GET  /flights                origin, destination
+ *   GET  /destinations/popular   k
+ *   GET  /routes/top-rated       k
+ *   GET  /flights/by-duration    origin, destination, k
+ *   GET  /seats                  flight, date
+ *   GET  /itineraries            origin, destination, date, k, legs (default 3)
+ *
+ * Invalid input is answered with 400.  Constraint violations, and bookings
+ * that are duplicates or find the flight full, are answered with 409.
+ *
+ */
+public class BookingServer
+{
+	// number of request threads when virtual threads are not available
+	public static final int DEFAULT_THREADS = 64;
+
+	private final AirBooking _esql;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final CountDownLatch _stopped = new CountDownLatch(1);
+
+	public BookingServer(AirBooking esql, int port) throws IOException
+	{
+		this._esql = esql;
+		this._server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this._executor = newRequestExecutor();
+		this._server.setExecutor(this._executor);
+
+		// 1.) Add a new passenger to the database
+		this._server.createContext("/passenger", new Operation(1)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String name = require(params, "name");
+				String dob = require(params, "dob");
+				String country = require(params, "country");
+				String passport = require(params, "passport");
+				check(name.length() <= 24, "Passenger name must be 1 to 24 characters");
+				check(_esql.DateIsValid(dob), "Invalid date of birth, format: YYYY-MM-DD");
+				check(country.length() <= 24, "Country name must be 1 to 24 characters");
+				check(passport.length() == 10 && _esql.is_trashport(passport), "Invalid Passport number");
+
+				out.println("pid\t" + _esql.addPassenger(name, dob, country, passport));
+			}
+		});
+
+		// 2.) Book Flight for an existing customer
+		this._server.createContext("/booking", new Operation(2)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String date = require(params, "date");
+				String flightnum = require(params, "flight");
+				String passport = require(params, "passport");
+				check(_esql.DateIsValid(date), "Invalid departure date, format: YYYY-MM-DD");
+				check(flightnum.length() <= 8, "Invalid flight number");
+
+				BookingResult result = _esql.bookFlight(date, flightnum, passport);
+				switch(result.outcome)
+				{
+					case BOOKED:
+						out.println("bookref\t" + result.bookRef);
+						break;
+					case NO_SUCH_PASSENGER:
+					case NO_SUCH_FLIGHT:
+						throw new IllegalArgumentException(result.outcome.message);
+					default:
+						throw new Conflict(result.outcome.message);
+				}
+			}
+		});
+
+		// 2.) Book a group of passengers on one flight and date
+		this._server.createContext("/bookings", new Operation("BookGroup")
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String date = require(params, "date");
+				String flightnum = require(params, "flight");
+				String mode = params.containsKey("mode") ? params.get("mode") : "all";
+				check(_esql.DateIsValid(date), "Invalid departure date, format: YYYY-MM-DD");
+				check(flightnum.length() <= 8, "Invalid flight number");
+				check(mode.equals("all") || mode.equals("partial"), "mode must be all or partial");
+
+				List<GroupBooking.Entry> entries = new ArrayList<GroupBooking.Entry>();
+				for(String passport : require(params, "passports").split(","))
+				{
+					check(passport.trim().length() == 10 && _esql.is_trashport(passport.trim()),
+						"Invalid passport number: " + passport);
+					entries.add(new GroupBooking.Entry(passport, flightnum, date));
+				}
+				List<BookingResult> results = _esql.bookGroup(entries, mode.equals("all"));
+				out.println("passport\tbookref\toutcome\t");
+				for(int i = 0; i < results.size(); ++i)
+				{
+					BookingResult result = results.get(i);
+					out.println(entries.get(i).passNum + "\t" + (result.isBooked() ? result.bookRef : "") + "\t"
+						+ result.outcome.message + "\t");
+				}
+			}
+		});
+
+		// 3.) Insert customer review into the ratings table
+		this._server.createContext("/review", new Operation(3)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String passport = require(params, "passport");
+				String flightnum = require(params, "flight");
+				String score = require(params, "score");
+				String comment = params.containsKey("comment") ? params.get("comment") : "";
+				check(_esql.is_trashport(passport), "Invalid passport number");
+				check(flightnum.length() <= 8, "Invalid flight number");
+				check(_esql.scoreIsValid(score), "Invalid score, enter a score in the range 0-5");
+				// both lookups at once, on two connections
+				CompletableFuture<String> found = _esql.getPidFromPassNumAsync(passport);
+				CompletableFuture<Boolean> flight = _esql.flightNumIsValidAsync(flightnum);
+				String pid = found.join();
+				check(!pid.equals("-1") || _esql.checksOnWrite(), "Invalid passport number");
+				check(flight.join(), "Invalid flight number");
+
+				out.println("rid\t" + _esql.takeCustomerReview(pid, passport, flightnum, score, comment));
+			}
+		});
+
+		// 4.) Insert or Update a new route for the airline
+		this._server.createContext("/route", new Operation(4)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				RouteUpserter.Route route = RouteUpserter.Route.parse(new String[] {
+					require(params, "airid"), require(params, "flight"), require(params, "origin"),
+					require(params, "destination"), require(params, "plane"), require(params, "seats"),
+					require(params, "duration") });
+				RouteUpserter upserter = new RouteUpserter(_esql);
+				upserter.check(route);
+
+				RouteUpserter.Counts counts = upserter.upsert(Collections.singletonList(route));
+				out.println((counts.inserted == 1 ? "inserted\t" : "updated\t") + route.flightNum);
+			}
+		});
+
+		// 5.) List all flights between origin and distination
+		this._server.createContext("/flights", new Operation(5)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				_esql.listFlightsBetween(out, require(params, "origin").trim(), require(params, "destination").trim());
+			}
+		});
+
+		// 6.) Print the k most popular destinations
+		this._server.createContext("/destinations/popular", new Operation(6)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				_esql.listMostPopularDestinations(out, count(params, "k"));
+			}
+		});
+
+		// 7.) List the k highest rated Routes
+		this._server.createContext("/routes/top-rated", new Operation(7)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				_esql.listHighestRatedRoutes(out, count(params, "k"));
+			}
+		});
+
+		// 8.) List flight to destination in order of duration
+		this._server.createContext("/flights/by-duration", new Operation(8)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String origin = require(params, "origin").trim();
+				String destination = require(params, "destination").trim();
+				_esql.listFlightsInOrderOfDuration(out, origin, destination, count(params, "k"));
+			}
+		});
+
+		// 9.) Find Number of Available Seats on a given Flight
+		this._server.createContext("/seats", new Operation(9)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String flightnum = require(params, "flight");
+				String date = require(params, "date");
+				check(flightnum.length() <= 8, "Invalid flight number");
+				check(_esql.DateIsValid(date), "Invalid date, format: YYYY-MM-DD");
+				Integer seats = _esql.findAvailableSeats(flightnum, date);
+				check(seats != null, "Error could not find the flight");
+
+				out.println("seats\t" + seats);
+			}
+		});
+
+		// 11.) Find connecting flights
+		this._server.createContext("/itineraries", new Operation(11)
+		{
+			void run(Map<String, String> params, PrintStream out) throws SQLException
+			{
+				String origin = require(params, "origin").trim();
+				String destination = require(params, "destination").trim();
+				String date = require(params, "date");
+				check(_esql.DateIsValid(date), "Invalid date, format: YYYY-MM-DD");
+				int legs = params.containsKey("legs") ? count(params, "legs") : ItinerarySearch.DEFAULT_MAX_LEGS;
+				_esql.listItineraries(out, origin, destination, date, count(params, "k"), legs);
+			}
+		});
+	}
+
+	public void start()
+	{
+		this._server.start();
+	}
+
+	/**
+	 * Method to stop accepting requests, letting running ones finish for a
+	 * few seconds.
+	 */
+	public void stop()
+	{
+		this._server.stop(2);
+		this._executor.shutdown();
+		try
+		{
+			this._executor.awaitTermination(5, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		this._stopped.countDown();
+	}
+
+	/**
+	 * Method to block the calling thread until stop() has been called.
+	 */
+	public void awaitTermination() throws InterruptedException
+	{
+		this._stopped.await();
+	}
+
+	public InetSocketAddress getAddress()
+	{
+		return this._server.getAddress();
+	}
+
+	/**
+	 * Method to create the executor running the requests.  Uses one virtual
+	 * thread per request when the JVM has them (Java 21+), so blocking on the
+	 * connection pool is cheap; falls back to a fixed platform thread pool.
+	 *
+	 * @return the executor for the HTTP server
+	 */
+	static ExecutorService newRequestExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			return Executors.newFixedThreadPool(Integer.getInteger("airbooking.server.threads", DEFAULT_THREADS));
+		}
+	}
+
+	/**
+	 * One menu operation.  Parses the parameters, runs the operation and turns
+	 * its output or failure into an HTTP response.
+	 */
+	abstract class Operation implements HttpHandler
+	{
+		// the name it is timed under in the Metrics
+		private final String _name;
+
+		Operation(int number)
+		{
+			this(AirBooking.OPERATIONS[number]);
+		}
+
+		Operation(String name)
+		{
+			this._name = name;
+		}
+
+		abstract void run(Map<String, String> params, PrintStream out) throws SQLException;
+
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			ResponseStream response = new ResponseStream(exchange);
+			PrintStream out = new PrintStream(response, false, "UTF-8");
+			int status = 200;
+			String error = null;
+			Metrics.begin(this._name);
+			try
+			{
+				run(parameters(exchange), out);
+			}
+			catch(Conflict e)
+			{
+				status = 409;
+				error = e.getMessage();
+			}
+			catch(IllegalArgumentException e)
+			{
+				status = 400;
+				error = e.getMessage();
+			}
+			catch(SQLException e)
+			{
+				// integrity constraint violations are the caller's fault
+				String state = e.getSQLState();
+				status = state != null && state.startsWith("23") ? 409 : 500;
+				error = e.getMessage();
+			}
+			catch(RuntimeException e)
+			{
+				status = 500;
+				error = e.getMessage();
+			}
+			finally
+			{
+				Metrics.end(error != null);
+			}
+			out.flush();
+			if(error != null)
+			{
+				// rows already sent can not be taken back, the error is appended
+				response.reset();
+				out.println(error);
+				out.flush();
+			}
+			response.finish(status);
+		}
+	}
+
+	/**
+	 * Body of a response.  Held in memory until it grows past BUFFER bytes,
+	 * after that it is sent with chunked encoding while it is written, so
+	 * large listings do not have to fit in memory.  The status can only be
+	 * chosen until then.
+	 */
+	static class ResponseStream extends OutputStream
+	{
+		static final int BUFFER = 1 << 16;
+
+		private final HttpExchange _exchange;
+		private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+		// set once the headers have been sent
+		private OutputStream _body = null;
+
+		ResponseStream(HttpExchange exchange)
+		{
+			this._exchange = exchange;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if(this._body != null)
+			{
+				this._body.write(b, off, len);
+				return;
+			}
+			this._buffer.write(b, off, len);
+			if(this._buffer.size() > BUFFER)
+			{
+				this._exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				this._exchange.sendResponseHeaders(200, 0);
+				this._body = this._exchange.getResponseBody();
+				this._buffer.writeTo(this._body);
+				this._buffer.reset();
+			}
+		}
+
+		/**
+		 * Method to drop whatever has not been sent yet.
+		 */
+		void reset()
+		{
+			this._buffer.reset();
+		}
+
+		/**
+		 * Method to complete the response, with the given status if nothing
+		 * has been sent yet.
+		 */
+		void finish(int status) throws IOException
+		{
+			if(this._body == null)
+			{
+				respond(this._exchange, status, this._buffer.toByteArray());
+			}
+			else
+			{
+				this._body.close();
+			}
+		}
+	}
+
+	/**
+	 * Valid request that clashes with the current data, answered with 409.
+	 */
+	static class Conflict extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		Conflict(String message)
+		{
+			super(message);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException
+	{
+		respond(exchange, status, body.getBytes("UTF-8"));
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] bytes) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	private static Map<String, String> parameters(HttpExchange exchange) throws IOException
+	{
+		Map<String, String> params = new HashMap<String, String>();
+		parse(exchange.getRequestURI().getRawQuery(), params);
+		if("POST".equalsIgnoreCase(exchange.getRequestMethod()))
+		{
+			InputStream in = exchange.getRequestBody();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while((n = in.read(buf)) != -1)
+			{
+				body.write(buf, 0, n);
+			}
+			parse(body.toString("UTF-8"), params);
+		}
+		return params;
+	}
+
+	private static void parse(String encoded, Map<String, String> params) throws UnsupportedEncodingException
+	{
+		if(encoded == null || encoded.isEmpty())
+		{
+			return;
+		}
+		for(String pair : encoded.split("&"))
+		{
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+	}
+
+	private static String require(Map<String, String> params, String name)
+	{
+		String value = params.get(name);
+		if(value == null || value.isEmpty())
+		{
+			throw new IllegalArgumentException("Missing parameter: " + name);
+		}
+		return value;
+	}
+
+	private int count(Map<String, String> params, String name)
+	{
+		String value = require(params, name);
+		int n = InputCheck.parseInt(value, 0, Integer.MAX_VALUE);
+		check(n != InputCheck.INVALID, "not valid number: " + name);
+		return n;
+	}
+
+	private static void check(boolean valid, String message)
+	{
+		if(!valid)
+		{
+			throw new IllegalArgumentException(message);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Bulk Loader
+ * ===========
+ *
+ * Loads the data/*.csv files from the client with COPY ... FROM STDIN, so the
+ * files do not have to be on the database host.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class streams each csv file through the PgJDBC CopyManager in chunks,
+ * so memory use does not depend on the file size.  Every row is checked with
+ * the same rules the menu uses (DateIsValid, scoreIsValid, is_trashport and
+ * the domain limits and CHAR lengths of create.sql); dates written as M/D/YYYY are rewritten
+ * as YYYY-MM-DD on the way.  Rows that fail a check are reported and skipped.
+ *
+ * Tables are loaded in foreign key order and should be empty.
+ *
+ */
+public class BulkLoader
+{
+	// bytes buffered before they are sent to the server
+	private static final int CHUNK = 1 << 16;
+	// rejected rows reported per file before going quiet
+	private static final int MAX_REPORTED = 10;
+
+	/**
+	 * Checks and rewrites the fields of one csv row in place.
+	 */
+	interface RowConverter
+	{
+		/**
+		 * @param f the fields of the row
+		 * @return null if the row is fine, otherwise why it was rejected
+		 */
+		String convert(String[] f);
+	}
+
+	private final AirBooking _esql;
+
+	public BulkLoader(AirBooking esql)
+	{
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to load all five csv files of a data directory.
+	 *
+	 * @param dir the directory holding airline.csv, passenger.csv, ...
+	 * @return the number of rows loaded
+	 */
+	public long loadAll(File dir) throws IOException, SQLException
+	{
+		long rows = 0;
+		rows += load(new File(dir, "airline.csv"), "airline", "airId, name, founded, country, hub", 5, f -> {
+			if(!isInt(f[0])) return "bad airId";
+			if(!fits(f[1], 24)) return "name must be at most 24 characters";
+			if(InputCheck.parseInt(f[2], 1900, Integer.MAX_VALUE) == InputCheck.INVALID) return "founded must be a year >= 1900";
+			if(!fits(f[3], 24)) return "country must be at most 24 characters";
+			if(!fits(f[4], 24)) return "hub must be at most 24 characters";
+			return null;
+		});
+		rows += load(new File(dir, "passenger.csv"), "passenger", "pID, passNum, fullName, bdate, country", 5, f -> {
+			if(!isInt(f[0])) return "bad pID";
+			if(f[1].length() != 10 || !this._esql.is_trashport(f[1])) return "bad passNum";
+			if(!fits(f[2], 24)) return "fullName must be at most 24 characters";
+			if((f[3] = normalizeDate(f[3])) == null) return "bad bdate";
+			if(!fits(f[4], 24)) return "country must be at most 24 characters";
+			return null;
+		});
+		rows += load(new File(dir, "flights.csv"), "flight", "airId, flightNum, origin, destination, plane, seats, duration", 7, f -> {
+			if(!isInt(f[0])) return "bad airId";
+			if(f[1].isEmpty() || f[1].length() > 8) return "bad flightNum";
+			if(!fits(f[2], 16) || !fits(f[3], 16)) return "origin and destination must be at most 16 characters";
+			if(!fits(f[4], 16)) return "plane must be at most 16 characters";
+			if(InputCheck.parseInt(f[5], 1, 499) == InputCheck.INVALID) return "seats must be 1..499";
+			if(InputCheck.parseInt(f[6], 1, 23) == InputCheck.INVALID) return "duration must be 1..23";
+			return null;
+		});
+		rows += load(new File(dir, "ratings.csv"), "ratings", "rID, pID, flightNum, score, comment", 5, f -> {
+			if(!isInt(f[0]) || !isInt(f[1])) return "bad rID or pID";
+			if(f[2].isEmpty() || f[2].length() > 8) return "bad flightNum";
+			if(!this._esql.scoreIsValid(f[3])) return "score must be 0..5";
+			return null;
+		});
+		rows += load(new File(dir, "bookings.csv"), "booking", "bookRef, departure, flightNum, pID", 4, f -> {
+			if(f[0].length() != 10) return "bad bookRef";
+			if((f[1] = normalizeDate(f[1])) == null) return "bad departure";
+			if(f[2].isEmpty() || f[2].length() > 8) return "bad flightNum";
+			if(!isInt(f[3])) return "bad pID";
+			return null;
+		});
+
+		// move the key sequences past the loaded rows
+		this._esql.executeQueryAndReturnResult(
+			"SELECT setval('passenger_pid_seq', (SELECT COALESCE(MAX(pID), -1) + 1 FROM Passenger), false)");
+		this._esql.executeQueryAndReturnResult(
+			"SELECT setval('ratings_rid_seq', (SELECT COALESCE(MAX(rID), -1) + 1 FROM Ratings), false)");
+		return rows;
+	}
+
+	/**
+	 * Method to stream one csv file into a table.
+	 *
+	 * @param file the csv file, one row per line, comma separated
+	 * @param table the table to load
+	 * @param columns the columns in file order
+	 * @param fieldCount number of columns, extra commas belong to the last one
+	 * @param converter checks and normalizes each row
+	 * @return the number of rows the server loaded
+	 */
+	public long load(final File file, final String table, final String columns, final int fieldCount,
+		final RowConverter converter) throws IOException, SQLException
+	{
+		final long start = System.nanoTime();
+		final long[] rejected = { 0 };
+		long rows = this._esql.withConnection(conn -> {
+			CopyManager copy = conn.connection.unwrap(PGConnection.class).getCopyAPI();
+			String sql = "COPY " + table + " (" + columns + ") FROM STDIN WITH (FORMAT csv)";
+			long sent = System.nanoTime();
+			CopyIn in = copy.copyIn(sql);
+			try(BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+			{
+				StringBuilder chunk = new StringBuilder(CHUNK + 1024);
+				String line;
+				long lineNo = 0;
+				while((line = reader.readLine()) != null)
+				{
+					++lineNo;
+					if(line.trim().isEmpty())
+					{
+						continue;
+					}
+					String[] f = line.split(",", fieldCount);
+					String why = f.length < fieldCount ? "expected " + fieldCount + " fields" : null;
+					if(why == null)
+					{
+						for(int i = 0; i < f.length; ++i)
+						{
+							f[i] = f[i].trim();
+						}
+						why = converter.convert(f);
+					}
+					if(why != null)
+					{
+						if(rejected[0]++ < MAX_REPORTED)
+						{
+							System.err.println(file.getName() + ":" + lineNo + ": " + why + ": " + line);
+						}
+						continue;
+					}
+					appendCsv(chunk, f);
+					if(chunk.length() >= CHUNK)
+					{
+						write(in, chunk);
+					}
+				}
+				write(in, chunk);
+				long copied = in.endCopy();
+				Metrics.sql(sql, sent, copied, 1);
+				return copied;
+			}
+			catch(IOException | RuntimeException e)
+			{
+				if(in.isActive())
+				{
+					in.cancelCopy();
+				}
+				throw new SQLException("Loading " + file + " failed: " + e.getMessage(), e);
+			}
+			catch(SQLException e)
+			{
+				if(in.isActive())
+				{
+					in.cancelCopy();
+				}
+				throw e;
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%s: %d rows in %.2f s (%.0f rows/s), %d rejected%n",
+			table, rows, seconds, rows / Math.max(seconds, 1e-9), rejected[0]);
+		return rows;
+	}
+
+	/**
+	 * Method to turn a date written as M/D/YYYY or YYYY-MM-DD into a valid
+	 * YYYY-MM-DD date.
+	 *
+	 * @param date the date as found in a csv file
+	 * @return the date as YYYY-MM-DD, or null if it is not a valid date
+	 */
+	public String normalizeDate(String date)
+	{
+		if(InputCheck.epochDay(date) != InputCheck.INVALID)
+		{
+			return date;
+		}
+		int day = InputCheck.epochDayMdy(date);
+		return day == InputCheck.INVALID ? null : InputCheck.formatDate(day);
+	}
+
+	// whether a trimmed field fits a CHAR(width) column
+	private static boolean fits(String s, int width)
+	{
+		return s.length() <= width;
+	}
+
+	private static boolean isInt(String s)
+	{
+		return InputCheck.parseInt(s, 0, Integer.MAX_VALUE) != InputCheck.INVALID;
+	}
+
+	// writes the fields as one csv line, quoting the ones that need it
+	private static void appendCsv(StringBuilder out, String[] f)
+	{
+		for(int i = 0; i < f.length; ++i)
+		{
+			if(i > 0)
+			{
+				out.append(',');
+			}
+			String v = f[i];
+			if(v.isEmpty())
+			{
+				// an unquoted empty field would be NULL
+				out.append("\"\"");
+			}
+			else if(v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\n') >= 0 || v.indexOf('\r') >= 0)
+			{
+				out.append('"').append(v.replace("\"", "\"\"")).append('"');
+			}
+			else
+			{
+				out.append(v);
+			}
+		}
+		out.append('\n');
+	}
+
+	private static void write(CopyIn in, StringBuilder chunk) throws SQLException
+	{
+		if(chunk.length() > 0)
+		{
+			byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+			in.writeToCopy(bytes, 0, bytes.length);
+			chunk.setLength(0);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * Connection Pool
+ * ===============
+ *
+ * A small bounded pool of physical PostgreSQL connections so that one
+ * AirBooking process can serve many sessions without opening one backend per
+ * session.
+ *
+ */
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class hands out physical connections, each one together with its own
+ * prepared statement cache.  Connections are created lazily up to a maximum
+ * size, validated when they are borrowed after sitting idle and closed by a
+ * background task once they have been idle for too long.
+ *
+ */
+public class ConnectionPool
+{
+	// default pool settings, each one can be overridden with a system property
+	public static final int DEFAULT_MAX_SIZE = 8;
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+	public static final long DEFAULT_VALIDATE_AFTER = 1000;
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _maxSize;
+	private final long _idleTimeout;
+	private final long _borrowTimeout;
+	private final long _validateAfter;
+	private final int _statementCacheSize;
+
+	// idle connections, most recently used first
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final ScheduledExecutorService _evictor;
+	private int _total = 0;
+	private boolean _closed = false;
+
+	// counters
+	private long _borrows = 0;
+	private long _waits = 0;
+	private long _created = 0;
+	private long _evicted = 0;
+	private long _invalid = 0;
+	// statement cache counters of connections that have been closed
+	private long _closedHits = 0;
+	private long _closedMisses = 0;
+
+	public ConnectionPool(String url, String user, String passwd)
+	{
+		this(url, user, passwd,
+			Integer.getInteger("airbooking.pool.maxSize", DEFAULT_MAX_SIZE),
+			Long.getLong("airbooking.pool.idleTimeoutMillis", DEFAULT_IDLE_TIMEOUT),
+			Long.getLong("airbooking.pool.borrowTimeoutMillis", DEFAULT_BORROW_TIMEOUT),
+			Long.getLong("airbooking.pool.validateAfterMillis", DEFAULT_VALIDATE_AFTER),
+			Integer.getInteger("airbooking.statementCacheSize", StatementCache.DEFAULT_CAPACITY));
+	}
+
+	public ConnectionPool(String url, String user, String passwd, int maxSize, long idleTimeout,
+		long borrowTimeout, long validateAfter, int statementCacheSize)
+	{
+		if(maxSize < 1)
+		{
+			throw new IllegalArgumentException("pool size must be at least 1");
+		}
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._maxSize = maxSize;
+		this._idleTimeout = idleTimeout;
+		this._borrowTimeout = borrowTimeout;
+		this._validateAfter = validateAfter;
+		this._statementCacheSize = statementCacheSize;
+
+		this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "connection-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, idleTimeout / 2);
+		this._evictor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to take a connection out of the pool.  Waits for a connection to
+	 * be released when the pool is at its maximum size.
+	 *
+	 * @return a connection that has to be given back with release()
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public PooledConnection borrow() throws SQLException
+	{
+		long deadline = System.currentTimeMillis() + this._borrowTimeout;
+		while(true)
+		{
+			PooledConnection conn = null;
+			synchronized(this)
+			{
+				if(this._closed)
+				{
+					throw new SQLException("Connection pool is closed", "08003");
+				}
+				conn = this._idle.pollFirst();
+				if(conn == null)
+				{
+					if(this._total < this._maxSize)
+					{
+						// reserve the slot, the connection is opened outside the lock
+						++this._total;
+					}
+					else
+					{
+						long remaining = deadline - System.currentTimeMillis();
+						if(remaining <= 0)
+						{
+							throw new SQLException("Timed out waiting for a database connection", "08001");
+						}
+						++this._waits;
+						try
+						{
+							wait(remaining);
+						}
+						catch(InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							throw new SQLException("Interrupted waiting for a database connection", "08001");
+						}
+						continue;
+					}
+				}
+				++this._borrows;
+			}// end synchronized
+
+			if(conn == null)
+			{
+				return open();
+			}
+			if(isUsable(conn))
+			{
+				return conn;
+			}
+			discard(conn);
+			synchronized(this)
+			{
+				++this._invalid;
+			}
+		}
+	}
+
+	/**
+	 * Method to give a borrowed connection back.  Broken connections and
+	 * connections released after close() are closed instead.
+	 *
+	 * @param conn the connection obtained from borrow()
+	 */
+	public void release(PooledConnection conn)
+	{
+		if(conn._broken)
+		{
+			discard(conn);
+			return;
+		}
+		conn._lastUsed = System.currentTimeMillis();
+		synchronized(this)
+		{
+			if(!this._closed)
+			{
+				this._idle.addFirst(conn);
+				notify();
+				return;
+			}
+		}
+		discard(conn);
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further borrows.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close()
+	{
+		this._evictor.shutdownNow();
+		ArrayDeque<PooledConnection> idle;
+		synchronized(this)
+		{
+			this._closed = true;
+			idle = new ArrayDeque<PooledConnection>(this._idle);
+			this._idle.clear();
+			notifyAll();
+		}
+		for(PooledConnection conn : idle)
+		{
+			discard(conn);
+		}
+	}
+
+	public int getMaxSize()
+	{
+		return this._maxSize;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		long hits = this._closedHits;
+		long misses = this._closedMisses;
+		for(PooledConnection conn : this._idle)
+		{
+			hits += conn.statements.getHits();
+			misses += conn.statements.getMisses();
+		}
+		return "connections: " + this._total + "/" + this._maxSize + " (" + this._idle.size() + " idle)"
+			+ ", borrows: " + this._borrows + ", waits: " + this._waits
+			+ ", opened: " + this._created + ", evicted: " + this._evicted + ", invalid: " + this._invalid
+			+ ", statement hits: " + hits + ", statement misses: " + misses;
+	}
+
+	private PooledConnection open() throws SQLException
+	{
+		try
+		{
+			PooledConnection conn = new PooledConnection(
+				DriverManager.getConnection(this._url, this._user, this._passwd), this._statementCacheSize);
+			synchronized(this)
+			{
+				++this._created;
+			}
+			return conn;
+		}
+		catch(SQLException e)
+		{
+			synchronized(this)
+			{
+				--this._total;
+				notify();
+			}
+			throw e;
+		}
+	}
+
+	private boolean isUsable(PooledConnection conn)
+	{
+		if(System.currentTimeMillis() - conn._lastUsed < this._validateAfter)
+		{
+			return true;
+		}
+		try
+		{
+			return conn.connection.isValid(5);
+		}
+		catch(SQLException e)
+		{
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection conn)
+	{
+		conn.close();
+		synchronized(this)
+		{
+			--this._total;
+			this._closedHits += conn.statements.getHits();
+			this._closedMisses += conn.statements.getMisses();
+			notify();
+		}
+	}
+
+	private void evictIdle()
+	{
+		long cutoff = System.currentTimeMillis() - this._idleTimeout;
+		ArrayDeque<PooledConnection> expired = new ArrayDeque<PooledConnection>();
+		synchronized(this)
+		{
+			Iterator<PooledConnection> it = this._idle.iterator();
+			while(it.hasNext())
+			{
+				PooledConnection conn = it.next();
+				if(conn._lastUsed < cutoff)
+				{
+					it.remove();
+					expired.add(conn);
+					++this._evicted;
+				}
+			}
+		}
+		for(PooledConnection conn : expired)
+		{
+			discard(conn);
+		}
+	}
+}
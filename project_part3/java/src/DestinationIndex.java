@@ -0,0 +1,202 @@
+/*
+ * Destination Index
+ * =================
+ *
+ * Number of flights offered to every destination, kept ranked in memory for
+ * menu option 6 (List Most Popular Destinations).
+ *
+ */
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * This class counts the flights per destination once with the same GROUP BY
+ * the SQL version runs, and after that keeps the counts in a TreeSet ordered
+ * like POPULAR_DESTINATIONS_SQL (num_of descending, then destination), so a
+ * flight insert or update costs O(log n) and the top k are read in O(k).
+ * Flights written by other processes are picked up when the index is
+ * reloaded, every refresh period (-Dairbooking.destinationIndex.refreshSeconds,
+ * default 300, 0 = never).
+ *
+ */
+public class DestinationIndex
+{
+	public static final long DEFAULT_REFRESH_SECONDS = 300;
+	// width of Flight.destination, CHAR(16)
+	static final int DESTINATION_WIDTH = 16;
+
+	static final String LOAD_SQL = "SELECT destination, COUNT(*) FROM flight GROUP BY destination";
+
+	/**
+	 * One destination and its flight count.  Immutable, a new count is a new
+	 * entry so the TreeSet order is never broken.
+	 */
+	private static final class Entry implements Comparable<Entry>
+	{
+		final String destination;
+		final long count;
+
+		Entry(String destination, long count)
+		{
+			this.destination = destination;
+			this.count = count;
+		}
+
+		public int compareTo(Entry other)
+		{
+			if(this.count != other.count)
+			{
+				return this.count > other.count ? -1 : 1;
+			}
+			return this.destination.compareTo(other.destination);
+		}
+	}
+
+	private final AirBooking _esql;
+	private final long _refreshMillis;
+	private final HashMap<String, Entry> _byDestination = new HashMap<String, Entry>();
+	private final TreeSet<Entry> _ranking = new TreeSet<Entry>();
+	private boolean _loaded = false;
+	private long _loadedAt = 0;
+
+	public DestinationIndex(AirBooking esql)
+	{
+		this(esql, Long.getLong("airbooking.destinationIndex.refreshSeconds", DEFAULT_REFRESH_SECONDS) * 1000);
+	}
+
+	public DestinationIndex(AirBooking esql, long refreshMillis)
+	{
+		this._esql = esql;
+		this._refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Method to print the k most popular destinations in the layout of
+	 * executeQueryAndPrintResult.
+	 *
+	 * @param out where the header and rows are printed
+	 * @param k the number of destinations to print
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public int print(PrintStream out, int k) throws SQLException
+	{
+		// printed without the lock, a slow reader must not hold up the writers
+		int rows = 0;
+		for(Entry e : top(k))
+		{
+			if(rows == 0)
+			{
+				out.println("destination\tnum_of\t");
+			}
+			out.println(AirBooking.padChar(e.destination, DESTINATION_WIDTH) + "\t" + e.count + "\t");
+			++rows;
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the number of flights to the destination
+	 */
+	public synchronized long count(String destination) throws SQLException
+	{
+		ensureLoaded();
+		Entry e = this._byDestination.get(destination.trim());
+		return e == null ? 0 : e.count;
+	}
+
+	public void flightAdded(String destination)
+	{
+		add(destination, 1);
+	}
+
+	public void flightRemoved(String destination)
+	{
+		add(destination, -1);
+	}
+
+	/**
+	 * Method to move a flight that was updated to a new destination.
+	 */
+	public synchronized void flightMoved(String oldDestination, String newDestination)
+	{
+		if(!oldDestination.trim().equals(newDestination.trim()))
+		{
+			add(oldDestination, -1);
+			add(newDestination, 1);
+		}
+	}
+
+	/**
+	 * Method to drop the counts, they are loaded again on the next read.
+	 */
+	public synchronized void invalidate()
+	{
+		this._loaded = false;
+	}
+
+	private synchronized void add(String destination, long delta)
+	{
+		if(!this._loaded)
+		{
+			// the next load will see the change
+			return;
+		}
+		destination = destination.trim();
+		Entry old = this._byDestination.remove(destination);
+		long count = delta;
+		if(old != null)
+		{
+			this._ranking.remove(old);
+			count += old.count;
+		}
+		if(count > 0)
+		{
+			put(new Entry(destination, count));
+		}
+	}
+
+	// the first k entries of the ranking, copied under the lock
+	private synchronized List<Entry> top(int k) throws SQLException
+	{
+		ensureLoaded();
+		List<Entry> top = new ArrayList<Entry>(Math.min(k, this._ranking.size()));
+		for(Entry e : this._ranking)
+		{
+			if(top.size() == k)
+			{
+				break;
+			}
+			top.add(e);
+		}
+		return top;
+	}
+
+	private void put(Entry e)
+	{
+		this._byDestination.put(e.destination, e);
+		this._ranking.add(e);
+	}
+
+	private void ensureLoaded() throws SQLException
+	{
+		if(this._loaded && (this._refreshMillis <= 0 || System.currentTimeMillis() - this._loadedAt <= this._refreshMillis))
+		{
+			return;
+		}
+		TypedResult counts = this._esql.executeQueryTyped(LOAD_SQL);
+		this._byDestination.clear();
+		this._ranking.clear();
+		for(int i = 0; i < counts.size(); ++i)
+		{
+			put(new Entry(counts.getString(i, 0).trim(), counts.getLong(i, 1)));
+		}
+		this._loaded = true;
+		this._loadedAt = System.currentTimeMillis();
+	}
+}
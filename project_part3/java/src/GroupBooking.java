@@ -0,0 +1,319 @@
+/*
+ * Group Booking
+ * =============
+ *
+ * Books a whole group of passengers, e.g. a travel agency block on one flight
+ * and date, in a fixed number of round trips.
+ *
+ */
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This class books all entries of a group in one transaction with four
+ * statements however large the group is: one resolves every passport with
+ * = ANY(?), one locks the flights FOR NO KEY UPDATE (the lock book_flight
+ * takes, so single bookings can not overbook them meanwhile), one reads the
+ * bookings already on those flights and dates, and one inserts the new
+ * bookings from arrays.  The checks of book_flight (passport, flight,
+ * duplicate, seats left) are made in between for every entry in order.
+ *
+ * All or nothing: when any entry fails nothing is booked, and the others are
+ * answered with GROUP_FAILED.  Partial: the entries that pass are booked and
+ * the others keep their own outcome.
+ *
+ */
+public class GroupBooking
+{
+	static final String PASSENGERS_SQL = "SELECT passNum, pID FROM passenger WHERE passNum = ANY(?::char(10)[])";
+	// in flightNum order, so two groups lock shared flights in the same order
+	static final String FLIGHTS_SQL =
+		"SELECT flightNum, seats FROM flight WHERE flightNum = ANY(?::char(8)[]) ORDER BY flightNum FOR NO KEY UPDATE";
+	static final String BOOKED_SQL =
+		"SELECT flightNum, departure, pID FROM booking WHERE flightNum = ANY(?::char(8)[]) AND departure = ANY(?::date[])";
+	// rows whose reference is taken are skipped and come back with a new one
+	static final String INSERT_SQL =
+		"INSERT INTO booking (bookRef, departure, flightNum, pID) " +
+		"SELECT * FROM unnest(?::text[], ?::date[], ?::text[], ?::int[]) " +
+		"ON CONFLICT DO NOTHING RETURNING bookRef";
+	static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * One passenger to book, with a date checked by DateIsValid.
+	 */
+	public static class Entry
+	{
+		public final String passNum;
+		public final String flightNum;
+		public final String date;
+		// the reference to try first, e.g. one already given out offline, or null
+		public final String bookRef;
+
+		public Entry(String passNum, String flightNum, String date)
+		{
+			this(passNum, flightNum, date, null);
+		}
+
+		public Entry(String passNum, String flightNum, String date, String bookRef)
+		{
+			this.passNum = passNum.trim();
+			this.flightNum = flightNum.trim();
+			this.date = date;
+			this.bookRef = bookRef;
+		}
+	}
+
+	// rolls the transaction back with the outcomes so far
+	private static class Abort extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		final BookingResult[] results;
+
+		Abort(BookingResult[] results)
+		{
+			super(null, null, false, false);
+			this.results = results;
+		}
+	}
+
+	private final AirBooking _esql;
+
+	public GroupBooking(AirBooking esql)
+	{
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to book a group.
+	 *
+	 * @param entries the bookings, in the order they are checked
+	 * @param allOrNothing whether one failing entry cancels the group
+	 * @return one result per entry, in the same order
+	 * @throws java.sql.SQLException when a statement failed, nothing is booked then
+	 */
+	public List<BookingResult> book(final List<Entry> entries, final boolean allOrNothing) throws SQLException
+	{
+		if(entries.isEmpty())
+		{
+			return new ArrayList<BookingResult>();
+		}
+		try
+		{
+			return Arrays.asList(this._esql.withConnection(conn -> AirBooking.inTransaction(conn,
+				c -> book(c, entries, allOrNothing))));
+		}
+		catch(Abort e)
+		{
+			return Arrays.asList(e.results);
+		}
+	}
+
+	private BookingResult[] book(PooledConnection c, List<Entry> entries, boolean allOrNothing) throws SQLException
+	{
+		int n = entries.size();
+		Set<String> passports = new HashSet<String>();
+		Set<String> flights = new TreeSet<String>();
+		Set<String> dates = new HashSet<String>();
+		for(Entry e : entries)
+		{
+			passports.add(e.passNum);
+			flights.add(e.flightNum);
+			dates.add(e.date);
+		}
+
+		Map<String, Integer> pids = pids(c, passports);
+
+		Map<String, Integer> seats = new HashMap<String, Integer>();
+		PreparedStatement stmt = c.statements.prepare(FLIGHTS_SQL);
+		stmt.setArray(1, textArray(c, flights));
+		long start = System.nanoTime();
+		try(ResultSet rs = stmt.executeQuery())
+		{
+			while(rs.next())
+			{
+				seats.put(rs.getString(1).trim(), rs.getInt(2));
+			}
+		}
+		Metrics.sql(FLIGHTS_SQL, start, seats.size(), 1);
+
+		// seats taken per flight and date, and who has them
+		Map<String, Integer> taken = new HashMap<String, Integer>();
+		Set<String> booked = new HashSet<String>();
+		stmt = c.statements.prepare(BOOKED_SQL);
+		stmt.setArray(1, textArray(c, flights));
+		stmt.setArray(2, textArray(c, dates));
+		start = System.nanoTime();
+		long rows = 0;
+		try(ResultSet rs = stmt.executeQuery())
+		{
+			while(rs.next())
+			{
+				String trip = rs.getString(1).trim() + "|" + rs.getDate(2);
+				taken.merge(trip, 1, Integer::sum);
+				booked.add(trip + "|" + rs.getInt(3));
+				++rows;
+			}
+		}
+		Metrics.sql(BOOKED_SQL, start, rows, 1);
+
+		BookingResult.Outcome[] outcomes = new BookingResult.Outcome[n];
+		int[] pidOf = new int[n];
+		boolean failed = false;
+		for(int i = 0; i < n; ++i)
+		{
+			Entry e = entries.get(i);
+			Integer pid = pids.get(e.passNum);
+			Integer capacity = seats.get(e.flightNum);
+			String trip = e.flightNum + "|" + e.date;
+			if(pid == null)
+			{
+				outcomes[i] = BookingResult.Outcome.NO_SUCH_PASSENGER;
+			}
+			else if(capacity == null)
+			{
+				outcomes[i] = BookingResult.Outcome.NO_SUCH_FLIGHT;
+			}
+			else if(!booked.add(trip + "|" + pid))
+			{
+				outcomes[i] = BookingResult.Outcome.ALREADY_BOOKED;
+			}
+			else if(taken.getOrDefault(trip, 0) >= capacity)
+			{
+				outcomes[i] = BookingResult.Outcome.FLIGHT_FULL;
+			}
+			else
+			{
+				taken.merge(trip, 1, Integer::sum);
+				outcomes[i] = BookingResult.Outcome.BOOKED;
+				pidOf[i] = pid;
+				continue;
+			}
+			failed = true;
+		}
+		if(failed && allOrNothing)
+		{
+			return results(outcomes, new String[n], true);
+		}
+
+		String[] refs = new String[n];
+		List<Integer> pending = new ArrayList<Integer>();
+		for(int i = 0; i < n; ++i)
+		{
+			if(outcomes[i] == BookingResult.Outcome.BOOKED)
+			{
+				pending.add(i);
+			}
+		}
+		for(int attempt = 1; !pending.isEmpty() && attempt <= MAX_ATTEMPTS; ++attempt)
+		{
+			pending = insert(c, entries, pidOf, refs, pending, attempt == 1);
+		}
+		for(int i : pending)
+		{
+			outcomes[i] = BookingResult.Outcome.REFERENCE_TAKEN;
+		}
+		if(!pending.isEmpty() && allOrNothing)
+		{
+			throw new Abort(results(outcomes, refs, true));
+		}
+		return results(outcomes, refs, false);
+	}
+
+	// inserts the pending entries with new references, returns the ones that were skipped
+	private List<Integer> insert(PooledConnection c, List<Entry> entries, int[] pidOf, String[] refs,
+		List<Integer> pending, boolean first) throws SQLException
+	{
+		int m = pending.size();
+		String[] bookRefs = new String[m];
+		String[] departures = new String[m];
+		String[] flightNums = new String[m];
+		Integer[] pids = new Integer[m];
+		Map<String, Integer> byRef = new HashMap<String, Integer>();
+		for(int j = 0; j < m; ++j)
+		{
+			int i = pending.get(j);
+			String given = entries.get(i).bookRef;
+			bookRefs[j] = first && given != null ? given : this._esql.getBookRef();
+			departures[j] = entries.get(i).date;
+			flightNums[j] = entries.get(i).flightNum;
+			pids[j] = pidOf[i];
+			byRef.put(bookRefs[j], i);
+		}
+
+		PreparedStatement stmt = c.statements.prepare(INSERT_SQL);
+		stmt.setArray(1, c.connection.createArrayOf("text", bookRefs));
+		stmt.setArray(2, c.connection.createArrayOf("text", departures));
+		stmt.setArray(3, c.connection.createArrayOf("text", flightNums));
+		stmt.setArray(4, c.connection.createArrayOf("int4", pids));
+		long start = System.nanoTime();
+		long rows = 0;
+		try(ResultSet rs = stmt.executeQuery())
+		{
+			while(rs.next())
+			{
+				String ref = rs.getString(1).trim();
+				int i = byRef.remove(ref);
+				refs[i] = ref;
+				++rows;
+			}
+		}
+		Metrics.sql(INSERT_SQL, start, rows, 1);
+		return new ArrayList<Integer>(byRef.values());
+	}
+
+	// with cancelled set, the entries that would have been booked are not
+	private static BookingResult[] results(BookingResult.Outcome[] outcomes, String[] refs, boolean cancelled)
+	{
+		BookingResult[] results = new BookingResult[outcomes.length];
+		for(int i = 0; i < outcomes.length; ++i)
+		{
+			BookingResult.Outcome outcome = outcomes[i];
+			if(cancelled && outcome == BookingResult.Outcome.BOOKED)
+			{
+				outcome = BookingResult.Outcome.GROUP_FAILED;
+			}
+			results[i] = new BookingResult(outcome, refs[i]);
+		}
+		return results;
+	}
+
+	/**
+	 * Method to look up the passengers holding a set of passports, in one
+	 * query.
+	 *
+	 * @return passNum -> pID of the passports that exist
+	 */
+	static Map<String, Integer> pids(PooledConnection c, Set<String> passports) throws SQLException
+	{
+		Map<String, Integer> pids = new HashMap<String, Integer>();
+		PreparedStatement stmt = c.statements.prepare(PASSENGERS_SQL);
+		stmt.setArray(1, textArray(c, passports));
+		long start = System.nanoTime();
+		try(ResultSet rs = stmt.executeQuery())
+		{
+			while(rs.next())
+			{
+				pids.put(rs.getString(1).trim(), rs.getInt(2));
+			}
+		}
+		Metrics.sql(PASSENGERS_SQL, start, pids.size(), 1);
+		return pids;
+	}
+
+	private static Array textArray(PooledConnection c, Set<String> values) throws SQLException
+	{
+		return c.connection.createArrayOf("text", values.toArray(new String[values.size()]));
+	}
+}
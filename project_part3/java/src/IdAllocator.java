@@ -0,0 +1,68 @@
+/*
+ * ID Allocator
+ * ============
+ *
+ * Hands out primary keys from a PostgreSQL sequence, one block at a time.
+ *
+ */
+
+import java.sql.SQLException;
+
+/**
+ * This class reserves a block of ids with a single nextval() and then hands
+ * them out locally, so most inserts need no round trip for their key.  The
+ * sequence must be created with INCREMENT BY equal to the block size (see
+ * sql/create.sql); every nextval() then owns the ids [value, value + block).
+ * Blocks are never shared, so concurrent callers in this or any other process
+ * never get the same id.  Ids left in a block when the process exits are
+ * skipped, which leaves gaps but no collisions.
+ *
+ */
+public class IdAllocator
+{
+	// must match the INCREMENT BY of the sequences in sql/create.sql
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	private final AirBooking _esql;
+	private final String _sequence;
+	private final int _blockSize;
+
+	// ids left in the current block are [_next, _limit)
+	private long _next = 0;
+	private long _limit = 0;
+
+	public IdAllocator(AirBooking esql, String sequence)
+	{
+		this(esql, sequence, DEFAULT_BLOCK_SIZE);
+	}
+
+	public IdAllocator(AirBooking esql, String sequence, int blockSize)
+	{
+		this._esql = esql;
+		this._sequence = sequence;
+		this._blockSize = blockSize;
+	}
+
+	/**
+	 * Method to get the next unused id, reserving a new block from the
+	 * sequence when the current one is used up.
+	 *
+	 * @return an id no other caller will get
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public synchronized int nextId() throws SQLException
+	{
+		if(this._next >= this._limit)
+		{
+			long start = this._esql.getNextSeqVal(this._sequence);
+			this._next = start;
+			this._limit = start + this._blockSize;
+		}
+		return (int) this._next++;
+	}
+
+	public String getSequence()
+	{
+		return this._sequence;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Input Check
+ * ===========
+ *
+ * Allocation free checks and parsers for the numbers and dates typed into the
+ * menu, sent to the service and read from csv files.
+ *
+ */
+
+/**
+ * Every method scans the characters once, without regular expressions,
+ * split() or exceptions, and returns INVALID instead of throwing, so the
+ * checks cost the same on every row of a bulk import or request whether the
+ * input is good or bad.  Dates are returned as their epoch day (days since
+ * 1970-01-01), which fits in an int and compares in date order.
+ *
+ */
+public final class InputCheck
+{
+	/** Returned for input that does not parse or is out of range. */
+	public static final int INVALID = Integer.MIN_VALUE;
+
+	private InputCheck()
+	{
+	}
+
+	/**
+	 * Method to test for a number as [-+]?\d*\.?\d+, e.g. "7", "-3", "2.5" or
+	 * ".5".
+	 */
+	public static boolean isNumber(CharSequence s)
+	{
+		if(s == null)
+		{
+			return false;
+		}
+		int n = s.length();
+		int i = 0;
+		if(i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+		{
+			++i;
+		}
+		boolean point = false;
+		boolean digitsAfterPoint = false;
+		boolean digits = false;
+		for(; i < n; ++i)
+		{
+			char c = s.charAt(i);
+			if(c >= '0' && c <= '9')
+			{
+				digits = true;
+				digitsAfterPoint = point;
+			}
+			else if(c == '.' && !point)
+			{
+				point = true;
+			}
+			else
+			{
+				return false;
+			}
+		}
+		return point ? digitsAfterPoint : digits;
+	}
+
+	/**
+	 * Method to parse a whole number in a range, with an optional sign.
+	 *
+	 * @param s the text, without blanks
+	 * @param min the smallest value accepted, above INVALID
+	 * @param max the largest value accepted
+	 * @return the value, or INVALID if s is not a whole number in [min, max]
+	 */
+	public static int parseInt(CharSequence s, int min, int max)
+	{
+		if(s == null)
+		{
+			return INVALID;
+		}
+		int n = s.length();
+		int i = 0;
+		boolean negative = false;
+		if(i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+		{
+			negative = s.charAt(i) == '-';
+			++i;
+		}
+		if(i == n)
+		{
+			return INVALID;
+		}
+		long value = 0;
+		for(; i < n; ++i)
+		{
+			char c = s.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				return INVALID;
+			}
+			value = value * 10 + (c - '0');
+			if(value > 1L << 31)
+			{
+				return INVALID;
+			}
+		}
+		if(negative)
+		{
+			value = -value;
+		}
+		return value < min || value > max ? INVALID : (int) value;
+	}
+
+	/**
+	 * Method to parse a YYYY-MM-DD date.
+	 *
+	 * @return the epoch day, or INVALID if it is not a date of that form
+	 */
+	public static int epochDay(CharSequence s)
+	{
+		if(s == null || s.length() != 10 || s.charAt(4) != '-' || s.charAt(7) != '-')
+		{
+			return INVALID;
+		}
+		return epochDay(digits(s, 0, 4), digits(s, 5, 7), digits(s, 8, 10));
+	}
+
+	/**
+	 * Method to parse a M/D/YYYY date, as written in the shipped csv files;
+	 * month and day have one or two digits.
+	 *
+	 * @return the epoch day, or INVALID if it is not a date of that form
+	 */
+	public static int epochDayMdy(CharSequence s)
+	{
+		if(s == null)
+		{
+			return INVALID;
+		}
+		int n = s.length();
+		int first = indexOf(s, '/', 0);
+		int second = first < 0 ? -1 : indexOf(s, '/', first + 1);
+		if(first < 1 || first > 2 || second - first < 2 || second - first > 3 || n - second != 5)
+		{
+			return INVALID;
+		}
+		return epochDay(digits(s, second + 1, n), digits(s, 0, first), digits(s, first + 1, second));
+	}
+
+	/**
+	 * Method to check a date given as numbers and turn it into its epoch day.
+	 *
+	 * @return the epoch day, or INVALID if there is no such day
+	 */
+	public static int epochDay(int year, int month, int day)
+	{
+		if(year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month))
+		{
+			return INVALID;
+		}
+		// days from the civil calendar, counted in 400 year eras from March
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Method to write an epoch day as YYYY-MM-DD.
+	 */
+	public static String formatDate(int epochDay)
+	{
+		int z = epochDay + 719468;
+		int era = (z >= 0 ? z : z - 146096) / 146097;
+		int dayOfEra = z - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		char[] c = new char[10];
+		put(c, 0, 4, year);
+		c[4] = '-';
+		put(c, 5, 7, month);
+		c[7] = '-';
+		put(c, 8, 10, day);
+		return new String(c);
+	}
+
+	public static boolean isLeapYear(int year)
+	{
+		return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	static int daysInMonth(int year, int month)
+	{
+		switch(month)
+		{
+			case 2:
+				return isLeapYear(year) ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	// the value of s[from, to) if it is all digits, else -1
+	private static int digits(CharSequence s, int from, int to)
+	{
+		int value = 0;
+		for(int i = from; i < to; ++i)
+		{
+			char c = s.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static int indexOf(CharSequence s, char c, int from)
+	{
+		for(int i = from; i < s.length(); ++i)
+		{
+			if(s.charAt(i) == c)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void put(char[] c, int from, int to, int value)
+	{
+		for(int i = to - 1; i >= from; --i)
+		{
+			c[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
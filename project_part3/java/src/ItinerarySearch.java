@@ -0,0 +1,622 @@
+/*
+ * Itinerary Search
+ * ================
+ *
+ * Connecting flights: the k shortest itineraries of up to N legs between two
+ * cities, using only flights that still have seats on the given date.
+ *
+ */
+
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class turns the Flight table into a graph of cities, one edge per
+ * flight weighted by its duration, stored as int arrays: the edges leaving
+ * city c are first[c] .. first[c + 1] - 1 (compressed sparse rows).
+ *
+ * A search runs Yen's algorithm for the k shortest loopless paths.  Each
+ * shortest path is found with A* over (city, legs used) states, so the leg
+ * limit is exact.  The estimate is the least duration from a city to the
+ * destination within the legs left, computed once per search over the whole
+ * graph, so cities that can not reach the destination in time are never
+ * expanded.  A state is dropped when its city was already left sooner with
+ * fewer legs, and the heap holds (estimate, state) packed into longs.
+ * Flights are only followed when they have a seat left on the date, asked of
+ * the SeatInventory when there is one, otherwise from one count of the
+ * bookings of that date.
+ *
+ * The schema has no departure times, so connections are not checked for
+ * layovers and every leg is taken to fly on the same date; the duration of an
+ * itinerary is the sum of its flights.
+ *
+ * The graph is rebuilt after a route changes and every refresh period
+ * (-Dairbooking.itinerary.refreshSeconds, default 300, 0 = never).
+ *
+ */
+public class ItinerarySearch
+{
+	public static final long DEFAULT_REFRESH_SECONDS = 300;
+	public static final int DEFAULT_MAX_LEGS = 3;
+	public static final int MAX_LEGS = 6;
+
+	static final String LOAD_SQL = "SELECT flightnum, origin, destination, seats, duration FROM flight";
+	static final String BOOKED_ON_SQL =
+		"SELECT flightnum, COUNT(*) FROM booking WHERE departure = ? GROUP BY flightnum";
+
+	/**
+	 * One itinerary found by a search.
+	 */
+	public static class Itinerary
+	{
+		// the flights in order
+		public final String[] flights;
+		// the cities visited, flights.length + 1 of them
+		public final String[] cities;
+		public final int duration;
+
+		Itinerary(String[] flights, String[] cities, int duration)
+		{
+			this.flights = flights;
+			this.cities = cities;
+			this.duration = duration;
+		}
+
+		public int legs()
+		{
+			return this.flights.length;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder(this.cities[0]);
+			for(int i = 0; i < this.flights.length; ++i)
+			{
+				sb.append(" -").append(this.flights[i]).append("-> ").append(this.cities[i + 1]);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The flights as a graph, never changed once built.
+	 */
+	private static final class Graph
+	{
+		final String[] cities;
+		final HashMap<String, Integer> cityIds;
+		// edges of city c are first[c] .. first[c + 1] - 1
+		final int[] first;
+		final int[] to;
+		final int[] duration;
+		final int[] seats;
+		final String[] flightnum;
+		final long builtAt = System.currentTimeMillis();
+
+		Graph(String[] cities, HashMap<String, Integer> cityIds, int[] first, int[] to, int[] duration, int[] seats,
+			String[] flightnum)
+		{
+			this.cities = cities;
+			this.cityIds = cityIds;
+			this.first = first;
+			this.to = to;
+			this.duration = duration;
+			this.seats = seats;
+			this.flightnum = flightnum;
+		}
+	}
+
+	/**
+	 * A path waiting to be taken by Yen's algorithm.
+	 */
+	private static final class Candidate implements Comparable<Candidate>
+	{
+		final int[] edges;
+		final int duration;
+
+		Candidate(int[] edges, int duration)
+		{
+			this.edges = edges;
+			this.duration = duration;
+		}
+
+		public int compareTo(Candidate other)
+		{
+			if(this.duration != other.duration)
+			{
+				return this.duration < other.duration ? -1 : 1;
+			}
+			if(this.edges.length != other.edges.length)
+			{
+				return this.edges.length < other.edges.length ? -1 : 1;
+			}
+			for(int i = 0; i < this.edges.length; ++i)
+			{
+				if(this.edges[i] != other.edges[i])
+				{
+					return this.edges[i] < other.edges[i] ? -1 : 1;
+				}
+			}
+			return 0;
+		}
+	}
+
+	private final AirBooking _esql;
+	// null when the seat cache is off
+	private final SeatInventory _seats;
+	private final long _refreshMillis;
+	private volatile Graph _graph = null;
+
+	public ItinerarySearch(AirBooking esql, SeatInventory seats)
+	{
+		this(esql, seats, Long.getLong("airbooking.itinerary.refreshSeconds", DEFAULT_REFRESH_SECONDS) * 1000);
+	}
+
+	public ItinerarySearch(AirBooking esql, SeatInventory seats, long refreshMillis)
+	{
+		this._esql = esql;
+		this._seats = seats;
+		this._refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Method to find the k shortest itineraries between two cities.
+	 *
+	 * @param origin the city to leave from
+	 * @param destination the city to arrive at
+	 * @param date the departure date as YYYY-MM-DD
+	 * @param k the number of itineraries wanted
+	 * @param maxLegs the most flights one itinerary may take
+	 * @return up to k itineraries, shortest first
+	 * @throws java.sql.SQLException when the flights or bookings could not be read
+	 */
+	public List<Itinerary> search(String origin, String destination, String date, int k, int maxLegs)
+		throws SQLException
+	{
+		if(maxLegs > MAX_LEGS)
+		{
+			throw new IllegalArgumentException("At most " + MAX_LEGS + " legs per itinerary");
+		}
+		Graph g = current();
+		List<Itinerary> found = new ArrayList<Itinerary>();
+		Integer from = g.cityIds.get(origin.trim());
+		Integer to = g.cityIds.get(destination.trim());
+		if(from == null || to == null || from.equals(to) || k <= 0 || maxLegs <= 0)
+		{
+			return found;
+		}
+		Query q = new Query(g, date, maxLegs);
+		for(int[] path : q.yen(from, to, k))
+		{
+			String[] flights = new String[path.length];
+			String[] cities = new String[path.length + 1];
+			cities[0] = g.cities[from];
+			int duration = 0;
+			for(int i = 0; i < path.length; ++i)
+			{
+				flights[i] = g.flightnum[path[i]];
+				cities[i + 1] = g.cities[g.to[path[i]]];
+				duration += g.duration[path[i]];
+			}
+			found.add(new Itinerary(flights, cities, duration));
+		}
+		return found;
+	}
+
+	/**
+	 * Method to print the k shortest itineraries, one per row.
+	 *
+	 * @return the number of rows printed
+	 */
+	public int print(PrintStream out, String origin, String destination, String date, int k, int maxLegs)
+		throws SQLException
+	{
+		List<Itinerary> found = search(origin, destination, date, k, maxLegs);
+		for(int i = 0; i < found.size(); ++i)
+		{
+			Itinerary it = found.get(i);
+			if(i == 0)
+			{
+				out.println("rank\tduration\tlegs\titinerary\t");
+			}
+			out.println((i + 1) + "\t" + it.duration + "\t" + it.legs() + "\t" + it + "\t");
+		}
+		return found.size();
+	}
+
+	/**
+	 * Method to drop the graph, it is built again on the next search.
+	 */
+	public void invalidate()
+	{
+		this._graph = null;
+	}
+
+	private Graph current() throws SQLException
+	{
+		Graph g = this._graph;
+		if(g == null || (this._refreshMillis > 0 && System.currentTimeMillis() - g.builtAt > this._refreshMillis))
+		{
+			synchronized(this)
+			{
+				if(g == this._graph)
+				{
+					this._graph = build();
+				}
+				g = this._graph;
+			}
+		}
+		return g;
+	}
+
+	private Graph build() throws SQLException
+	{
+		TypedResult rows = this._esql.executeQueryTyped(LOAD_SQL);
+		int n = rows.size();
+		HashMap<String, Integer> cityIds = new HashMap<String, Integer>();
+		List<String> cities = new ArrayList<String>();
+		int[] from = new int[n];
+		int[] to = new int[n];
+		for(int i = 0; i < n; ++i)
+		{
+			from[i] = cityId(rows.getString(i, 1).trim(), cityIds, cities);
+			to[i] = cityId(rows.getString(i, 2).trim(), cityIds, cities);
+		}
+
+		// counting sort of the flights by origin
+		int[] first = new int[cities.size() + 1];
+		for(int i = 0; i < n; ++i)
+		{
+			++first[from[i] + 1];
+		}
+		for(int c = 0; c < cities.size(); ++c)
+		{
+			first[c + 1] += first[c];
+		}
+		int[] next = Arrays.copyOf(first, cities.size());
+		int[] edgeTo = new int[n];
+		int[] duration = new int[n];
+		int[] seats = new int[n];
+		String[] flightnum = new String[n];
+		for(int i = 0; i < n; ++i)
+		{
+			int e = next[from[i]]++;
+			edgeTo[e] = to[i];
+			duration[e] = rows.getInt(i, 4);
+			seats[e] = rows.getInt(i, 3);
+			flightnum[e] = rows.getString(i, 0).trim();
+		}
+		return new Graph(cities.toArray(new String[cities.size()]), cityIds, first, edgeTo, duration, seats, flightnum);
+	}
+
+	private static int cityId(String city, HashMap<String, Integer> cityIds, List<String> cities)
+	{
+		Integer id = cityIds.get(city);
+		if(id == null)
+		{
+			id = cities.size();
+			cityIds.put(city, id);
+			cities.add(city);
+		}
+		return id;
+	}
+
+	/**
+	 * The state of one search: the seats of the date and the scratch arrays
+	 * of Dijkstra, reused by every spur search of Yen's algorithm.
+	 */
+	private final class Query
+	{
+		final Graph g;
+		final String date;
+		final int maxLegs;
+		// per flight: 0 not asked yet, 1 has seats, 2 full
+		final byte[] open;
+		// flightnum -> seats booked on the date, when there is no seat inventory
+		HashMap<String, Integer> booked = null;
+		final boolean[] blockedCity;
+		final boolean[] blockedEdge;
+		// per (city, legs left): lower bound of the duration still to fly
+		final int[] remaining;
+		// per (city, legs used) state
+		final int[] dist;
+		final boolean[] closed;
+		final int[] prevEdge;
+		final int[] prevState;
+		long[] heap = new long[64];
+		int heapSize = 0;
+
+		Query(Graph g, String date, int maxLegs)
+		{
+			this.g = g;
+			this.date = date;
+			this.maxLegs = maxLegs;
+			this.open = new byte[g.to.length];
+			this.blockedCity = new boolean[g.cities.length];
+			this.blockedEdge = new boolean[g.to.length];
+			int states = g.cities.length * (maxLegs + 1);
+			this.remaining = new int[states];
+			this.closed = new boolean[states];
+			this.dist = new int[states];
+			this.prevEdge = new int[states];
+			this.prevState = new int[states];
+		}
+
+		List<int[]> yen(int from, int to, int k) throws SQLException
+		{
+			List<int[]> found = new ArrayList<int[]>();
+			lowerBounds(to);
+			int[] shortest = shortest(from, to, this.maxLegs);
+			if(shortest == null)
+			{
+				return found;
+			}
+			found.add(shortest);
+			PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
+			HashSet<String> seen = new HashSet<String>();
+			seen.add(Arrays.toString(shortest));
+
+			while(found.size() < k)
+			{
+				int[] last = found.get(found.size() - 1);
+				for(int i = 0; i < last.length; ++i)
+				{
+					int spur = i == 0 ? from : this.g.to[last[i - 1]];
+					// no path may leave the spur city the way a found path with the same root did
+					for(int[] p : found)
+					{
+						if(p.length > i && samePrefix(p, last, i))
+						{
+							this.blockedEdge[p[i]] = true;
+						}
+					}
+					// nor come back through the root
+					this.blockedCity[from] = i > 0;
+					for(int j = 0; j < i - 1; ++j)
+					{
+						this.blockedCity[this.g.to[last[j]]] = true;
+					}
+
+					int[] tail = shortest(spur, to, this.maxLegs - i);
+
+					for(int[] p : found)
+					{
+						if(p.length > i)
+						{
+							this.blockedEdge[p[i]] = false;
+						}
+					}
+					this.blockedCity[from] = false;
+					for(int j = 0; j < i - 1; ++j)
+					{
+						this.blockedCity[this.g.to[last[j]]] = false;
+					}
+					if(tail != null)
+					{
+						int[] path = Arrays.copyOf(last, i + tail.length);
+						System.arraycopy(tail, 0, path, i, tail.length);
+						if(seen.add(Arrays.toString(path)))
+						{
+							candidates.add(new Candidate(path, duration(path)));
+						}
+					}
+				}
+				Candidate next = candidates.poll();
+				if(next == null)
+				{
+					break;
+				}
+				found.add(next.edges);
+			}
+			return found;
+		}
+
+		// least duration from every city to the target in at most l legs, ignoring seats
+		void lowerBounds(int to)
+		{
+			int width = this.maxLegs + 1;
+			Arrays.fill(this.remaining, Integer.MAX_VALUE);
+			for(int l = 0; l <= this.maxLegs; ++l)
+			{
+				this.remaining[to * width + l] = 0;
+			}
+			for(int l = 1; l <= this.maxLegs; ++l)
+			{
+				for(int city = 0; city < this.g.cities.length; ++city)
+				{
+					int best = this.remaining[city * width + l - 1];
+					for(int e = this.g.first[city]; e < this.g.first[city + 1]; ++e)
+					{
+						int rest = this.remaining[this.g.to[e] * width + l - 1];
+						if(rest != Integer.MAX_VALUE && rest + this.g.duration[e] < best)
+						{
+							best = rest + this.g.duration[e];
+						}
+					}
+					this.remaining[city * width + l] = best;
+				}
+			}
+		}
+
+		// A* over (city, legs) states, the flights of the shortest path or null
+		int[] shortest(int from, int to, int legLimit) throws SQLException
+		{
+			int width = this.maxLegs + 1;
+			Arrays.fill(this.dist, Integer.MAX_VALUE);
+			Arrays.fill(this.closed, false);
+			this.heapSize = 0;
+			int start = from * width;
+			if(this.remaining[from * width + legLimit] == Integer.MAX_VALUE)
+			{
+				return null;
+			}
+			this.dist[start] = 0;
+			push(this.remaining[from * width + legLimit], start);
+			while(this.heapSize > 0)
+			{
+				int state = (int) pop();
+				if(this.closed[state])
+				{
+					continue;
+				}
+				this.closed[state] = true;
+				int d = this.dist[state];
+				int city = state / width;
+				int legs = state % width;
+				if(city == to)
+				{
+					int[] path = new int[legs];
+					for(int s = state, i = legs - 1; i >= 0; s = this.prevState[s], --i)
+					{
+						path[i] = this.prevEdge[s];
+					}
+					return path;
+				}
+				if(dominated(city, legs, d))
+				{
+					continue;
+				}
+				for(int e = this.g.first[city]; e < this.g.first[city + 1]; ++e)
+				{
+					int next = this.g.to[e];
+					int ns = next * width + legs + 1;
+					int rest = this.remaining[next * width + legLimit - legs - 1];
+					int nd = d + this.g.duration[e];
+					if(rest == Integer.MAX_VALUE || nd >= this.dist[ns]
+						|| this.blockedEdge[e] || this.blockedCity[next] || !isOpen(e))
+					{
+						continue;
+					}
+					this.dist[ns] = nd;
+					this.prevEdge[ns] = e;
+					this.prevState[ns] = state;
+					push(nd + rest, ns);
+				}
+			}
+			return null;
+		}
+
+		// the city was already left with fewer legs and no more time
+		boolean dominated(int city, int legs, int d)
+		{
+			int width = this.maxLegs + 1;
+			for(int l = 0; l < legs; ++l)
+			{
+				int s = city * width + l;
+				if(this.closed[s] && this.dist[s] <= d)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean isOpen(int e) throws SQLException
+		{
+			if(this.open[e] == 0)
+			{
+				int left;
+				if(ItinerarySearch.this._seats != null)
+				{
+					Integer available = ItinerarySearch.this._seats.available(this.g.flightnum[e], this.date);
+					left = available == null ? 0 : available;
+				}
+				else
+				{
+					if(this.booked == null)
+					{
+						this.booked = bookedOn(this.date);
+					}
+					Integer taken = this.booked.get(this.g.flightnum[e]);
+					left = this.g.seats[e] - (taken == null ? 0 : taken);
+				}
+				this.open[e] = (byte) (left > 0 ? 1 : 2);
+			}
+			return this.open[e] == 1;
+		}
+
+		int duration(int[] path)
+		{
+			int total = 0;
+			for(int e : path)
+			{
+				total += this.g.duration[e];
+			}
+			return total;
+		}
+
+		void push(int d, int state)
+		{
+			if(this.heapSize == this.heap.length)
+			{
+				this.heap = Arrays.copyOf(this.heap, this.heapSize * 2);
+			}
+			long v = ((long) d << 32) | state;
+			int i = this.heapSize++;
+			while(i > 0 && this.heap[(i - 1) / 2] > v)
+			{
+				this.heap[i] = this.heap[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			this.heap[i] = v;
+		}
+
+		long pop()
+		{
+			long top = this.heap[0];
+			long v = this.heap[--this.heapSize];
+			int i = 0;
+			while(true)
+			{
+				int child = 2 * i + 1;
+				if(child >= this.heapSize)
+				{
+					break;
+				}
+				if(child + 1 < this.heapSize && this.heap[child + 1] < this.heap[child])
+				{
+					++child;
+				}
+				if(this.heap[child] >= v)
+				{
+					break;
+				}
+				this.heap[i] = this.heap[child];
+				i = child;
+			}
+			this.heap[i] = v;
+			return top;
+		}
+	}
+
+	private static boolean samePrefix(int[] a, int[] b, int length)
+	{
+		for(int i = 0; i < length; ++i)
+		{
+			if(a[i] != b[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private HashMap<String, Integer> bookedOn(String date) throws SQLException
+	{
+		TypedResult rows = this._esql.executeQueryTyped(BOOKED_ON_SQL, Date.valueOf(date));
+		HashMap<String, Integer> booked = new HashMap<String, Integer>();
+		for(int i = 0; i < rows.size(); ++i)
+		{
+			booked.put(rows.getString(i, 0).trim(), rows.getInt(i, 1));
+		}
+		return booked;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Latency Histogram
+ * =================
+ *
+ * Fixed size, lock free histogram of durations in nanoseconds, for
+ * percentiles of benchmarks and of the running application.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 32 buckets, so a percentile is off by at most 1/32 (about 3%) of its value,
+ * from 1 ns up to Long.MAX_VALUE, in under 2000 counters.  record() is a few
+ * atomic increments and never allocates, so it can be called on every
+ * request from any number of threads.
+ *
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _total = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Method to count one duration.
+	 *
+	 * @param nanos the duration, negative values count as 0
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+		{
+			nanos = 0;
+		}
+		this._counts.incrementAndGet(index(nanos));
+		this._total.incrementAndGet();
+		this._sum.addAndGet(nanos);
+		long max = this._max.get();
+		while(nanos > max && !this._max.compareAndSet(max, nanos))
+		{
+			max = this._max.get();
+		}
+	}
+
+	public long count()
+	{
+		return this._total.get();
+	}
+
+	public long max()
+	{
+		return this._max.get();
+	}
+
+	public double mean()
+	{
+		long total = this._total.get();
+		return total == 0 ? 0 : (double) this._sum.get() / total;
+	}
+
+	/**
+	 * Method to get the value below which a share of the durations fall.
+	 *
+	 * @param percent between 0 and 100, e.g. 99.9
+	 * @return the duration in nanoseconds, 0 when nothing was recorded
+	 */
+	public long percentile(double percent)
+	{
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			counts[i] = this._counts.get(i);
+			total += counts[i];
+		}
+		if(total == 0)
+		{
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+			{
+				return Math.min(valueOf(i), max());
+			}
+		}
+		return max();
+	}
+
+	/**
+	 * Method to add the counts of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			long n = other._counts.get(i);
+			if(n != 0)
+			{
+				this._counts.addAndGet(i, n);
+			}
+		}
+		this._total.addAndGet(other._total.get());
+		this._sum.addAndGet(other._sum.get());
+		long max = this._max.get();
+		long otherMax = other._max.get();
+		while(otherMax > max && !this._max.compareAndSet(max, otherMax))
+		{
+			max = this._max.get();
+		}
+	}
+
+	/**
+	 * Method to move the counts so far into a new histogram and start this
+	 * one from zero, for reporting interval by interval.  Durations recorded
+	 * while it runs land in either one, none are lost.
+	 *
+	 * @return the counts up to now
+	 */
+	public LatencyHistogram takeInterval()
+	{
+		LatencyHistogram taken = new LatencyHistogram();
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			long n = this._counts.getAndSet(i, 0);
+			if(n != 0)
+			{
+				taken._counts.set(i, n);
+			}
+		}
+		taken._total.set(this._total.getAndSet(0));
+		taken._sum.set(this._sum.getAndSet(0));
+		taken._max.set(this._max.getAndSet(0));
+		return taken;
+	}
+
+	public void reset()
+	{
+		takeInterval();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+			count(), mean() / 1e3, percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+			percentile(99.9) / 1e3, max() / 1e3);
+	}
+
+	static int index(long value)
+	{
+		if(value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int group = exp - SUB_BITS + 1;
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return group * SUB_BUCKETS + sub;
+	}
+
+	// the middle of the values counted at an index
+	static long valueOf(int index)
+	{
+		int group = index >>> SUB_BITS;
+		long sub = index & (SUB_BUCKETS - 1);
+		if(group == 0)
+		{
+			return sub;
+		}
+		long low = (SUB_BUCKETS + sub) << (group - 1);
+		return low + ((1L << (group - 1)) >>> 1);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * LRU Cache
+ * =========
+ *
+ * A small bounded map that forgets the least recently used entry first.
+ *
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe, least recently used cache with hit and miss counters.  Null
+ * values are not stored, a get() returning null is a miss.  A capacity of 0
+ * keeps nothing, so every get() is a miss.
+ *
+ */
+public class LruCache<K, V>
+{
+	private final int _capacity;
+	private final LinkedHashMap<K, V> _entries;
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+
+	public LruCache(int capacity)
+	{
+		this._capacity = capacity;
+		// access order so the eldest entry is the least recently used one
+		this._entries = new LinkedHashMap<K, V>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+			{
+				if(size() > LruCache.this._capacity)
+				{
+					++LruCache.this._evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public synchronized V get(K key)
+	{
+		V value = this._entries.get(key);
+		if(value == null)
+		{
+			++this._misses;
+		}
+		else
+		{
+			++this._hits;
+		}
+		return value;
+	}
+
+	public synchronized void put(K key, V value)
+	{
+		if(value != null)
+		{
+			this._entries.put(key, value);
+		}
+	}
+
+	public synchronized void remove(K key)
+	{
+		this._entries.remove(key);
+	}
+
+	public synchronized void clear()
+	{
+		this._entries.clear();
+	}
+
+	public synchronized long getHits()
+	{
+		return this._hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return this._misses;
+	}
+
+	/**
+	 * @return the share of get() calls that were hits, 0 before the first one
+	 */
+	public synchronized double getHitRate()
+	{
+		long lookups = this._hits + this._misses;
+		return lookups == 0 ? 0 : (double) this._hits / lookups;
+	}
+
+	public synchronized int size()
+	{
+		return this._entries.size();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "entries: " + this._entries.size() + "/" + this._capacity
+			+ ", hits: " + this._hits + ", misses: " + this._misses
+			+ String.format(" (%.1f%% hit rate)", 100 * getHitRate()) + ", evicted: " + this._evictions;
+	}
+}
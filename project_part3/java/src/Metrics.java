@@ -0,0 +1,360 @@
+/*
+ * Metrics
+ * =======
+ *
+ * Timers and counters per operation and per SQL statement, readable over JMX
+ * and dumped to standard error at a fixed rate.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * An operation is what a user asked for: a menu choice, a service request, a
+ * load driver step.  It is bracketed by begin() and end() on the thread that
+ * runs it, and every statement the thread executes in between, including the
+ * ones issued by validation helpers and caches, is counted against it: round
+ * trips, rows and time spent in the database.  Every statement is also timed
+ * on its own, keyed by its SQL text.  Latencies go into LatencyHistograms.
+ *
+ * Recording takes a thread local lookup, a map lookup and a few atomic
+ * increments, next to a network round trip each time.  Operations and
+ * statements are listed by the Metrics MBean (airbooking:type=Metrics) with
+ * the pool and cache counters, and printed every
+ * -Dairbooking.metrics.dumpSeconds (0, off).  -Dairbooking.metrics=false
+ * turns all recording off.
+ *
+ */
+public final class Metrics
+{
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("airbooking.metrics", "true"));
+	static final long DUMP_SECONDS = Long.getLong("airbooking.metrics.dumpSeconds", 0);
+	public static final String OBJECT_NAME = "airbooking:type=Metrics";
+
+	/**
+	 * What the MBean shows.
+	 */
+	public interface View
+	{
+		String[] getOperations();
+
+		String[] getStatements();
+
+		String[] getCounters();
+
+		long getRoundTrips();
+
+		void reset();
+	}
+
+	/**
+	 * Counts of one operation or statement.
+	 */
+	static final class Timer
+	{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong roundTrips = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong sqlNanos = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	// the operation running on a thread, reused from one operation to the next
+	private static final class Frame
+	{
+		String operation;
+		int depth;
+		long start;
+		long roundTrips;
+		long rows;
+		long sqlNanos;
+	}
+
+	private static final ThreadLocal<Frame> FRAME = new ThreadLocal<Frame>()
+	{
+		@Override
+		protected Frame initialValue()
+		{
+			return new Frame();
+		}
+	};
+	private static final ConcurrentHashMap<String, Timer> OPERATIONS = new ConcurrentHashMap<String, Timer>();
+	private static final ConcurrentHashMap<String, Timer> STATEMENTS = new ConcurrentHashMap<String, Timer>();
+	// objects whose toString() reports their own counters, e.g. the pool
+	private static final Map<String, Object> COUNTERS = new ConcurrentHashMap<String, Object>();
+	private static final AtomicLong ROUND_TRIPS = new AtomicLong();
+	private static boolean _registered = false;
+
+	private Metrics()
+	{
+	}
+
+	/**
+	 * Method to start an operation on this thread.  Nested calls belong to the
+	 * outermost operation.
+	 *
+	 * @param operation its name, e.g. "BookFlight"
+	 */
+	public static void begin(String operation)
+	{
+		if(!ENABLED)
+		{
+			return;
+		}
+		Frame frame = FRAME.get();
+		if(frame.depth++ == 0)
+		{
+			frame.operation = operation;
+			frame.start = System.nanoTime();
+			frame.roundTrips = 0;
+			frame.rows = 0;
+			frame.sqlNanos = 0;
+		}
+	}
+
+	/**
+	 * Method to end the operation started by the matching begin().
+	 *
+	 * @param failed whether it ended with an error
+	 */
+	public static void end(boolean failed)
+	{
+		if(!ENABLED)
+		{
+			return;
+		}
+		Frame frame = FRAME.get();
+		if(frame.depth == 0 || --frame.depth > 0)
+		{
+			return;
+		}
+		Timer timer = timer(OPERATIONS, frame.operation);
+		timer.latency.record(System.nanoTime() - frame.start);
+		timer.roundTrips.addAndGet(frame.roundTrips);
+		timer.rows.addAndGet(frame.rows);
+		timer.sqlNanos.addAndGet(frame.sqlNanos);
+		if(failed)
+		{
+			timer.errors.incrementAndGet();
+		}
+		frame.operation = null;
+	}
+
+	/**
+	 * Method to record one executed statement.
+	 *
+	 * @param sql the statement text, as prepared
+	 * @param start System.nanoTime() before it was sent
+	 * @param rows rows returned or changed, negative if it failed
+	 * @param roundTrips messages exchanged with the server for it
+	 */
+	public static void sql(String sql, long start, long rows, long roundTrips)
+	{
+		if(!ENABLED)
+		{
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		Timer timer = timer(STATEMENTS, sql);
+		timer.latency.record(nanos);
+		timer.roundTrips.addAndGet(roundTrips);
+		if(rows < 0)
+		{
+			timer.errors.incrementAndGet();
+		}
+		else
+		{
+			timer.rows.addAndGet(rows);
+		}
+		ROUND_TRIPS.addAndGet(roundTrips);
+
+		Frame frame = FRAME.get();
+		if(frame.depth > 0)
+		{
+			frame.roundTrips += roundTrips;
+			frame.rows += Math.max(rows, 0);
+			frame.sqlNanos += nanos;
+		}
+	}
+
+	/**
+	 * Method to count the round trips of a fetch: the first batch comes with
+	 * the execute, every further fetchSize rows take one more.
+	 */
+	static long fetches(long rows, int fetchSize)
+	{
+		return fetchSize <= 0 ? 1 : 1 + rows / fetchSize;
+	}
+
+	/**
+	 * Method to list an object's toString() with the counters, and to make
+	 * the MBean available on first use.
+	 *
+	 * @param name what the counters are of, e.g. "pool"
+	 */
+	public static synchronized void register(String name, Object counters)
+	{
+		if(!ENABLED)
+		{
+			return;
+		}
+		COUNTERS.put(name, counters);
+		if(_registered)
+		{
+			return;
+		}
+		_registered = true;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new MBean(), View.class),
+				new ObjectName(OBJECT_NAME));
+		}
+		catch(JMException e)
+		{
+			System.err.println("Metrics not available over JMX: " + e.getMessage());
+		}
+		if(DUMP_SECONDS > 0)
+		{
+			ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "metrics-dump");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			dumper.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					System.err.print(report());
+				}
+			}, DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Method to print everything recorded so far as a table.
+	 */
+	public static String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%n%-48s %9s %9s %9s %9s %9s %9s %9s %6s%n", "operation", "count", "p50 ms",
+			"p99 ms", "p99.9 ms", "trips/op", "rows/op", "sql ms/op", "errors"));
+		for(String line : lines(OPERATIONS, 48))
+		{
+			sb.append(line).append(String.format("%n"));
+		}
+		sb.append(String.format("%-48s %9s %9s %9s %9s %9s %9s %9s %6s%n", "statement", "count", "p50 ms",
+			"p99 ms", "p99.9 ms", "trips", "rows", "", "errors"));
+		for(String line : lines(STATEMENTS, 48))
+		{
+			sb.append(line).append(String.format("%n"));
+		}
+		for(Map.Entry<String, Object> e : new TreeMap<String, Object>(COUNTERS).entrySet())
+		{
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append(String.format("%n"));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Method to clear the timers, e.g. after a warmup.
+	 */
+	public static void reset()
+	{
+		OPERATIONS.clear();
+		STATEMENTS.clear();
+		ROUND_TRIPS.set(0);
+	}
+
+	private static Timer timer(ConcurrentHashMap<String, Timer> timers, String key)
+	{
+		Timer timer = timers.get(key);
+		if(timer == null)
+		{
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(key, created);
+			if(timer == null)
+			{
+				timer = created;
+			}
+		}
+		return timer;
+	}
+
+	// one line per timer, statements with their text on one line and cut to width
+	private static List<String> lines(ConcurrentHashMap<String, Timer> timers, int width)
+	{
+		boolean perOperation = timers == OPERATIONS;
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String, Timer> e : new TreeMap<String, Timer>(timers).entrySet())
+		{
+			Timer t = e.getValue();
+			long n = Math.max(1, t.latency.count());
+			String name = e.getKey().replaceAll("\\s+", " ").trim();
+			if(name.length() > width)
+			{
+				name = name.substring(0, width - 3) + "...";
+			}
+			lines.add(String.format("%-" + width + "s %9d %9.2f %9.2f %9.2f %9s %9s %9s %6d", name,
+				t.latency.count(), t.latency.percentile(50) / 1e6, t.latency.percentile(99) / 1e6,
+				t.latency.percentile(99.9) / 1e6,
+				perOperation ? String.format("%.1f", (double) t.roundTrips.get() / n) : Long.toString(t.roundTrips.get()),
+				perOperation ? String.format("%.1f", (double) t.rows.get() / n) : Long.toString(t.rows.get()),
+				perOperation ? String.format("%.2f", t.sqlNanos.get() / 1e6 / n) : "",
+				t.errors.get()));
+		}
+		return lines;
+	}
+
+	private static final class MBean implements View
+	{
+		public String[] getOperations()
+		{
+			List<String> lines = lines(OPERATIONS, 48);
+			return lines.toArray(new String[lines.size()]);
+		}
+
+		public String[] getStatements()
+		{
+			List<String> lines = lines(STATEMENTS, 200);
+			return lines.toArray(new String[lines.size()]);
+		}
+
+		public String[] getCounters()
+		{
+			List<String> lines = new ArrayList<String>();
+			for(Map.Entry<String, Object> e : new TreeMap<String, Object>(COUNTERS).entrySet())
+			{
+				lines.add(e.getKey() + ": " + e.getValue());
+			}
+			return lines.toArray(new String[lines.size()]);
+		}
+
+		public long getRoundTrips()
+		{
+			return ROUND_TRIPS.get();
+		}
+
+		public void reset()
+		{
+			Metrics.reset();
+		}
+	}
+}
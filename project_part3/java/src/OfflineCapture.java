@@ -0,0 +1,604 @@
+/*
+ * Offline Capture
+ * ===============
+ *
+ * Keeps taking new passengers, bookings and reviews while the database can
+ * not be reached, and applies them once it is back.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * While offline, AddPassenger, BookFlight and TakeCustomerReview append a
+ * record to a WriteAheadLog in -Dairbooking.wal.dir (default wal) instead of
+ * running their statements, and answer once it is on disk: a booking with a
+ * reference made locally, a passenger and a review without their ids, which
+ * the sequences hand out on replay.  The checks that need the database are
+ * made on replay as well; what fails them is reported on standard error.
+ *
+ * Going offline starts a task that tries the database every
+ * -Dairbooking.offline.retrySeconds (10).  When it answers, the log is
+ * replayed in order, runs of records of one kind as one statement: the
+ * passengers as one insert from arrays, the bookings through
+ * AirBooking.bookGroup, keeping their references, the reviews as one insert
+ * from arrays.  A checkpoint after every run means a run is only replayed
+ * twice if the process stops between its commit and the checkpoint; the
+ * passport and booking checks then skip it, a review is stored twice.  The
+ * last records are replayed while appends are held off, so nothing is
+ * appended after the switch back.  A log left by an earlier run is replayed
+ * at startup.
+ *
+ * A run that fails for another reason than a lost connection (SQLState class
+ * 08), e.g. on a constraint or a cast, is reported and tried again; after
+ * MAX_FAILURES attempts its records are applied one at a time, and the one
+ * that fails is rejected and reported like a record that fails its checks,
+ * so one bad record does not keep the process offline.
+ *
+ */
+public class OfflineCapture
+{
+	public static final long DEFAULT_RETRY_SECONDS = 10;
+	// records per replayed statement
+	static final int BATCH_SIZE = 500;
+	// failed attempts of a run before it is applied one record at a time
+	static final int MAX_FAILURES = 3;
+
+	static final byte PASSENGER = 'P';
+	static final byte BOOKING = 'B';
+	static final byte REVIEW = 'R';
+
+	// passports that are taken are skipped and reported
+	static final String PASSENGERS_SQL =
+		"INSERT INTO passenger (pID, passNum, fullName, bdate, country) " +
+		"SELECT * FROM unnest(?::int[], ?::text[], ?::text[], ?::date[], ?::text[]) " +
+		"ON CONFLICT DO NOTHING RETURNING pID";
+	static final String REVIEWS_SQL =
+		"INSERT INTO ratings (rID, pID, flightNum, score, comment) " +
+		"SELECT * FROM unnest(?::int[], ?::int[], ?::text[], ?::int[], ?::text[]) " +
+		"ON CONFLICT DO NOTHING RETURNING rID";
+
+	private final AirBooking _esql;
+	private final ReferenceCache _refs;
+	// null when the rating index is off
+	private final RouteRatings _ratings;
+	private final File _dir;
+	private final long _retrySeconds;
+	// appends hold the read lock, the switch back online the write lock
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+	private volatile boolean _offline = false;
+	// opened on first use
+	private WriteAheadLog _wal = null;
+	private ScheduledExecutorService _retry = null;
+
+	// counters
+	private final AtomicLong _captured = new AtomicLong();
+	private long _applied = 0;
+	private long _rejected = 0;
+	private long _outages = 0;
+	// failed attempts of the first run not applied, only touched by replay()
+	private int _failures = 0;
+
+	public OfflineCapture(AirBooking esql, ReferenceCache refs, RouteRatings ratings)
+	{
+		this(esql, refs, ratings, new File(System.getProperty("airbooking.wal.dir", "wal")),
+			Long.getLong("airbooking.offline.retrySeconds", DEFAULT_RETRY_SECONDS));
+	}
+
+	public OfflineCapture(AirBooking esql, ReferenceCache refs, RouteRatings ratings, File dir, long retrySeconds)
+	{
+		this._esql = esql;
+		this._refs = refs;
+		this._ratings = ratings;
+		this._dir = dir;
+		this._retrySeconds = Math.max(1, retrySeconds);
+	}
+
+	public boolean isOffline()
+	{
+		return this._offline;
+	}
+
+	/**
+	 * Method to tell whether a failure means the database is gone, and to go
+	 * offline if it does.
+	 *
+	 * @param e what a statement or the pool threw
+	 * @return true for a connection failure (SQLState class 08)
+	 */
+	public boolean lostConnection(Throwable e)
+	{
+		if(!connectionFailure(e))
+		{
+			return false;
+		}
+		goOffline();
+		return true;
+	}
+
+	private static boolean connectionFailure(Throwable e)
+	{
+		if(!(e instanceof SQLException))
+		{
+			return false;
+		}
+		String state = ((SQLException) e).getSQLState();
+		return state != null && state.startsWith("08");
+	}
+
+	/**
+	 * Method to start capturing and retrying the database.
+	 */
+	public synchronized void goOffline()
+	{
+		if(this._offline)
+		{
+			return;
+		}
+		try
+		{
+			wal();
+		}
+		catch(IOException e)
+		{
+			// without a log there is nothing to capture into, the operations fail as before
+			System.err.println("Can not open the write ahead log " + this._dir + ": " + e.getMessage());
+			return;
+		}
+		++this._outages;
+		this._offline = true;
+		System.err.println("Database unreachable, new passengers, bookings and reviews are kept in " + this._dir
+			+ " until it is back");
+		if(this._retry == null)
+		{
+			this._retry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "offline-retry");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this._retry.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					reconnect();
+				}
+			}, this._retrySeconds, this._retrySeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Method to capture a new passenger.
+	 *
+	 * @return false when online, the passenger is then not captured
+	 */
+	public boolean addPassenger(String name, String dob, String country, String passNum) throws SQLException
+	{
+		return append(PASSENGER, name, dob, country, passNum);
+	}
+
+	/**
+	 * Method to capture a booking.
+	 *
+	 * @return the booking reference it will get, null when online
+	 */
+	public String book(String date, String flightnum, String passNum) throws SQLException
+	{
+		if(!this._offline)
+		{
+			// an online booking makes its own reference, none is used up here
+			return null;
+		}
+		String bookref = this._esql.getBookRef();
+		return append(BOOKING, bookref, date, flightnum, passNum) ? bookref : null;
+	}
+
+	/**
+	 * Method to capture a review.
+	 *
+	 * @param pid the reviewer, "-1" if only the passport is known
+	 * @return false when online, the review is then not captured
+	 */
+	public boolean review(String pid, String passNum, String flightnum, String score, String comment)
+		throws SQLException
+	{
+		return append(REVIEW, pid, passNum == null ? "" : passNum, flightnum, score, comment == null ? "" : comment);
+	}
+
+	/**
+	 * Method to apply a log left by an earlier run, if there is one.
+	 */
+	public synchronized void recover() throws SQLException
+	{
+		if(!this._dir.isDirectory())
+		{
+			return;
+		}
+		try
+		{
+			wal();
+			int n = replay();
+			if(n > 0)
+			{
+				System.out.println("Applied " + n + " operations kept in " + this._dir + " while offline");
+			}
+		}
+		catch(IOException e)
+		{
+			throw new SQLException("Can not use the write ahead log " + this._dir + ": " + e.getMessage(), e);
+		}
+	}
+
+	public void close()
+	{
+		synchronized(this)
+		{
+			if(this._retry != null)
+			{
+				this._retry.shutdownNow();
+			}
+		}
+		this._lock.writeLock().lock();
+		try
+		{
+			if(this._wal != null)
+			{
+				this._wal.close();
+			}
+		}
+		catch(IOException e)
+		{
+			// ignored, every record was forced when it was appended.
+		}
+		finally
+		{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return (this._offline ? "offline" : "online") + ", outages: " + this._outages + ", captured: "
+			+ this._captured.get() + ", applied: " + this._applied + ", rejected: " + this._rejected
+			+ (this._wal == null ? "" : ", " + this._wal);
+	}
+
+	private boolean append(byte type, String... fields) throws SQLException
+	{
+		this._lock.readLock().lock();
+		try
+		{
+			if(!this._offline)
+			{
+				return false;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for(String field : fields)
+			{
+				out.writeUTF(field);
+			}
+			this._wal.append(type, bytes.toByteArray());
+			this._captured.incrementAndGet();
+			return true;
+		}
+		catch(IOException e)
+		{
+			throw new SQLException("Write ahead log write failed: " + e.getMessage(), e);
+		}
+		finally
+		{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	private synchronized WriteAheadLog wal() throws IOException
+	{
+		if(this._wal == null)
+		{
+			this._wal = new WriteAheadLog(this._dir);
+		}
+		return this._wal;
+	}
+
+	// runs on the retry thread
+	private void reconnect()
+	{
+		if(!this._offline)
+		{
+			return;
+		}
+		try
+		{
+			this._esql.executeQueryTyped("SELECT 1");
+			this._esql.reconnected();
+			replay();
+			this._lock.writeLock().lock();
+			try
+			{
+				// whatever was appended during the first pass
+				replay();
+				this._offline = false;
+			}
+			finally
+			{
+				this._lock.writeLock().unlock();
+			}
+			System.err.println("Database is back, the operations kept in " + this._dir + " are applied");
+		}
+		catch(SQLException e)
+		{
+			// still offline, or a run failed and is tried again next time
+			if(!connectionFailure(e))
+			{
+				System.err.println("Applying the operations kept in " + this._dir + " failed, tried again in "
+					+ this._retrySeconds + " s: " + e.getMessage());
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Can not read the write ahead log " + this._dir + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to apply every record after the checkpoint.
+	 *
+	 * @return the number of records applied
+	 */
+	private synchronized int replay() throws SQLException, IOException
+	{
+		List<WriteAheadLog.Record> records = this._wal.replay();
+		int i = 0;
+		// records left to apply one at a time, after a run of them kept failing
+		int single = 0;
+		while(i < records.size())
+		{
+			byte type = records.get(i).type;
+			int j = i;
+			List<String[]> run = new ArrayList<String[]>();
+			while(j < records.size() && records.get(j).type == type && run.size() < (single > 0 ? 1 : BATCH_SIZE))
+			{
+				run.add(decode(records.get(j).payload));
+				++j;
+			}
+			int rejected;
+			try
+			{
+				rejected = apply(type, run);
+				this._failures = 0;
+			}
+			catch(SQLException e)
+			{
+				if(connectionFailure(e) || (single == 0 && ++this._failures < MAX_FAILURES))
+				{
+					throw e;
+				}
+				this._failures = 0;
+				if(single == 0 && run.size() > 1)
+				{
+					// one of them fails every time, find it
+					System.err.println("Applying " + run.size() + " operations kept in " + this._dir + " failed "
+						+ MAX_FAILURES + " times, they are applied one at a time: " + e.getMessage());
+					single = run.size();
+					continue;
+				}
+				System.err.println(describe(type, run.get(0)) + " not applied: " + e.getMessage());
+				rejected = 1;
+			}
+			single = Math.max(0, single - 1);
+			this._wal.checkpoint(records.get(j - 1).end);
+			this._applied += run.size() - rejected;
+			this._rejected += rejected;
+			i = j;
+		}
+		return records.size();
+	}
+
+	// applies a run of records of one type, returns the number rejected
+	private int apply(byte type, List<String[]> run) throws SQLException
+	{
+		switch(type)
+		{
+			case PASSENGER:
+				return applyPassengers(run);
+			case BOOKING:
+				return applyBookings(run);
+			case REVIEW:
+				return applyReviews(run);
+			default:
+				System.err.println("Skipped " + run.size() + " records of unknown type " + type + " in " + this._dir);
+				return run.size();
+		}
+	}
+
+	// what a record is, for the messages about it
+	private static String describe(byte type, String[] f)
+	{
+		switch(type)
+		{
+			case PASSENGER:
+				return "Passenger " + f[0] + " (passport " + f[3] + ") added offline";
+			case BOOKING:
+				return "Booking " + f[0] + " (" + f[2] + " " + f[1] + " passport " + f[3] + ") made offline";
+			default:
+				return "Review of " + f[2].trim() + " by passport " + f[1] + " taken offline";
+		}
+	}
+
+	// name, dob, country, passNum
+	private int applyPassengers(List<String[]> run) throws SQLException
+	{
+		int m = run.size();
+		final Integer[] pids = new Integer[m];
+		final String[] passNums = new String[m];
+		final String[] names = new String[m];
+		final String[] dobs = new String[m];
+		final String[] countries = new String[m];
+		final Map<Integer, String[]> byPid = new HashMap<Integer, String[]>();
+		for(int i = 0; i < m; ++i)
+		{
+			String[] f = run.get(i);
+			pids[i] = Integer.parseInt(this._esql.getPid());
+			names[i] = f[0];
+			dobs[i] = f[1];
+			countries[i] = f[2];
+			passNums[i] = f[3];
+			byPid.put(pids[i], f);
+		}
+		this._esql.withConnection(c -> {
+			PreparedStatement stmt = c.statements.prepare(PASSENGERS_SQL);
+			stmt.setArray(1, c.connection.createArrayOf("int4", pids));
+			stmt.setArray(2, c.connection.createArrayOf("text", passNums));
+			stmt.setArray(3, c.connection.createArrayOf("text", names));
+			stmt.setArray(4, c.connection.createArrayOf("text", dobs));
+			stmt.setArray(5, c.connection.createArrayOf("text", countries));
+			long start = System.nanoTime();
+			long rows = 0;
+			try(ResultSet rs = stmt.executeQuery())
+			{
+				while(rs.next())
+				{
+					int pid = rs.getInt(1);
+					this._refs.passengerAdded(pid, byPid.remove(pid)[3]);
+					++rows;
+				}
+			}
+			Metrics.sql(PASSENGERS_SQL, start, rows, 1);
+			return rows;
+		});
+		for(String[] f : byPid.values())
+		{
+			System.err.println(describe(PASSENGER, f) + " not applied: the passport number is taken");
+		}
+		return byPid.size();
+	}
+
+	// bookRef, date, flightnum, passNum
+	private int applyBookings(List<String[]> run) throws SQLException
+	{
+		List<GroupBooking.Entry> entries = new ArrayList<GroupBooking.Entry>();
+		for(String[] f : run)
+		{
+			this._esql.bookRefIssued(f[0]);
+			entries.add(new GroupBooking.Entry(f[3], f[2], f[1], f[0]));
+		}
+		List<BookingResult> results = this._esql.bookGroup(entries, false);
+		int rejected = 0;
+		for(int i = 0; i < results.size(); ++i)
+		{
+			BookingResult result = results.get(i);
+			String[] f = run.get(i);
+			String booking = describe(BOOKING, f) + " ";
+			if(!result.isBooked())
+			{
+				System.err.println(booking + "not applied: " + result.outcome.message);
+				++rejected;
+			}
+			else if(!result.bookRef.equals(f[0]))
+			{
+				System.err.println(booking + "applied as " + result.bookRef);
+			}
+		}
+		return rejected;
+	}
+
+	// pid, passNum, flightnum, score, comment
+	private int applyReviews(List<String[]> run) throws SQLException
+	{
+		List<Integer> rids = new ArrayList<Integer>();
+		List<Integer> pids = new ArrayList<Integer>();
+		final List<String> flightNums = new ArrayList<String>();
+		List<Integer> scores = new ArrayList<Integer>();
+		List<String> comments = new ArrayList<String>();
+		Set<String> flights = new HashSet<String>();
+		int rejected = 0;
+		for(String[] f : run)
+		{
+			Integer pid = f[0].equals("-1") ? this._refs.pidOf(f[1]) : Integer.valueOf(f[0]);
+			String flightnum = f[2].trim();
+			String problem = pid == null ? "Invalid passport number"
+				: !flights.contains(flightnum) && this._refs.flight(flightnum) == null ? "Invalid flight number"
+				: null;
+			if(problem != null)
+			{
+				System.err.println(describe(REVIEW, f) + " not applied: " + problem);
+				++rejected;
+				continue;
+			}
+			flights.add(flightnum);
+			rids.add(Integer.parseInt(this._esql.getRid()));
+			pids.add(pid);
+			flightNums.add(flightnum);
+			scores.add(Integer.parseInt(f[3]));
+			comments.add(f[4]);
+		}
+		if(rids.isEmpty())
+		{
+			return rejected;
+		}
+		final Integer[][] ints = { rids.toArray(new Integer[0]), pids.toArray(new Integer[0]),
+			scores.toArray(new Integer[0]) };
+		final String[][] texts = { flightNums.toArray(new String[0]), comments.toArray(new String[0]) };
+		this._esql.withConnection(c -> {
+			PreparedStatement stmt = c.statements.prepare(REVIEWS_SQL);
+			stmt.setArray(1, c.connection.createArrayOf("int4", ints[0]));
+			stmt.setArray(2, c.connection.createArrayOf("int4", ints[1]));
+			stmt.setArray(3, c.connection.createArrayOf("text", texts[0]));
+			stmt.setArray(4, c.connection.createArrayOf("int4", ints[2]));
+			stmt.setArray(5, c.connection.createArrayOf("text", texts[1]));
+			long start = System.nanoTime();
+			long rows = 0;
+			try(ResultSet rs = stmt.executeQuery())
+			{
+				while(rs.next())
+				{
+					++rows;
+				}
+			}
+			Metrics.sql(REVIEWS_SQL, start, rows, 1);
+			return rows;
+		});
+		for(int i = 0; this._ratings != null && i < flightNums.size(); ++i)
+		{
+			this._ratings.rated(flightNums.get(i), scores.get(i));
+		}
+		return rejected;
+	}
+
+	private static String[] decode(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		List<String> fields = new ArrayList<String>();
+		while(in.available() > 0)
+		{
+			fields.add(in.readUTF());
+		}
+		return fields.toArray(new String[fields.size()]);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Pipeline
+ * ========
+ *
+ * Several independent queries sent to the server together and answered in
+ * one round trip.
+ *
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The queries are joined with ';' into one prepared statement.  PgJDBC sends
+ * every part of such a statement (Parse, Bind, Execute each) followed by a
+ * single Sync and only then reads the answers, so the server runs them back
+ * to back and the client waits one round trip instead of one per query.  The
+ * joined text is the same every time a pipeline of the same queries is built,
+ * so it is prepared once per connection like any other statement.
+ *
+ * The parts run in one implicit transaction: if one fails, none of the
+ * results are returned.  Only queries belong in a pipeline, an update would be
+ * rolled back with them.
+ *
+ */
+public class Pipeline
+{
+	private final List<String> _queries = new ArrayList<String>();
+	private final List<Object> _params = new ArrayList<Object>();
+
+	/**
+	 * Method to add a query.
+	 *
+	 * @param query the query, '?' marks a bound parameter
+	 * @param params the values bound to its '?' placeholders in order
+	 * @return this pipeline
+	 */
+	public Pipeline add(String query, Object... params)
+	{
+		this._queries.add(query);
+		for(Object p : params)
+		{
+			this._params.add(p);
+		}
+		return this;
+	}
+
+	public int size()
+	{
+		return this._queries.size();
+	}
+
+	/**
+	 * Method to run every query on one connection.
+	 *
+	 * @param conn a borrowed connection
+	 * @return one result per query, in the order they were added
+	 * @throws java.sql.SQLException when any of them failed
+	 */
+	public List<TypedResult> run(PooledConnection conn) throws SQLException
+	{
+		String sql = sql();
+		PreparedStatement stmt = conn.statements.prepare(sql);
+		AirBooking.bind(stmt, this._params.toArray());
+
+		List<TypedResult> results = new ArrayList<TypedResult>(this._queries.size());
+		long start = System.nanoTime();
+		long rows = 0;
+		boolean done = false;
+		try
+		{
+			boolean isResultSet = stmt.execute();
+			while(true)
+			{
+				if(isResultSet)
+				{
+					TypedResult result = new TypedResult();
+					try(ResultSet rs = stmt.getResultSet())
+					{
+						while(rs.next())
+						{
+							result.row(rs);
+						}
+					}
+					rows += result.size();
+					results.add(result);
+				}
+				else if(stmt.getUpdateCount() == -1)
+				{
+					break;
+				}
+				isResultSet = stmt.getMoreResults();
+			}
+			done = true;
+		}
+		finally
+		{
+			Metrics.sql(sql, start, done ? rows : -1, 1);
+		}
+		return results;
+	}
+
+	private String sql()
+	{
+		StringBuilder sb = new StringBuilder();
+		for(String query : this._queries)
+		{
+			if(sb.length() > 0)
+			{
+				sb.append(";\n");
+			}
+			sb.append(query);
+		}
+		return sb.toString();
+	}
+}
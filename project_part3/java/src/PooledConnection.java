@@ -0,0 +1,67 @@
+/*
+ * Pooled Connection
+ * =================
+ *
+ * A physical connection as seen by the users of the ConnectionPool.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * One physical connection handed out by the ConnectionPool, together with the
+ * prepared statements that belong to it.
+ *
+ */
+public class PooledConnection
+{
+	public final Connection connection;
+	public final StatementCache statements;
+	long _lastUsed;
+	boolean _broken = false;
+
+	PooledConnection(Connection connection, int statementCacheSize)
+	{
+		this.connection = connection;
+		this.statements = new StatementCache(connection, statementCacheSize);
+		this._lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Method to flag the connection after a failure.  Connection level
+	 * errors (SQLState class 08) make the pool discard it on release.
+	 *
+	 * @param e the exception raised while using the connection
+	 */
+	public void failed(SQLException e)
+	{
+		String state = e.getSQLState();
+		if(state != null && state.startsWith("08"))
+		{
+			this._broken = true;
+		}
+	}
+
+	/**
+	 * Method to make the pool close this connection on release, e.g. when it
+	 * could not be put back into a clean state.
+	 */
+	public void discard()
+	{
+		this._broken = true;
+	}
+
+	void close()
+	{
+		this.statements.close();
+		try
+		{
+			this.connection.close();
+		}
+		catch(SQLException e)
+		{
+			// ignored.
+		}
+	}
+}
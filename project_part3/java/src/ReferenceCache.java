@@ -0,0 +1,202 @@
+/*
+ * Reference Cache
+ * ===============
+ *
+ * Read-through caches of the Flight and Passenger rows the menu checks over
+ * and over while validating input.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class answers "does this flight exist" and "which pID has this
+ * passport" from memory after the first lookup.  Only rows that exist are
+ * cached: the application never deletes flights or passengers, so a cached
+ * answer can only go stale when a flight is changed, and the route upsert
+ * drops those entries.  New passengers are added by addPassenger as they are
+ * inserted.  Lookups of rows that do not exist always go to the database.
+ *
+ * Each map keeps at most -Dairbooking.refCache.size entries (default 10000),
+ * least recently used first out; -Dairbooking.refCache=false turns the
+ * caches off.
+ *
+ */
+public class ReferenceCache
+{
+	public static final int DEFAULT_SIZE = 10000;
+
+	static final String FLIGHT_SQL = "SELECT * FROM flight f WHERE f.flightNum = ?";
+	static final String PID_SQL = "SELECT pid FROM passenger WHERE passNum = ?";
+	static final String PASSNUM_SQL = "SELECT passNum FROM passenger WHERE pid = ?";
+
+	private final AirBooking _esql;
+	// flightNum -> the Flight row
+	private final LruCache<String, List<String>> _flights;
+	// passNum -> pID and back
+	private final LruCache<String, Integer> _pids;
+	private final LruCache<Integer, String> _passNums;
+
+	public ReferenceCache(AirBooking esql)
+	{
+		this(esql, Boolean.parseBoolean(System.getProperty("airbooking.refCache", "true"))
+			? Integer.getInteger("airbooking.refCache.size", DEFAULT_SIZE) : 0);
+	}
+
+	public ReferenceCache(AirBooking esql, int size)
+	{
+		this._esql = esql;
+		this._flights = new LruCache<String, List<String>>(size);
+		this._pids = new LruCache<String, Integer>(size);
+		this._passNums = new LruCache<Integer, String>(size);
+	}
+
+	/**
+	 * Method to look up a flight.
+	 *
+	 * @param flightnum the flight number
+	 * @return the Flight row, or null if there is no such flight
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public List<String> flight(String flightnum) throws SQLException
+	{
+		List<String> row = this._flights.get(flightnum);
+		if(row == null)
+		{
+			List<List<String>> rows = this._esql.executeQueryAndReturnResult(FLIGHT_SQL, flightnum);
+			if(rows.isEmpty())
+			{
+				return null;
+			}
+			row = rows.get(0);
+			this._flights.put(flightnum, row);
+		}
+		return row;
+	}
+
+	/**
+	 * Same as flight(), without waiting: a cached flight is answered at once,
+	 * otherwise the lookup runs on a pooled connection of its own.
+	 */
+	public CompletableFuture<List<String>> flightAsync(final String flightnum)
+	{
+		List<String> row = this._flights.get(flightnum);
+		if(row != null)
+		{
+			return CompletableFuture.completedFuture(row);
+		}
+		return this._esql.withConnectionAsync(conn -> AirBooking.executeQueryAndReturnResult(conn, FLIGHT_SQL, flightnum))
+			.thenApply(rows -> {
+				if(rows.isEmpty())
+				{
+					return null;
+				}
+				this._flights.put(flightnum, rows.get(0));
+				return rows.get(0);
+			});
+	}
+
+	/**
+	 * Method to look up the passenger holding a passport.
+	 *
+	 * @param passNum the passport number
+	 * @return the pID, or null if there is no such passenger
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public Integer pidOf(String passNum) throws SQLException
+	{
+		Integer pid = this._pids.get(passNum);
+		if(pid == null)
+		{
+			List<List<String>> rows = this._esql.executeQueryAndReturnResult(PID_SQL, passNum);
+			if(rows.isEmpty())
+			{
+				return null;
+			}
+			pid = Integer.valueOf(rows.get(0).get(0).trim());
+			passengerAdded(pid, passNum);
+		}
+		return pid;
+	}
+
+	/**
+	 * Same as pidOf(), without waiting.
+	 */
+	public CompletableFuture<Integer> pidOfAsync(final String passNum)
+	{
+		Integer pid = this._pids.get(passNum);
+		if(pid != null)
+		{
+			return CompletableFuture.completedFuture(pid);
+		}
+		return this._esql.withConnectionAsync(conn -> AirBooking.executeQueryAndReturnResult(conn, PID_SQL, passNum))
+			.thenApply(rows -> {
+				if(rows.isEmpty())
+				{
+					return null;
+				}
+				Integer found = Integer.valueOf(rows.get(0).get(0).trim());
+				passengerAdded(found, passNum);
+				return found;
+			});
+	}
+
+	/**
+	 * Method to look up the passport of a passenger.
+	 *
+	 * @param pid the passenger id
+	 * @return the passport number, or null if there is no such passenger
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public String passNumOf(int pid) throws SQLException
+	{
+		String passNum = this._passNums.get(pid);
+		if(passNum == null)
+		{
+			List<List<String>> rows = this._esql.executeQueryAndReturnResult(PASSNUM_SQL, pid);
+			if(rows.isEmpty())
+			{
+				return null;
+			}
+			passNum = rows.get(0).get(0).trim();
+			passengerAdded(pid, passNum);
+		}
+		return passNum;
+	}
+
+	/**
+	 * Method to remember a passenger that was just inserted or looked up.
+	 */
+	public void passengerAdded(int pid, String passNum)
+	{
+		this._pids.put(passNum, pid);
+		this._passNums.put(pid, passNum);
+	}
+
+	/**
+	 * Method to forget a flight that was added or changed.
+	 */
+	public void flightChanged(String flightnum)
+	{
+		this._flights.remove(flightnum);
+	}
+
+	/**
+	 * Method to forget everything, after the tables were changed by hand or
+	 * reloaded.
+	 */
+	public void clear()
+	{
+		this._flights.clear();
+		this._pids.clear();
+		this._passNums.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "flight cache " + this._flights + "; passport cache " + this._pids + "; pid cache " + this._passNums;
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Route Index
+ * ===========
+ *
+ * The flights of every (origin, destination) pair, sorted by duration, for
+ * menu options 5 and 8.
+ *
+ */
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class loads the Flight table once into a map from origin to
+ * destination to an array of flights ordered like FLIGHTS_BY_DURATION_SQL
+ * (duration, then flightNum).  Listing the flights between two cities is then
+ * two hash lookups, and the k shortest are the first k of the array.  City,
+ * airline and plane names are interned, so the many flights of a pair share
+ * one copy of them.
+ *
+ * The arrays are never changed once published: a route written by
+ * RouteUpserter replaces the array of its pair with a new one, so readers
+ * print without holding the lock.  Flights written by other processes are
+ * picked up when the index is reloaded, every refresh period
+ * (-Dairbooking.routeIndex.refreshSeconds, default 300, 0 = never).
+ *
+ */
+public class RouteIndex
+{
+	public static final long DEFAULT_REFRESH_SECONDS = 300;
+
+	static final String LOAD_SQL =
+		"SELECT a.name, f.flightnum, f.origin, f.destination, f.plane, f.duration " +
+		"FROM airline a, flight f WHERE a.airid = f.airid";
+
+	private static final Flight[] NONE = new Flight[0];
+
+	/**
+	 * One flight, with its text columns as the CHAR columns return them.
+	 */
+	private static final class Flight implements Comparable<Flight>
+	{
+		final String airline;
+		final String flightnum;
+		final String origin;
+		final String destination;
+		final String plane;
+		final int duration;
+
+		Flight(String airline, String flightnum, String origin, String destination, String plane, int duration)
+		{
+			this.airline = airline;
+			this.flightnum = flightnum;
+			this.origin = origin;
+			this.destination = destination;
+			this.plane = plane;
+			this.duration = duration;
+		}
+
+		public int compareTo(Flight other)
+		{
+			if(this.duration != other.duration)
+			{
+				return this.duration < other.duration ? -1 : 1;
+			}
+			return this.flightnum.trim().compareTo(other.flightnum.trim());
+		}
+	}
+
+	private final AirBooking _esql;
+	private final long _refreshMillis;
+	// trimmed origin -> trimmed destination -> flights by duration
+	private final HashMap<String, HashMap<String, Flight[]>> _routes = new HashMap<String, HashMap<String, Flight[]>>();
+	private boolean _loaded = false;
+	private long _loadedAt = 0;
+
+	public RouteIndex(AirBooking esql)
+	{
+		this(esql, Long.getLong("airbooking.routeIndex.refreshSeconds", DEFAULT_REFRESH_SECONDS) * 1000);
+	}
+
+	public RouteIndex(AirBooking esql, long refreshMillis)
+	{
+		this._esql = esql;
+		this._refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Method to print every flight between two cities in the layout of
+	 * FLIGHTS_BETWEEN_SQL.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public int printBetween(PrintStream out, String origin, String destination) throws SQLException
+	{
+		Flight[] flights = flights(origin, destination);
+		for(int i = 0; i < flights.length; ++i)
+		{
+			Flight f = flights[i];
+			if(i == 0)
+			{
+				out.println("flightnum\torigin\tdestination\tplane\tduration\t");
+			}
+			out.println(f.flightnum + "\t" + f.origin + "\t" + f.destination + "\t" + f.plane + "\t" + f.duration + "\t");
+		}
+		return flights.length;
+	}
+
+	/**
+	 * Method to print the k shortest flights between two cities in the layout
+	 * of FLIGHTS_BY_DURATION_SQL.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public int printShortest(PrintStream out, String origin, String destination, int k) throws SQLException
+	{
+		Flight[] flights = flights(origin, destination);
+		int rows = Math.min(k, flights.length);
+		for(int i = 0; i < rows; ++i)
+		{
+			Flight f = flights[i];
+			if(i == 0)
+			{
+				out.println("name\tflightnum\torigin\tdestination\tplane\tduration\t");
+			}
+			out.println(f.airline + "\t" + f.flightnum + "\t" + f.origin + "\t" + f.destination + "\t" + f.plane + "\t" +
+				f.duration + "\t");
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to move a flight that was added or changed to its route.
+	 *
+	 * @param airline the name of the airline flying it
+	 * @param old the route before the update, null if it was inserted
+	 * @param route the route as written
+	 */
+	public synchronized void routeChanged(String airline, RouteUpserter.Route old, RouteUpserter.Route route)
+	{
+		if(!this._loaded)
+		{
+			return;
+		}
+		if(old != null)
+		{
+			remove(old.origin.trim(), old.destination.trim(), route.flightNum.trim());
+		}
+		add(new Flight(AirBooking.padChar(airline, 24), AirBooking.padChar(route.flightNum, 8),
+			AirBooking.padChar(route.origin, 16), AirBooking.padChar(route.destination, 16),
+			AirBooking.padChar(route.plane, 16), route.duration));
+	}
+
+	/**
+	 * Method to drop the index, it is loaded again on the next read.
+	 */
+	public synchronized void invalidate()
+	{
+		this._loaded = false;
+	}
+
+	private synchronized Flight[] flights(String origin, String destination) throws SQLException
+	{
+		ensureLoaded();
+		HashMap<String, Flight[]> byDestination = this._routes.get(origin.trim());
+		Flight[] flights = byDestination == null ? null : byDestination.get(destination.trim());
+		return flights == null ? NONE : flights;
+	}
+
+	private void add(Flight flight)
+	{
+		String origin = flight.origin.trim().intern();
+		String destination = flight.destination.trim().intern();
+		HashMap<String, Flight[]> byDestination = this._routes.get(origin);
+		if(byDestination == null)
+		{
+			byDestination = new HashMap<String, Flight[]>();
+			this._routes.put(origin, byDestination);
+		}
+		Flight[] flights = byDestination.get(destination);
+		if(flights == null)
+		{
+			flights = NONE;
+		}
+		// insert into a copy at its sorted place
+		int at = Arrays.binarySearch(flights, flight);
+		at = at < 0 ? -at - 1 : at;
+		Flight[] grown = new Flight[flights.length + 1];
+		System.arraycopy(flights, 0, grown, 0, at);
+		grown[at] = flight;
+		System.arraycopy(flights, at, grown, at + 1, flights.length - at);
+		byDestination.put(destination, grown);
+	}
+
+	private void remove(String origin, String destination, String flightnum)
+	{
+		HashMap<String, Flight[]> byDestination = this._routes.get(origin);
+		Flight[] flights = byDestination == null ? null : byDestination.get(destination);
+		if(flights == null)
+		{
+			return;
+		}
+		for(int i = 0; i < flights.length; ++i)
+		{
+			if(flights[i].flightnum.trim().equals(flightnum))
+			{
+				if(flights.length == 1)
+				{
+					byDestination.remove(destination);
+					return;
+				}
+				Flight[] shrunk = new Flight[flights.length - 1];
+				System.arraycopy(flights, 0, shrunk, 0, i);
+				System.arraycopy(flights, i + 1, shrunk, i, flights.length - i - 1);
+				byDestination.put(destination, shrunk);
+				return;
+			}
+		}
+	}
+
+	private void ensureLoaded() throws SQLException
+	{
+		if(this._loaded && (this._refreshMillis <= 0 || System.currentTimeMillis() - this._loadedAt <= this._refreshMillis))
+		{
+			return;
+		}
+		TypedResult rows = this._esql.executeQueryTyped(LOAD_SQL);
+		// group first, then sort every array once
+		HashMap<String, HashMap<String, ArrayList<Flight>>> grouped =
+			new HashMap<String, HashMap<String, ArrayList<Flight>>>();
+		for(int i = 0; i < rows.size(); ++i)
+		{
+			Flight f = new Flight(rows.getString(i, 0).intern(), rows.getString(i, 1), rows.getString(i, 2).intern(),
+				rows.getString(i, 3).intern(), rows.getString(i, 4).intern(), rows.getInt(i, 5));
+			String origin = f.origin.trim().intern();
+			String destination = f.destination.trim().intern();
+			HashMap<String, ArrayList<Flight>> byDestination = grouped.get(origin);
+			if(byDestination == null)
+			{
+				byDestination = new HashMap<String, ArrayList<Flight>>();
+				grouped.put(origin, byDestination);
+			}
+			ArrayList<Flight> flights = byDestination.get(destination);
+			if(flights == null)
+			{
+				flights = new ArrayList<Flight>();
+				byDestination.put(destination, flights);
+			}
+			flights.add(f);
+		}
+		this._routes.clear();
+		for(Map.Entry<String, HashMap<String, ArrayList<Flight>>> o : grouped.entrySet())
+		{
+			HashMap<String, Flight[]> byDestination = new HashMap<String, Flight[]>();
+			for(Map.Entry<String, ArrayList<Flight>> d : o.getValue().entrySet())
+			{
+				Flight[] flights = d.getValue().toArray(NONE);
+				Arrays.sort(flights);
+				byDestination.put(d.getKey(), flights);
+			}
+			this._routes.put(o.getKey(), byDestination);
+		}
+		this._loaded = true;
+		this._loadedAt = System.currentTimeMillis();
+	}
+}
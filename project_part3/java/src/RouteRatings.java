@@ -0,0 +1,231 @@
+/*
+ * Route Ratings
+ * =============
+ *
+ * Running score totals of every rated flight, kept ranked in memory for menu
+ * option 7 (List Highest Rated Routes).
+ *
+ */
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * This class aggregates the Ratings table once into a (sum, count) per
+ * flightNum and after that adds every review taken by this process to the
+ * running totals, so the average of a flight is never recomputed from its
+ * ratings.  Rated flights are kept in a TreeSet ordered like HIGHEST_RATED_SQL
+ * (average descending, then flightNum); averages are compared as
+ * sum1 * count2 against sum2 * count1, so ties are exact.  Reviews written by
+ * other processes are picked up when the aggregates are reloaded, every refresh
+ * period (-Dairbooking.ratingIndex.refreshSeconds, default 300, 0 = never).
+ *
+ */
+public class RouteRatings
+{
+	public static final long DEFAULT_REFRESH_SECONDS = 300;
+	// AVG(integer) is a numeric with at least this many decimals
+	static final int AVG_SCALE = 16;
+
+	// every flight, so a first review of a flight needs no lookup
+	static final String LOAD_SQL =
+		"SELECT a.name, f.flightnum, f.origin, f.destination, f.plane, SUM(r.score), COUNT(r.score) " +
+		"FROM airline a JOIN flight f ON a.airid = f.airid LEFT JOIN ratings r ON f.flightnum = r.flightnum " +
+		"GROUP BY a.name, f.flightnum";
+
+	/**
+	 * The totals of one flight.  Immutable, a new review is a new entry so the
+	 * TreeSet order is never broken.
+	 */
+	private static final class Entry implements Comparable<Entry>
+	{
+		final String name;
+		final String flightnum;
+		final String origin;
+		final String destination;
+		final String plane;
+		final long sum;
+		final long count;
+
+		Entry(String name, String flightnum, String origin, String destination, String plane, long sum, long count)
+		{
+			this.name = name;
+			this.flightnum = flightnum;
+			this.origin = origin;
+			this.destination = destination;
+			this.plane = plane;
+			this.sum = sum;
+			this.count = count;
+		}
+
+		Entry plus(long score)
+		{
+			return new Entry(this.name, this.flightnum, this.origin, this.destination, this.plane,
+				this.sum + score, this.count + 1);
+		}
+
+		public int compareTo(Entry other)
+		{
+			// a / b > c / d  <=>  a * d > c * b, the counts are positive
+			long left = this.sum * other.count;
+			long right = other.sum * this.count;
+			if(left != right)
+			{
+				return left > right ? -1 : 1;
+			}
+			return this.flightnum.trim().compareTo(other.flightnum.trim());
+		}
+	}
+
+	private final AirBooking _esql;
+	private final long _refreshMillis;
+	// trimmed flightNum -> totals, including flights without ratings
+	private final HashMap<String, Entry> _byFlight = new HashMap<String, Entry>();
+	// rated flights only
+	private final TreeSet<Entry> _ranking = new TreeSet<Entry>();
+	private boolean _loaded = false;
+	private long _loadedAt = 0;
+
+	public RouteRatings(AirBooking esql)
+	{
+		this(esql, Long.getLong("airbooking.ratingIndex.refreshSeconds", DEFAULT_REFRESH_SECONDS) * 1000);
+	}
+
+	public RouteRatings(AirBooking esql, long refreshMillis)
+	{
+		this._esql = esql;
+		this._refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Method to print the k highest rated routes in the layout of
+	 * executeQueryAndPrintResult.
+	 *
+	 * @param out where the header and rows are printed
+	 * @param k the number of routes to print
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the aggregates could not be loaded
+	 */
+	public int print(PrintStream out, int k) throws SQLException
+	{
+		// printed without the lock, a slow reader must not hold up the writers
+		int rows = 0;
+		for(Entry e : top(k))
+		{
+			if(rows == 0)
+			{
+				out.println("name\tflightnum\torigin\tdestination\tplane\tavg_score\t");
+			}
+			out.println(e.name + "\t" + e.flightnum + "\t" + e.origin + "\t" + e.destination + "\t" + e.plane + "\t" +
+				average(e) + "\t");
+			++rows;
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to add a review this process has just stored.
+	 */
+	public synchronized void rated(String flightnum, int score)
+	{
+		if(!this._loaded)
+		{
+			// the next load will see the review
+			return;
+		}
+		Entry old = this._byFlight.get(flightnum.trim());
+		if(old == null)
+		{
+			// a flight added by another process, load it with the others
+			this._loaded = false;
+			return;
+		}
+		this._ranking.remove(old);
+		put(old.plus(score));
+	}
+
+	/**
+	 * Method to record the airline, route and plane of a flight that was added
+	 * or changed.
+	 */
+	public synchronized void flightChanged(String airline, String flightnum, String origin, String destination,
+		String plane)
+	{
+		if(!this._loaded)
+		{
+			return;
+		}
+		Entry old = this._byFlight.get(flightnum.trim());
+		if(old != null)
+		{
+			this._ranking.remove(old);
+		}
+		// padded like the CHAR columns of LOAD_SQL
+		put(new Entry(AirBooking.padChar(airline, 24), AirBooking.padChar(flightnum, 8),
+			AirBooking.padChar(origin, 16), AirBooking.padChar(destination, 16), AirBooking.padChar(plane, 16),
+			old == null ? 0 : old.sum, old == null ? 0 : old.count));
+	}
+
+	/**
+	 * Method to drop the totals, they are loaded again on the next read.
+	 */
+	public synchronized void invalidate()
+	{
+		this._loaded = false;
+	}
+
+	// the first k entries of the ranking, copied under the lock
+	private synchronized List<Entry> top(int k) throws SQLException
+	{
+		ensureLoaded();
+		List<Entry> top = new ArrayList<Entry>(Math.min(k, this._ranking.size()));
+		for(Entry e : this._ranking)
+		{
+			if(top.size() == k)
+			{
+				break;
+			}
+			top.add(e);
+		}
+		return top;
+	}
+
+	private void put(Entry e)
+	{
+		this._byFlight.put(e.flightnum.trim(), e);
+		if(e.count > 0)
+		{
+			this._ranking.add(e);
+		}
+	}
+
+	private void ensureLoaded() throws SQLException
+	{
+		if(this._loaded && (this._refreshMillis <= 0 || System.currentTimeMillis() - this._loadedAt <= this._refreshMillis))
+		{
+			return;
+		}
+		TypedResult totals = this._esql.executeQueryTyped(LOAD_SQL);
+		this._byFlight.clear();
+		this._ranking.clear();
+		for(int i = 0; i < totals.size(); ++i)
+		{
+			put(new Entry(totals.getString(i, 0), totals.getString(i, 1), totals.getString(i, 2),
+				totals.getString(i, 3), totals.getString(i, 4), totals.getLong(i, 5), totals.getLong(i, 6)));
+		}
+		this._loaded = true;
+		this._loadedAt = System.currentTimeMillis();
+	}
+
+	// the average as AVG(score) prints it for scores of 1 or more
+	private static String average(Entry e)
+	{
+		return BigDecimal.valueOf(e.sum).divide(BigDecimal.valueOf(e.count), AVG_SCALE, RoundingMode.HALF_UP).toPlainString();
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ * Route Upserter
+ * ==============
+ *
+ * Inserts new routes into the Flight table and updates the ones that already
+ * exist, one at a time from the menu or by the thousand from schedule files.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class writes routes with INSERT ... ON CONFLICT (flightNum) DO UPDATE,
+ * sent as JDBC batches of -Dairbooking.routes.batchSize rows (default 1000).
+ * The connection URL sets reWriteBatchedInserts, so PgJDBC folds each batch
+ * into multi-row INSERTs.  Every batch is one transaction that first locks
+ * the rows it is about to update, so the in-memory indexes (seat inventory,
+ * destination ranking, route ratings, reference cache) learn exactly which
+ * flights were added and which were changed.
+ *
+ * Routes are checked before they are sent: the _SEATS and _HOURS domains,
+ * the CHAR lengths of Flight and the airline foreign key, so one bad row does
+ * not abort a whole batch.
+ *
+ * With -Dairbooking.procedures=true a single route, as the menu and the
+ * service write them, goes through the upsert_route function of
+ * sql/procedures.sql instead: it checks the airline, locks and updates or
+ * inserts the row and returns the old values in one round trip.
+ *
+ * A schedule file has the layout of data/flights.csv:
+ *   airId,flightNum,origin,destination,plane,seats,duration
+ *
+ */
+public class RouteUpserter
+{
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	// rejected rows reported per file before going quiet
+	private static final int MAX_REPORTED = 10;
+
+	static final String UPSERT_SQL =
+		"INSERT INTO flight (airId, flightNum, origin, destination, plane, seats, duration) " +
+		"VALUES (?, ?, ?, ?, ?, ?, ?) " +
+		"ON CONFLICT (flightNum) DO UPDATE SET airId = EXCLUDED.airId, origin = EXCLUDED.origin, " +
+		"destination = EXCLUDED.destination, plane = EXCLUDED.plane, seats = EXCLUDED.seats, " +
+		"duration = EXCLUDED.duration";
+	static final String EXISTING_SQL =
+		"SELECT airId, flightNum, origin, destination, plane, seats, duration " +
+		"FROM flight WHERE flightNum = ANY(?::char(8)[]) FOR UPDATE";
+	static final String AIRLINES_SQL = "SELECT airId, name FROM airline";
+	static final String UPSERT_ROUTE_CALL = "{call upsert_route(?, ?, ?, ?, ?, ?, ?)}";
+
+	/**
+	 * One row of the Flight table.
+	 */
+	public static class Route
+	{
+		public final int airId;
+		public final String flightNum;
+		public final String origin;
+		public final String destination;
+		public final String plane;
+		public final int seats;
+		public final int duration;
+
+		public Route(int airId, String flightNum, String origin, String destination, String plane, int seats,
+			int duration)
+		{
+			this.airId = airId;
+			this.flightNum = flightNum;
+			this.origin = origin;
+			this.destination = destination;
+			this.plane = plane;
+			this.seats = seats;
+			this.duration = duration;
+		}
+
+		/**
+		 * Method to make a route from the seven fields of a schedule row.
+		 *
+		 * @param f airId, flightNum, origin, destination, plane, seats, duration
+		 * @return the route with trimmed text fields
+		 * @throws IllegalArgumentException naming the first field that is invalid
+		 */
+		public static Route parse(String[] f)
+		{
+			if(f.length != 7)
+			{
+				throw new IllegalArgumentException("expected 7 fields");
+			}
+			return new Route(number(f[0], "airId"), text(f[1], 8, "flightNum"), text(f[2], 16, "origin"),
+				text(f[3], 16, "destination"), text(f[4], 16, "plane"), seats(f[5]), duration(f[6]));
+		}
+
+		static int seats(String s)
+		{
+			int seats = InputCheck.parseInt(s.trim(), 1, 499);
+			if(seats == InputCheck.INVALID)
+			{
+				throw new IllegalArgumentException("seats must be 1..499");
+			}
+			return seats;
+		}
+
+		static int duration(String s)
+		{
+			int duration = InputCheck.parseInt(s.trim(), 1, 23);
+			if(duration == InputCheck.INVALID)
+			{
+				throw new IllegalArgumentException("duration must be 1..23 hours");
+			}
+			return duration;
+		}
+
+		static String text(String s, int width, String name)
+		{
+			s = s.trim();
+			if(s.isEmpty() || s.length() > width)
+			{
+				throw new IllegalArgumentException(name + " must be 1 to " + width + " characters");
+			}
+			return s;
+		}
+
+		static int number(String s, String name)
+		{
+			int n = InputCheck.parseInt(s.trim(), Integer.MIN_VALUE + 1, Integer.MAX_VALUE);
+			if(n == InputCheck.INVALID)
+			{
+				throw new IllegalArgumentException("bad " + name);
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * What an upsert did.
+	 */
+	public static class Counts
+	{
+		public long inserted = 0;
+		public long updated = 0;
+		public long rejected = 0;
+
+		@Override
+		public String toString()
+		{
+			return this.inserted + " inserted, " + this.updated + " updated, " + this.rejected + " rejected";
+		}
+	}
+
+	private final AirBooking _esql;
+	private final int _batchSize;
+	// airId -> name, loaded on first use
+	private Map<Integer, String> _airlines = null;
+
+	public RouteUpserter(AirBooking esql)
+	{
+		this(esql, Integer.getInteger("airbooking.routes.batchSize", DEFAULT_BATCH_SIZE));
+	}
+
+	public RouteUpserter(AirBooking esql, int batchSize)
+	{
+		this._esql = esql;
+		this._batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Method to check the parts of a route that depend on the database.  Left
+	 * to upsert_route when it is called instead.
+	 *
+	 * @param route a parsed route
+	 * @throws IllegalArgumentException when its airline does not exist
+	 * @throws java.sql.SQLException when the airlines could not be read
+	 */
+	public void check(Route route) throws SQLException
+	{
+		if(!this._esql.usesProcedures())
+		{
+			checkAirline(route);
+		}
+	}
+
+	private void checkAirline(Route route) throws SQLException
+	{
+		if(!airlines().containsKey(route.airId))
+		{
+			throw new IllegalArgumentException("No airline with airId " + route.airId);
+		}
+	}
+
+	/**
+	 * Method to insert or update a list of routes.  A flightNum that appears
+	 * more than once is written with its last values.
+	 *
+	 * @param routes parsed routes
+	 * @return how many were inserted, updated and rejected
+	 * @throws java.sql.SQLException when a batch failed, earlier batches stay written
+	 * @throws IllegalArgumentException when upsert_route found no airline for a single route
+	 */
+	public Counts upsert(List<Route> routes) throws SQLException
+	{
+		if(routes.size() == 1 && this._esql.usesProcedures())
+		{
+			return call(routes.get(0));
+		}
+		Counts counts = new Counts();
+		LinkedHashMap<String, Route> batch = new LinkedHashMap<String, Route>();
+		for(Route route : routes)
+		{
+			try
+			{
+				checkAirline(route);
+			}
+			catch(IllegalArgumentException e)
+			{
+				++counts.rejected;
+				continue;
+			}
+			batch.put(route.flightNum, route);
+			if(batch.size() == this._batchSize)
+			{
+				write(batch.values(), counts);
+				batch.clear();
+			}
+		}
+		if(!batch.isEmpty())
+		{
+			write(batch.values(), counts);
+		}
+		return counts;
+	}
+
+	/**
+	 * Method to insert or update every route of a schedule file.  The file is
+	 * read one batch at a time, so its size does not matter, and the
+	 * throughput of every batch is printed.
+	 *
+	 * @param file a csv file in the layout of data/flights.csv
+	 * @return how many were inserted, updated and rejected
+	 */
+	public Counts upsertFile(File file) throws IOException, SQLException
+	{
+		long start = System.nanoTime();
+		Counts counts = new Counts();
+		LinkedHashMap<String, Route> batch = new LinkedHashMap<String, Route>();
+		int batchNo = 0;
+		try(BufferedReader reader = new BufferedReader(
+			new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+		{
+			String line;
+			long lineNo = 0;
+			while((line = reader.readLine()) != null)
+			{
+				++lineNo;
+				if(line.trim().isEmpty())
+				{
+					continue;
+				}
+				Route route;
+				try
+				{
+					route = Route.parse(line.split(",", -1));
+					checkAirline(route);
+				}
+				catch(IllegalArgumentException e)
+				{
+					if(counts.rejected++ < MAX_REPORTED)
+					{
+						System.err.println(file.getName() + ":" + lineNo + ": " + e.getMessage() + ": " + line);
+					}
+					continue;
+				}
+				batch.put(route.flightNum, route);
+				if(batch.size() == this._batchSize)
+				{
+					report(++batchNo, batch.size(), write(batch.values(), counts));
+					batch.clear();
+				}
+			}
+		}
+		if(!batch.isEmpty())
+		{
+			report(++batchNo, batch.size(), write(batch.values(), counts));
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long rows = counts.inserted + counts.updated;
+		System.out.printf("%s: %s in %.2f s (%.0f rows/s)%n",
+			file.getName(), counts, seconds, rows / Math.max(seconds, 1e-9));
+		return counts;
+	}
+
+	// sends one batch of distinct flightNums as one transaction, returns the nanoseconds it took
+	private long write(final Collection<Route> batch, Counts counts) throws SQLException
+	{
+		long start = System.nanoTime();
+		final Map<String, Route> existing = this._esql.withConnection(conn -> AirBooking.inTransaction(conn, c -> {
+			String[] keys = new String[batch.size()];
+			int i = 0;
+			for(Route route : batch)
+			{
+				keys[i++] = route.flightNum;
+			}
+			Map<String, Route> old = new HashMap<String, Route>();
+			PreparedStatement lookup = c.statements.prepare(EXISTING_SQL);
+			lookup.setArray(1, c.connection.createArrayOf("text", keys));
+			long sent = System.nanoTime();
+			try(ResultSet rs = lookup.executeQuery())
+			{
+				while(rs.next())
+				{
+					Route route = new Route(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(),
+						rs.getString(4).trim(), rs.getString(5).trim(), rs.getInt(6), rs.getInt(7));
+					old.put(route.flightNum, route);
+				}
+			}
+			Metrics.sql(EXISTING_SQL, sent, old.size(), 1);
+
+			PreparedStatement upsert = c.statements.prepare(UPSERT_SQL);
+			for(Route route : batch)
+			{
+				upsert.setInt(1, route.airId);
+				upsert.setString(2, route.flightNum);
+				upsert.setString(3, route.origin);
+				upsert.setString(4, route.destination);
+				upsert.setString(5, route.plane);
+				upsert.setInt(6, route.seats);
+				upsert.setInt(7, route.duration);
+				upsert.addBatch();
+			}
+			// the whole batch goes out before the first result is read
+			sent = System.nanoTime();
+			int rows = -1;
+			try
+			{
+				upsert.executeBatch();
+				rows = batch.size();
+			}
+			finally
+			{
+				upsert.clearBatch();
+				Metrics.sql(UPSERT_SQL, sent, rows, 1);
+			}
+			return old;
+		}));
+
+		Map<Integer, String> airlines = airlines();
+		for(Route route : batch)
+		{
+			Route old = existing.get(route.flightNum);
+			if(old == null)
+			{
+				++counts.inserted;
+			}
+			else
+			{
+				++counts.updated;
+			}
+			this._esql.routeChanged(airlines.get(route.airId), old, route);
+		}
+		return System.nanoTime() - start;
+	}
+
+	// writes one route with the upsert_route function
+	private Counts call(Route route) throws SQLException
+	{
+		TypedResult r = this._esql.executeQueryTyped(UPSERT_ROUTE_CALL, route.airId, route.flightNum, route.origin,
+			route.destination, route.plane, route.seats, route.duration);
+		int outcome = r.getInt(0, 0);
+		if(outcome == 2)
+		{
+			throw new IllegalArgumentException("No airline with airId " + route.airId);
+		}
+
+		Counts counts = new Counts();
+		Route old = null;
+		if(outcome == 1)
+		{
+			old = new Route(r.getInt(0, 2), route.flightNum, r.getString(0, 3).trim(), r.getString(0, 4).trim(),
+				r.getString(0, 5).trim(), r.getInt(0, 6), r.getInt(0, 7));
+			++counts.updated;
+		}
+		else
+		{
+			++counts.inserted;
+		}
+		this._esql.routeChanged(r.getString(0, 1), old, route);
+		return counts;
+	}
+
+	private static void report(int batchNo, int rows, long nanos)
+	{
+		double millis = nanos / 1e6;
+		System.out.printf("  batch %d: %d rows in %.1f ms (%.0f rows/s)%n",
+			batchNo, rows, millis, rows * 1000 / Math.max(millis, 1e-6));
+	}
+
+	private Map<Integer, String> airlines() throws SQLException
+	{
+		if(this._airlines == null)
+		{
+			TypedResult rows = this._esql.executeQueryTyped(AIRLINES_SQL);
+			Map<Integer, String> airlines = new HashMap<Integer, String>();
+			for(int i = 0; i < rows.size(); ++i)
+			{
+				airlines.put(rows.getInt(i, 0), rows.getString(i, 1));
+			}
+			this._airlines = airlines;
+		}
+		return this._airlines;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Seat Inventory
+ * ==============
+ *
+ * In-process counters of the seats taken on every (flightNum, departure), so
+ * menu option 9 can be answered without a query.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class loads the seats of every flight and the number of bookings per
+ * flight and departure date once, then keeps the counts current as this
+ * process books seats.  Bookings made by other processes are only picked up
+ * when the inventory is reloaded, which happens every refresh period
+ * (-Dairbooking.seatCache.refreshSeconds, default 300, 0 = never).  What
+ * this process books or changes while a reload reads the tables is kept
+ * aside and applied to the new counters before they replace the old ones; a
+ * booking the reload already saw is then counted twice until the next one,
+ * which shows a seat too few rather than one too many.
+ *
+ */
+public class SeatInventory
+{
+	public static final long DEFAULT_REFRESH_SECONDS = 300;
+
+	static final String LOAD_SEATS_SQL = "SELECT flightnum, seats FROM flight";
+	static final String LOAD_BOOKED_SQL =
+		"SELECT flightnum, departure, COUNT(*) FROM booking GROUP BY flightnum, departure";
+
+	/**
+	 * The counters as loaded at one point in time.
+	 */
+	private static class Snapshot
+	{
+		// flightNum -> seats on the plane
+		final ConcurrentHashMap<String, Integer> seats = new ConcurrentHashMap<String, Integer>();
+		// flightNum|departure -> seats booked
+		final ConcurrentHashMap<String, AtomicInteger> booked = new ConcurrentHashMap<String, AtomicInteger>();
+		final long loadedAt = System.currentTimeMillis();
+	}
+
+	private final AirBooking _esql;
+	private final long _refreshMillis;
+	private volatile Snapshot _snapshot = null;
+	// changes made while a reload runs, null otherwise
+	private volatile Snapshot _pending = null;
+	// changes hold the read lock, the switch to a reloaded snapshot the write lock
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	public SeatInventory(AirBooking esql)
+	{
+		this(esql, Long.getLong("airbooking.seatCache.refreshSeconds", DEFAULT_REFRESH_SECONDS) * 1000);
+	}
+
+	public SeatInventory(AirBooking esql, long refreshMillis)
+	{
+		this._esql = esql;
+		this._refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Method to get the number of seats left on a flight for a date.  Loads
+	 * the inventory on first use and when the refresh period has passed.
+	 *
+	 * @param flightnum the flight number
+	 * @param date the departure date as YYYY-MM-DD
+	 * @return the seats left, or null if there is no such flight
+	 * @throws java.sql.SQLException when the inventory could not be loaded
+	 */
+	public Integer available(String flightnum, String date) throws SQLException
+	{
+		Snapshot snap = current();
+		Integer seats = snap.seats.get(flightnum.trim());
+		if(seats == null)
+		{
+			return null;
+		}
+		AtomicInteger booked = snap.booked.get(key(flightnum, date));
+		return booked == null ? seats : seats - booked.get();
+	}
+
+	/**
+	 * Method to count a seat this process has just booked.
+	 */
+	public void booked(String flightnum, String date)
+	{
+		String key = key(flightnum, date);
+		this._lock.readLock().lock();
+		try
+		{
+			Snapshot snap = this._snapshot;
+			if(snap != null)
+			{
+				counter(snap, key).incrementAndGet();
+			}
+			Snapshot pending = this._pending;
+			if(pending != null)
+			{
+				counter(pending, key).incrementAndGet();
+			}
+		}
+		finally
+		{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to record the seats of a flight that was added or changed.
+	 */
+	public void flightChanged(String flightnum, int seats)
+	{
+		this._lock.readLock().lock();
+		try
+		{
+			Snapshot snap = this._snapshot;
+			if(snap != null)
+			{
+				snap.seats.put(flightnum.trim(), seats);
+			}
+			Snapshot pending = this._pending;
+			if(pending != null)
+			{
+				pending.seats.put(flightnum.trim(), seats);
+			}
+		}
+		finally
+		{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to drop the counters, they are loaded again on the next lookup.
+	 */
+	public void invalidate()
+	{
+		this._snapshot = null;
+	}
+
+	private Snapshot current() throws SQLException
+	{
+		Snapshot snap = this._snapshot;
+		if(snap == null || (this._refreshMillis > 0 && System.currentTimeMillis() - snap.loadedAt > this._refreshMillis))
+		{
+			synchronized(this)
+			{
+				if(snap == this._snapshot)
+				{
+					reload();
+				}
+				snap = this._snapshot;
+			}
+		}
+		return snap;
+	}
+
+	// loads a new snapshot and switches to it with what changed meanwhile, called holding the monitor
+	private void reload() throws SQLException
+	{
+		this._pending = new Snapshot();
+		try
+		{
+			Snapshot loaded = load();
+			this._lock.writeLock().lock();
+			try
+			{
+				Snapshot pending = this._pending;
+				loaded.seats.putAll(pending.seats);
+				for(Map.Entry<String, AtomicInteger> e : pending.booked.entrySet())
+				{
+					counter(loaded, e.getKey()).addAndGet(e.getValue().get());
+				}
+				this._snapshot = loaded;
+			}
+			finally
+			{
+				this._lock.writeLock().unlock();
+			}
+		}
+		finally
+		{
+			this._pending = null;
+		}
+	}
+
+	private Snapshot load() throws SQLException
+	{
+		final Snapshot snap = new Snapshot();
+		// the seats are read on another connection while the bookings stream in
+		CompletableFuture<TypedResult> seats = this._esql.executeQueryTypedAsync(LOAD_SEATS_SQL);
+		// one row per flight and date, this can be large
+		this._esql.executeQueryStreaming(LOAD_BOOKED_SQL, rs -> {
+			snap.booked.put(key(rs.getString(1), rs.getString(2)), new AtomicInteger(rs.getInt(3)));
+		});
+		TypedResult flights = AirBooking.await(seats);
+		for(int i = 0; i < flights.size(); ++i)
+		{
+			snap.seats.put(flights.getString(i, 0).trim(), flights.getInt(i, 1));
+		}
+		return snap;
+	}
+
+	private static AtomicInteger counter(Snapshot snap, String key)
+	{
+		AtomicInteger count = snap.booked.get(key);
+		if(count == null)
+		{
+			AtomicInteger fresh = new AtomicInteger();
+			count = snap.booked.putIfAbsent(key, fresh);
+			if(count == null)
+			{
+				count = fresh;
+			}
+		}
+		return count;
+	}
+
+	private static String key(String flightnum, String date)
+	{
+		return flightnum.trim() + '|' + date;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Prepared Statement Cache
+ * ========================
+ *
+ * Keeps the prepared statements of one physical connection around so that
+ * repeated queries are bound and executed instead of re-parsed and re-planned.
+ *
+ */
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of prepared statements keyed by their
+ * SQL text.  One cache belongs to exactly one connection, statements are never
+ * shared across connections.
+ *
+ */
+public class StatementCache
+{
+	// default number of statements kept per connection
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public StatementCache(Connection connection, int capacity)
+	{
+		this._connection = connection;
+		this._capacity = capacity;
+		// access order so the eldest entry is the least recently used one
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+			{
+				if(size() > StatementCache.this._capacity)
+				{
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to get a prepared statement for the given SQL text.  A cached
+	 * statement has its previous parameters cleared, otherwise a new one is
+	 * prepared on the connection and remembered.
+	 *
+	 * @param sql the SQL text with '?' parameter placeholders
+	 * @return a prepared statement ready to be bound
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException
+	{
+		PreparedStatement stmt = this._statements.get(sql);
+		if(stmt != null && !stmt.isClosed())
+		{
+			++this._hits;
+			stmt.clearParameters();
+			return stmt;
+		}
+		++this._misses;
+		stmt = this._connection.prepareStatement(sql);
+		this._statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Method to get a callable statement for a call in JDBC escape syntax,
+	 * e.g. "{? = call f(?)}".  Calls are cached next to the other statements,
+	 * the braces keep their keys apart from plain SQL text.
+	 *
+	 * @param call the call with '?' parameter placeholders
+	 * @return a callable statement ready to be bound
+	 * @throws java.sql.SQLException when the call could not be prepared
+	 */
+	public synchronized CallableStatement prepareCall(String call) throws SQLException
+	{
+		PreparedStatement stmt = this._statements.get(call);
+		if(stmt instanceof CallableStatement && !stmt.isClosed())
+		{
+			++this._hits;
+			stmt.clearParameters();
+			return (CallableStatement) stmt;
+		}
+		++this._misses;
+		CallableStatement callable = this._connection.prepareCall(call);
+		this._statements.put(call, callable);
+		return callable;
+	}
+
+	public synchronized long getHits()
+	{
+		return this._hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return this._misses;
+	}
+
+	public synchronized int size()
+	{
+		return this._statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.  The connection itself is left
+	 * open.
+	 */
+	public synchronized void close()
+	{
+		for(PreparedStatement stmt : this._statements.values())
+		{
+			closeQuietly(stmt);
+		}
+		this._statements.clear();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "statements: " + this._statements.size() + "/" + this._capacity
+			+ ", hits: " + this._hits + ", misses: " + this._misses;
+	}
+
+	private static void closeQuietly(PreparedStatement stmt)
+	{
+		try
+		{
+			stmt.close();
+		}
+		catch(SQLException e)
+		{
+			// ignored.
+		}
+	}
+}
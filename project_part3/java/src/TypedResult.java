@@ -0,0 +1,242 @@
+/*
+ * Typed Result
+ * ============
+ *
+ * Query results decoded into primitive columns instead of one String per
+ * cell.
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A column oriented result.  Integer columns (pID, rID, seats, duration,
+ * score, ...) are kept in an int[], bigint columns such as count(*) in a
+ * long[], numeric columns such as AVG(score) in a double[] and everything else
+ * as Strings.  Cells are read with rs.getInt()/getLong()/getDouble(), which
+ * PgJDBC decodes straight from the wire bytes, so numeric cells never become
+ * String or boxed objects.
+ *
+ * It is a RowHandler, so it can be filled from executeQueryStreaming() as
+ * well as from executeQueryTyped().  Rows and columns are numbered from 0.
+ *
+ */
+public class TypedResult implements AirBooking.RowHandler
+{
+	public static final int INT = 0;
+	public static final int LONG = 1;
+	public static final int DOUBLE = 2;
+	public static final int STRING = 3;
+
+	private String[] _names = new String[0];
+	private int[] _types = new int[0];
+	// one int[], long[], double[] or String[] per column
+	private Object[] _columns = new Object[0];
+	// null cells of the numeric columns, created on the first null
+	private BitSet[] _nulls = new BitSet[0];
+	private int _rows = 0;
+	private int _capacity = 0;
+
+	/**
+	 * Method to append the current row of a result set.
+	 *
+	 * @param rs the result set positioned on the row
+	 * @throws java.sql.SQLException when a cell can not be read
+	 */
+	public void row(ResultSet rs) throws SQLException
+	{
+		if(this._capacity == 0)
+		{
+			init(rs.getMetaData());
+		}
+		if(this._rows == this._capacity)
+		{
+			grow();
+		}
+		int row = this._rows;
+		for(int c = 0; c < this._types.length; ++c)
+		{
+			switch(this._types[c])
+			{
+				case INT:
+					((int[]) this._columns[c])[row] = rs.getInt(c + 1);
+					break;
+				case LONG:
+					((long[]) this._columns[c])[row] = rs.getLong(c + 1);
+					break;
+				case DOUBLE:
+					((double[]) this._columns[c])[row] = rs.getDouble(c + 1);
+					break;
+				default:
+					((String[]) this._columns[c])[row] = rs.getString(c + 1);
+					continue;
+			}
+			if(rs.wasNull())
+			{
+				if(this._nulls[c] == null)
+				{
+					this._nulls[c] = new BitSet();
+				}
+				this._nulls[c].set(row);
+			}
+		}
+		++this._rows;
+	}
+
+	public int size()
+	{
+		return this._rows;
+	}
+
+	public int columnCount()
+	{
+		return this._types.length;
+	}
+
+	public String columnName(int col)
+	{
+		return this._names[col];
+	}
+
+	/**
+	 * @return one of INT, LONG, DOUBLE or STRING
+	 */
+	public int columnType(int col)
+	{
+		return this._types[col];
+	}
+
+	public int getInt(int row, int col)
+	{
+		check(row);
+		switch(this._types[col])
+		{
+			case INT: return ((int[]) this._columns[col])[row];
+			case LONG: return (int) ((long[]) this._columns[col])[row];
+			case DOUBLE: return (int) ((double[]) this._columns[col])[row];
+			default: return Integer.parseInt(getString(row, col).trim());
+		}
+	}
+
+	public long getLong(int row, int col)
+	{
+		check(row);
+		switch(this._types[col])
+		{
+			case INT: return ((int[]) this._columns[col])[row];
+			case LONG: return ((long[]) this._columns[col])[row];
+			case DOUBLE: return (long) ((double[]) this._columns[col])[row];
+			default: return Long.parseLong(getString(row, col).trim());
+		}
+	}
+
+	public double getDouble(int row, int col)
+	{
+		check(row);
+		switch(this._types[col])
+		{
+			case INT: return ((int[]) this._columns[col])[row];
+			case LONG: return ((long[]) this._columns[col])[row];
+			case DOUBLE: return ((double[]) this._columns[col])[row];
+			default: return Double.parseDouble(getString(row, col).trim());
+		}
+	}
+
+	/**
+	 * Method to read any cell as text, the way rs.getString() would.
+	 */
+	public String getString(int row, int col)
+	{
+		check(row);
+		if(isNull(row, col))
+		{
+			return null;
+		}
+		switch(this._types[col])
+		{
+			case INT: return Integer.toString(((int[]) this._columns[col])[row]);
+			case LONG: return Long.toString(((long[]) this._columns[col])[row]);
+			case DOUBLE: return Double.toString(((double[]) this._columns[col])[row]);
+			default: return ((String[]) this._columns[col])[row];
+		}
+	}
+
+	public boolean isNull(int row, int col)
+	{
+		check(row);
+		if(this._types[col] == STRING)
+		{
+			return ((String[]) this._columns[col])[row] == null;
+		}
+		return this._nulls[col] != null && this._nulls[col].get(row);
+	}
+
+	private void init(ResultSetMetaData md) throws SQLException
+	{
+		int n = md.getColumnCount();
+		this._names = new String[n];
+		this._types = new int[n];
+		this._columns = new Object[n];
+		this._nulls = new BitSet[n];
+		for(int c = 0; c < n; ++c)
+		{
+			this._names[c] = md.getColumnName(c + 1);
+			switch(md.getColumnType(c + 1))
+			{
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+					this._types[c] = INT;
+					break;
+				case Types.BIGINT:
+					this._types[c] = LONG;
+					break;
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+					this._types[c] = DOUBLE;
+					break;
+				default:
+					this._types[c] = STRING;
+			}
+		}
+	}
+
+	private void grow()
+	{
+		int capacity = this._capacity == 0 ? 16 : this._capacity * 2;
+		for(int c = 0; c < this._types.length; ++c)
+		{
+			switch(this._types[c])
+			{
+				case INT:
+					this._columns[c] = this._capacity == 0 ? new int[capacity] : Arrays.copyOf((int[]) this._columns[c], capacity);
+					break;
+				case LONG:
+					this._columns[c] = this._capacity == 0 ? new long[capacity] : Arrays.copyOf((long[]) this._columns[c], capacity);
+					break;
+				case DOUBLE:
+					this._columns[c] = this._capacity == 0 ? new double[capacity] : Arrays.copyOf((double[]) this._columns[c], capacity);
+					break;
+				default:
+					this._columns[c] = this._capacity == 0 ? new String[capacity] : Arrays.copyOf((String[]) this._columns[c], capacity);
+			}
+		}
+		this._capacity = capacity;
+	}
+
+	private void check(int row)
+	{
+		if(row < 0 || row >= this._rows)
+		{
+			throw new IndexOutOfBoundsException("row " + row + " of " + this._rows);
+		}
+	}
+}
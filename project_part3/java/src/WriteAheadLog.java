@@ -0,0 +1,457 @@
+/*
+ * Write Ahead Log
+ * ===============
+ *
+ * Append-only, memory mapped, segmented log of records that must survive a
+ * crash until they have been applied to the database.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * The log is a directory of segment files of a fixed size, named by their
+ * number in hex, each one mapped into memory while it is written.  A record
+ * is its length, a CRC32 of its type and payload, the type byte and the
+ * payload; the length is written last.  New segments are zero filled, so
+ * reading stops at the first zero length or bad checksum, which is where a
+ * crash cut the log short.  Positions in the log (LSNs) are the segment
+ * number times the segment size plus the offset in the segment.
+ *
+ * append() returns once the record is on disk.  Appenders that arrive while
+ * one of them forces the mapping to disk share the next force (group
+ * commit).  checkpoint() records up to which LSN the records have been
+ * applied, in a small file next to the segments, and deletes the segments
+ * before it; replay() returns the records after the checkpoint.
+ *
+ * When the force fails, append() throws and the record is taken back, so
+ * that what the caller was told failed is not replayed later: the last
+ * record is cut off by zeroing its length, one that others have been
+ * appended after is turned into a CANCELLED record, which replay() skips.
+ *
+ */
+public class WriteAheadLog
+{
+	public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+	// length, checksum and type
+	static final int HEADER = 9;
+	static final String CHECKPOINT = "checkpoint";
+	// the type of a record taken back after its force failed
+	static final byte CANCELLED = 0;
+
+	/**
+	 * One record read back by replay().
+	 */
+	public static class Record
+	{
+		public final byte type;
+		public final byte[] payload;
+		// the LSN just after it
+		public final long end;
+
+		Record(byte type, byte[] payload, long end)
+		{
+			this.type = type;
+			this.payload = payload;
+			this.end = end;
+		}
+	}
+
+	private final File _dir;
+	private final int _segmentSize;
+	private final boolean _fsync;
+	private final Object _appendLock = new Object();
+	private final Object _syncLock = new Object();
+
+	// the segment being written
+	private long _segment;
+	private volatile MappedByteBuffer _buffer;
+	private volatile long _end;
+	private long _synced;
+	private long _checkpoint;
+	// entries appended since the log was opened, a record may hold several
+	private long _appended = 0;
+	private final AtomicLong _syncs = new AtomicLong();
+
+	public WriteAheadLog(File dir) throws IOException
+	{
+		this(dir, Integer.getInteger("airbooking.wal.segmentSize", DEFAULT_SEGMENT_SIZE),
+			Boolean.parseBoolean(System.getProperty("airbooking.wal.fsync", "true")));
+	}
+
+	public WriteAheadLog(File dir, int segmentSize, boolean fsync) throws IOException
+	{
+		if(!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("Can not create " + dir);
+		}
+		this._dir = dir;
+		this._segmentSize = segmentSize;
+		this._fsync = fsync;
+
+		File checkpoint = new File(dir, CHECKPOINT);
+		this._checkpoint = checkpoint.exists() ? ByteBuffer.wrap(Files.readAllBytes(checkpoint.toPath())).getLong() : 0;
+		long[] segments = segments();
+		if(segments.length == 0)
+		{
+			this._segment = this._checkpoint / segmentSize;
+			this._end = this._segment * segmentSize;
+		}
+		else
+		{
+			// appending goes on after the last good record
+			this._segment = segments[segments.length - 1];
+			this._end = this._segment * segmentSize + scan(this._segment, 0, null);
+		}
+		this._synced = this._end;
+		this._buffer = map(this._segment);
+		this._buffer.position((int) (this._end - this._segment * segmentSize));
+	}
+
+	/**
+	 * Method to add a record and return once it is on disk.
+	 *
+	 * @param type what the payload is, for the reader, not CANCELLED
+	 * @param payload the record
+	 * @return the LSN just after the record
+	 * @throws java.io.IOException when it could not be written or forced, it is then not kept
+	 */
+	public long append(byte type, byte[] payload) throws IOException
+	{
+		return append(type, payload, 1);
+	}
+
+	/**
+	 * Same as above, for a record that holds several entries, e.g. a group of
+	 * bookings written with one force.  checkpointIfApplied() counts entries.
+	 */
+	public long append(byte type, byte[] payload, int entries) throws IOException
+	{
+		int size = HEADER + payload.length;
+		if(size > this._segmentSize)
+		{
+			throw new IllegalArgumentException("Record of " + size + " bytes does not fit a segment");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload, 0, payload.length);
+
+		long end;
+		MappedByteBuffer buffer;
+		int at;
+		synchronized(this._appendLock)
+		{
+			buffer = this._buffer;
+			if(buffer.remaining() < size)
+			{
+				buffer = roll();
+			}
+			at = buffer.position();
+			buffer.putInt(at + 4, (int) crc.getValue());
+			buffer.put(at + 8, type);
+			for(int i = 0; i < payload.length; ++i)
+			{
+				buffer.put(at + HEADER + i, payload[i]);
+			}
+			// the length makes the record visible to a reader, so it goes last
+			buffer.putInt(at, payload.length + 1);
+			buffer.position(at + size);
+			end = this._end = this._segment * this._segmentSize + at + size;
+			this._appended += entries;
+		}
+		if(this._fsync)
+		{
+			try
+			{
+				sync(end);
+			}
+			catch(IOException e)
+			{
+				takeBack(buffer, at, end, payload, entries);
+				throw e;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Method to read every record after the checkpoint.
+	 */
+	public List<Record> replay() throws IOException
+	{
+		List<Record> records = new ArrayList<Record>();
+		long checkpoint;
+		long last;
+		synchronized(this._appendLock)
+		{
+			checkpoint = this._checkpoint;
+			last = this._segment;
+		}
+		for(long segment : segments())
+		{
+			if(segment > last || (segment + 1) * this._segmentSize <= checkpoint)
+			{
+				continue;
+			}
+			List<Record> all = new ArrayList<Record>();
+			scan(segment, 0, all);
+			for(Record r : all)
+			{
+				if(r.end > checkpoint && r.type != CANCELLED)
+				{
+					records.add(r);
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Method to mark the records up to an LSN as applied, so they are not
+	 * replayed again, and delete the segments that hold nothing newer.
+	 *
+	 * @param lsn the end of the last applied record
+	 */
+	public void checkpoint(long lsn) throws IOException
+	{
+		synchronized(this._appendLock)
+		{
+			if(lsn <= this._checkpoint)
+			{
+				return;
+			}
+			File tmp = new File(this._dir, CHECKPOINT + ".tmp");
+			try(FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				ByteBuffer b = ByteBuffer.allocate(8).putLong(0, lsn);
+				while(b.hasRemaining())
+				{
+					out.write(b);
+				}
+				out.force(true);
+			}
+			Files.move(tmp.toPath(), new File(this._dir, CHECKPOINT).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+			this._checkpoint = lsn;
+			for(long segment : segments())
+			{
+				if(segment < this._segment && (segment + 1) * this._segmentSize <= lsn)
+				{
+					Files.deleteIfExists(file(segment).toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to checkpoint everything appended so far, if that is the number
+	 * of entries the caller has applied since the log was opened.
+	 *
+	 * @return whether the checkpoint was taken
+	 */
+	public boolean checkpointIfApplied(long applied) throws IOException
+	{
+		synchronized(this._appendLock)
+		{
+			if(this._appended != applied || this._end <= this._checkpoint)
+			{
+				return false;
+			}
+			checkpoint(this._end);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the LSN the next record is appended at
+	 */
+	public long end()
+	{
+		return this._end;
+	}
+
+	public void close() throws IOException
+	{
+		synchronized(this._appendLock)
+		{
+			this._buffer.force();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "wal " + this._dir + " end: " + this._end + ", checkpoint: " + this._checkpoint + ", appended: "
+			+ this._appended + ", syncs: " + this._syncs.get();
+	}
+
+	// one thread forces the mapping for everyone that appended before it started
+	private void sync(long end) throws IOException
+	{
+		synchronized(this._syncLock)
+		{
+			if(this._synced >= end)
+			{
+				return;
+			}
+			long upTo = this._end;
+			// a segment is forced before the next one is started, so the current one is enough
+			try
+			{
+				this._buffer.force();
+			}
+			catch(UncheckedIOException e)
+			{
+				// newer JDKs wrap the failure
+				throw e.getCause();
+			}
+			this._syncs.incrementAndGet();
+			this._synced = upTo;
+		}
+	}
+
+	// undoes an append whose force failed
+	private void takeBack(MappedByteBuffer buffer, int at, long end, byte[] payload, int entries)
+	{
+		synchronized(this._appendLock)
+		{
+			this._appended -= entries;
+			if(end == this._end)
+			{
+				// nothing after it, the next record is written in its place
+				buffer.putInt(at, 0);
+				buffer.position(at);
+				this._end = end - HEADER - payload.length;
+				synchronized(this._syncLock)
+				{
+					// a later force has to cover the new record
+					this._synced = Math.min(this._synced, this._end);
+				}
+				return;
+			}
+			// the records after it are still read, only its type and checksum change
+			CRC32 crc = new CRC32();
+			crc.update(CANCELLED);
+			crc.update(payload, 0, payload.length);
+			buffer.put(at + 8, CANCELLED);
+			buffer.putInt(at + 4, (int) crc.getValue());
+			try
+			{
+				// its segment may have been forced for the last time already
+				buffer.force();
+			}
+			catch(RuntimeException e)
+			{
+				// ignored, the disk is failing, there is nothing more to do.
+			}
+		}
+	}
+
+	// called with the append lock held
+	private MappedByteBuffer roll() throws IOException
+	{
+		this._buffer.force();
+		this._segment += 1;
+		this._buffer = map(this._segment);
+		this._end = this._segment * this._segmentSize;
+		return this._buffer;
+	}
+
+	private MappedByteBuffer map(long segment) throws IOException
+	{
+		try(RandomAccessFile raf = new RandomAccessFile(file(segment), "rw"))
+		{
+			if(raf.length() < this._segmentSize)
+			{
+				raf.setLength(this._segmentSize);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this._segmentSize);
+		}
+	}
+
+	/**
+	 * Method to read the good records of a segment.
+	 *
+	 * @param records where they are added, may be null
+	 * @return the offset after the last good record
+	 */
+	private int scan(long segment, int from, List<Record> records) throws IOException
+	{
+		File f = file(segment);
+		if(!f.exists())
+		{
+			return from;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+		int at = from;
+		CRC32 crc = new CRC32();
+		while(at + HEADER <= buffer.limit())
+		{
+			int length = buffer.getInt(at);
+			if(length < 1 || at + 8 + length > buffer.limit())
+			{
+				break;
+			}
+			crc.reset();
+			crc.update(buffer.array(), at + 8, length);
+			if((int) crc.getValue() != buffer.getInt(at + 4))
+			{
+				break;
+			}
+			if(records != null)
+			{
+				byte[] payload = Arrays.copyOfRange(buffer.array(), at + HEADER, at + 8 + length);
+				records.add(new Record(buffer.get(at + 8), payload, segment * this._segmentSize + at + 8 + length));
+			}
+			at += 8 + length;
+		}
+		return at;
+	}
+
+	private long[] segments()
+	{
+		List<Long> found = new ArrayList<Long>();
+		String[] names = this._dir.list();
+		for(String name : names == null ? new String[0] : names)
+		{
+			if(name.endsWith(".wal"))
+			{
+				try
+				{
+					found.add(Long.parseLong(name.substring(0, name.length() - 4), 16));
+				}
+				catch(NumberFormatException e)
+				{
+					// not a segment.
+				}
+			}
+		}
+		long[] segments = new long[found.size()];
+		for(int i = 0; i < segments.length; ++i)
+		{
+			segments[i] = found.get(i);
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private File file(long segment)
+	{
+		return new File(this._dir, String.format("%016x.wal", segment));
+	}
+}
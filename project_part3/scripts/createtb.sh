@@ -13,4 +13,6 @@ export PGPORT=$1
 export DBNAME=flightDB
 
 create_sh=../sql/create.sql
+procedures_sh=../sql/procedures.sql
 psql -h 127.0.0.1 -p $PGPORT $DBNAME < $create_sh
+psql -h 127.0.0.1 -p $PGPORT $DBNAME < $procedures_sh
@@ -5,6 +5,9 @@ DROP TABLE IF EXISTS Flight CASCADE;
 DROP TABLE IF EXISTS Ratings CASCADE;
 DROP TABLE IF EXISTS Booking CASCADE;
 
+DROP SEQUENCE IF EXISTS passenger_pid_seq;
+DROP SEQUENCE IF EXISTS ratings_rid_seq;
+
 DROP DOMAIN IF EXISTS _YEAR CASCADE;
 DROP DOMAIN IF EXISTS _HOURS CASCADE;
 DROP DOMAIN IF EXISTS _SEATS CASCADE;
@@ -70,6 +73,12 @@ CREATE TABLE Booking(
 	UNIQUE(departure,flightNum,pID)
 );
 
+-- CREATE SEQUENCES
+-- Keys are handed out in blocks: every nextval() reserves [value, value + 100)
+-- for one client (see IdAllocator.java), so INCREMENT BY is the block size.
+CREATE SEQUENCE passenger_pid_seq INCREMENT BY 100 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE ratings_rid_seq INCREMENT BY 100 MINVALUE 0 START WITH 0;
+
 --CREATE USER WITH PASSWORD TO CONNECT TO DATABASE--CHANGE username accordingly
 DROP USER IF EXISTS username;
 CREATE USER username WITH PASSWORD '';
@@ -79,6 +88,8 @@ GRANT ALL PRIVILEGES ON TABLE Passenger TO username;
 GRANT ALL PRIVILEGES ON TABLE Flight TO username;
 GRANT ALL PRIVILEGES ON TABLE Ratings TO username;
 GRANT ALL PRIVILEGES ON TABLE Booking TO username;
+GRANT USAGE ON SEQUENCE passenger_pid_seq TO username;
+GRANT USAGE ON SEQUENCE ratings_rid_seq TO username;
 ------------------------------------------------------------------------------------
 
 COPY Airline (
@@ -132,12 +143,14 @@ FROM 'bookings.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Booking;
 
--- indexing
-CREATE Index pID_dex
-ON Passenger (pID ASC)
+-- move the key sequences past the loaded data
+SELECT setval('passenger_pid_seq', (SELECT COALESCE(MAX(pID), -1) + 1 FROM Passenger), false);
+SELECT setval('ratings_rid_seq', (SELECT COALESCE(MAX(rID), -1) + 1 FROM Ratings), false);
 
-CREATE Index passNum_dex
-ON Passenger (passNum)
-
-CREATE Index flightNum_dex
-ON Flight (flightNum)
+-- indexing
+-- pID, passNum and flightNum are already indexed by their PRIMARY KEY and
+-- UNIQUE constraints.
+-- Options 5 and 8 look flights up by (origin, destination) and order them by
+-- duration.
+CREATE INDEX flight_route_dex
+ON Flight (origin, destination, duration);
@@ -0,0 +1,204 @@
+-- Server side functions used by AirBooking, installed after create.sql
+-- (see scripts/createtb.sh).  Safe to run again: every function is replaced.
+
+-- book_flight
+-- Books a flight for the passenger with the given passport in one call.
+-- The flight row is locked while the seats are counted so concurrent
+-- bookings of the same flight can not overbook it.
+-- Returns 0 = booked, 1 = no such passenger, 2 = no such flight,
+--         3 = passenger already booked on that flight and date,
+--         4 = no seats left, 5 = booking reference already taken
+-- The arguments have the CHAR types of the columns, so the comparisons use
+-- the indexes; the TEXT version of earlier installs is dropped first, it
+-- would otherwise stay behind as an overload.
+DROP FUNCTION IF EXISTS book_flight(TEXT, DATE, TEXT, TEXT);
+CREATE OR REPLACE FUNCTION book_flight(p_bookref CHAR(10), p_departure DATE, p_flightnum CHAR(8),
+	p_passnum CHAR(10))
+RETURNS INTEGER AS $$
+DECLARE
+	v_pid INTEGER;
+	v_seats INTEGER;
+	v_taken INTEGER;
+	v_constraint TEXT;
+BEGIN
+	SELECT pID INTO v_pid FROM Passenger WHERE passNum = p_passnum;
+	IF NOT FOUND THEN
+		RETURN 1;
+	END IF;
+
+	-- NO KEY UPDATE serializes bookings of this flight but not the FK checks
+	SELECT seats INTO v_seats FROM Flight WHERE flightNum = p_flightnum FOR NO KEY UPDATE;
+	IF NOT FOUND THEN
+		RETURN 2;
+	END IF;
+
+	IF EXISTS (SELECT 1 FROM Booking
+			   WHERE departure = p_departure AND flightNum = p_flightnum AND pID = v_pid) THEN
+		RETURN 3;
+	END IF;
+
+	SELECT COUNT(*) INTO v_taken FROM Booking
+	WHERE departure = p_departure AND flightNum = p_flightnum;
+	IF v_taken >= v_seats THEN
+		RETURN 4;
+	END IF;
+
+	INSERT INTO Booking(bookRef, departure, flightNum, pID)
+	VALUES (p_bookref, p_departure, p_flightnum, v_pid);
+	RETURN 0;
+EXCEPTION
+	WHEN unique_violation THEN
+		GET STACKED DIAGNOSTICS v_constraint = CONSTRAINT_NAME;
+		IF v_constraint = 'booking_pkey' THEN
+			RETURN 5;
+		END IF;
+		RETURN 3;
+END;
+$$ LANGUAGE plpgsql;
+
+-- add_passenger
+-- Inserts a passenger.  The pID comes from the client, which takes them from
+-- passenger_pid_seq in blocks (see IdAllocator.java).
+-- Returns 0 = added, 1 = passport number already taken
+CREATE OR REPLACE FUNCTION add_passenger(p_pid INTEGER, p_passnum CHAR(10), p_fullname TEXT, p_bdate DATE,
+	p_country TEXT)
+RETURNS INTEGER AS $$
+DECLARE
+	v_constraint TEXT;
+BEGIN
+	INSERT INTO Passenger(pID, passNum, fullName, bdate, country)
+	VALUES (p_pid, p_passnum, p_fullname, p_bdate, p_country);
+	RETURN 0;
+EXCEPTION
+	WHEN unique_violation THEN
+		GET STACKED DIAGNOSTICS v_constraint = CONSTRAINT_NAME;
+		IF v_constraint = 'passenger_pkey' THEN
+			RAISE;
+		END IF;
+		RETURN 1;
+END;
+$$ LANGUAGE plpgsql;
+
+-- review_flight
+-- Stores a review.  The passenger is given by pID, or by passport when the
+-- pID is NULL; the rID comes from the client like the pID of add_passenger.
+-- Returns 0 = stored, 1 = no such passenger, 2 = no such flight
+CREATE OR REPLACE FUNCTION review_flight(p_rid INTEGER, p_pid INTEGER, p_passnum CHAR(10), p_flightnum CHAR(8),
+	p_score INTEGER, p_comment TEXT)
+RETURNS INTEGER AS $$
+DECLARE
+	v_pid INTEGER := p_pid;
+BEGIN
+	IF v_pid IS NULL THEN
+		SELECT pID INTO v_pid FROM Passenger WHERE passNum = p_passnum;
+		IF NOT FOUND THEN
+			RETURN 1;
+		END IF;
+	ELSIF NOT EXISTS (SELECT 1 FROM Passenger WHERE pID = v_pid) THEN
+		RETURN 1;
+	END IF;
+
+	IF NOT EXISTS (SELECT 1 FROM Flight WHERE flightNum = p_flightnum) THEN
+		RETURN 2;
+	END IF;
+
+	INSERT INTO Ratings(rID, pID, flightNum, score, comment)
+	VALUES (p_rid, v_pid, p_flightnum, p_score, p_comment);
+	RETURN 0;
+END;
+$$ LANGUAGE plpgsql;
+
+-- upsert_route
+-- Inserts a flight or updates the one with the same flightNum.  Returns one
+-- row: the outcome, the airline's name and, for an update, the old values,
+-- which the client needs to keep its in-memory indexes up to date.
+-- outcome 0 = inserted, 1 = updated, 2 = no such airline
+CREATE OR REPLACE FUNCTION upsert_route(p_airid INTEGER, p_flightnum CHAR(8), p_origin TEXT, p_destination TEXT,
+	p_plane TEXT, p_seats INTEGER, p_duration INTEGER)
+RETURNS TABLE(outcome INTEGER, airline CHAR(24), old_airid INTEGER, old_origin TEXT, old_destination TEXT,
+	old_plane TEXT, old_seats INTEGER, old_duration INTEGER) AS $$
+DECLARE
+	v_old Flight%ROWTYPE;
+BEGIN
+	SELECT a.name INTO airline FROM Airline a WHERE a.airId = p_airid;
+	IF NOT FOUND THEN
+		outcome := 2;
+		RETURN NEXT;
+		RETURN;
+	END IF;
+
+	SELECT * INTO v_old FROM Flight f WHERE f.flightNum = p_flightnum FOR UPDATE;
+	IF FOUND THEN
+		UPDATE Flight f SET airId = p_airid, origin = p_origin, destination = p_destination, plane = p_plane,
+			seats = p_seats, duration = p_duration
+		WHERE f.flightNum = p_flightnum;
+		outcome := 1;
+		old_airid := v_old.airId;
+		old_origin := v_old.origin;
+		old_destination := v_old.destination;
+		old_plane := v_old.plane;
+		old_seats := v_old.seats;
+		old_duration := v_old.duration;
+	ELSE
+		INSERT INTO Flight(airId, flightNum, origin, destination, plane, seats, duration)
+		VALUES (p_airid, p_flightnum, p_origin, p_destination, p_plane, p_seats, p_duration);
+		outcome := 0;
+	END IF;
+	RETURN NEXT;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The reports and the seat count are single queries, so they are SQL
+-- functions, which the planner can inline into the calling query.  They
+-- return the columns and order of the queries in AirBooking.java.
+
+-- flights_between (option 5)
+CREATE OR REPLACE FUNCTION flights_between(p_origin CHAR(16), p_destination CHAR(16))
+RETURNS TABLE(flightnum CHAR(8), origin CHAR(16), destination CHAR(16), plane CHAR(16), duration INTEGER) AS $$
+	SELECT f.flightNum, f.origin, f.destination, f.plane, f.duration::INTEGER
+	FROM Flight f
+	WHERE f.origin = p_origin AND f.destination = p_destination;
+$$ LANGUAGE sql STABLE;
+
+-- popular_destinations (option 6)
+CREATE OR REPLACE FUNCTION popular_destinations(p_k INTEGER)
+RETURNS TABLE(destination CHAR(16), num_of BIGINT) AS $$
+	SELECT f.destination, COUNT(f.destination) AS num_of
+	FROM Flight f
+	GROUP BY f.destination
+	ORDER BY num_of DESC, f.destination COLLATE "C"
+	LIMIT p_k;
+$$ LANGUAGE sql STABLE;
+
+-- highest_rated_routes (option 7)
+CREATE OR REPLACE FUNCTION highest_rated_routes(p_k INTEGER)
+RETURNS TABLE(name CHAR(24), flightnum CHAR(8), origin CHAR(16), destination CHAR(16), plane CHAR(16),
+	avg_score NUMERIC) AS $$
+	SELECT a.name, r.flightNum, f.origin, f.destination, f.plane, AVG(r.score) AS avg_score
+	FROM Airline a, Flight f, Ratings r
+	WHERE a.airId = f.airId AND f.flightNum = r.flightNum
+	GROUP BY a.name, f.flightNum, r.flightNum
+	ORDER BY avg_score DESC, r.flightNum COLLATE "C"
+	LIMIT p_k;
+$$ LANGUAGE sql STABLE;
+
+-- flights_by_duration (option 8)
+CREATE OR REPLACE FUNCTION flights_by_duration(p_origin CHAR(16), p_destination CHAR(16), p_k INTEGER)
+RETURNS TABLE(name CHAR(24), flightnum CHAR(8), origin CHAR(16), destination CHAR(16), plane CHAR(16),
+	duration INTEGER) AS $$
+	SELECT a.name, f.flightNum, f.origin, f.destination, f.plane, f.duration::INTEGER
+	FROM Airline a, Flight f
+	WHERE a.airId = f.airId AND f.origin = p_origin AND f.destination = p_destination
+	ORDER BY f.duration, f.flightNum COLLATE "C"
+	LIMIT p_k;
+$$ LANGUAGE sql STABLE;
+
+-- available_seats (option 9)
+-- Returns the seats left on a flight for a date, NULL if there is no such flight
+CREATE OR REPLACE FUNCTION available_seats(p_flightnum CHAR(8), p_departure DATE)
+RETURNS INTEGER AS $$
+	SELECT f.seats - (SELECT COUNT(*) FROM Booking b
+		WHERE b.flightNum = f.flightNum AND b.departure = p_departure)::INTEGER
+	FROM Flight f
+	WHERE f.flightNum = p_flightnum;
+$$ LANGUAGE sql STABLE;